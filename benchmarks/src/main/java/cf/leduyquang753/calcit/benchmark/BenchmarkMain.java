@@ -0,0 +1,21 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line, adding the GC profiler so that allocation rates are reported unless other profilers are asked for.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+		if (!arguments.contains("-prof")) {
+			arguments.add("-prof");
+			arguments.add("gc");
+		}
+		Main.main(arguments.toArray(new String[arguments.size()]));
+	}
+}
@@ -0,0 +1,83 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cf.leduyquang753.calcit.CalculationContext;
+import cf.leduyquang753.calcit.CalculatorEngine;
+import cf.leduyquang753.calcit.CompiledExpression;
+import cf.leduyquang753.calcit.ExpressionInvalidException;
+import cf.leduyquang753.calcit.MethodHandleBackend;
+
+/**
+ * Calculates each expression of a corpus, parsing it every time, taking it from the expression cache, or evaluating it already compiled, either interpreted or through the {@link MethodHandleBackend}.
+ * The scores are for the whole corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalculateBenchmark {
+	@Param({ "short", "nested", "functions", "variables" })
+	public String corpus;
+
+	private CalculatorEngine engine, cachedEngine;
+	private CalculationContext context, cachedContext;
+	private String[] expressions;
+	private CompiledExpression[] compiled, handles;
+
+	@Setup
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		engine.expressionCache = null;
+		context = new CalculationContext(engine);
+		cachedEngine = new CalculatorEngine();
+		cachedContext = new CalculationContext(cachedEngine);
+		for (String assignment : new String[] { "a = 1,5", "b = -2", "c = 0,25", "x = 3", "y = 4", "z = 10", "rate = 0,07", "years = 30", "principal = 250000" }) {
+			engine.calculate(assignment, context);
+			cachedEngine.calculate(assignment, cachedContext);
+		}
+		expressions = Corpus.get(corpus);
+		compiled = new CompiledExpression[expressions.length];
+		handles = new CompiledExpression[expressions.length];
+		for (int i = 0; i < expressions.length; i++) {
+			compiled[i] = engine.compile(expressions[i], context);
+			compiled[i].evaluate(context); // Assigns the variables that later expressions read, which evaluating the value alone does not.
+			handles[i] = MethodHandleBackend.compile(compiled[i]);
+		}
+	}
+
+	@Benchmark
+	public void calculate(Blackhole blackhole) throws ExpressionInvalidException {
+		for (String expression : expressions) blackhole.consume(engine.calculate(expression, context));
+	}
+
+	@Benchmark
+	public void calculateCached(Blackhole blackhole) throws ExpressionInvalidException {
+		for (String expression : expressions) blackhole.consume(cachedEngine.calculate(expression, cachedContext));
+	}
+
+	@Benchmark
+	public void evaluateCompiled(Blackhole blackhole) throws ExpressionInvalidException {
+		for (CompiledExpression expression : compiled) blackhole.consume(expression.evaluateValue(context));
+	}
+
+	@Benchmark
+	public void evaluateMethodHandles(Blackhole blackhole) throws ExpressionInvalidException {
+		for (CompiledExpression expression : handles) blackhole.consume(expression.evaluateValue(context));
+	}
+}
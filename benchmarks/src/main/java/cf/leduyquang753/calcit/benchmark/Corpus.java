@@ -0,0 +1,85 @@
+package cf.leduyquang753.calcit.benchmark;
+
+/**
+ * The expressions calculated by the benchmarks, in the default settings: comma as the decimal separator and dot for multiplication.
+ * The variables are assigned by {@link CalculateBenchmark}.
+ */
+final class Corpus {
+	private static final String[] SHORT = {
+		"1+2",
+		"3.4-5",
+		"2^10",
+		"1,5.2-3:4",
+		"-3+4%",
+		"(1+2)3",
+		"100-37,5%",
+		"2#9+1"
+	};
+
+	private static final String[] FUNCTIONS = {
+		"sin(30)+cos(60).tan(45)",
+		"max(1;2;3;4;5)+min(5;4;3)-avg(1;2;3;4)",
+		"log(2;1024)+logn(10)+log(1000)",
+		"round(sum(1;2;3;4;5;6;7)/3)+floor(-2,5)+abs(-7)",
+		"gcd(123456;7890)+fact(12)+c(50;25)+p(10;3)",
+		"if(isgreater(3;2);arcsin(0,5);arccos(0,5))",
+		"year(date(2024;2;29))+month(737000)+day(737000)+hour(737000,75)",
+		"dtr(180)+rtd(3,14159)+to radians(90)"
+	};
+
+	private static final String[] VARIABLES = {
+		"a.x^2+b.x+c",
+		"2#(x^2+y^2)",
+		"principal.rate:12:(1-(1+rate:12)^(-years.12))",
+		"x.y.z-a.b.c+x:y",
+		"2x+3y-4z+x.y",
+		"t = x+y+z",
+		"t.t-ans+preans"
+	};
+
+	/**
+	 * Long decimals past the 18 digits a long holds and numbers scaled by powers of ten, so that parsing them dominates.
+	 */
+	private static final String[] LITERALS = {
+		"3,14159265358979323846+2,71828182845904523536",
+		"1,6180339887498948482045868343656.0,5772156649015328606065",
+		"6,02214076.10^23-1,380649.10^-23",
+		"299792458.9,1093837015.10^-31",
+		"0,000000000000000000000000000000123456789012345678901",
+		"123456789012345678901234567890,5-98765432109876543210,25",
+		"1,7976931348623157.10^300.2,2250738585072014.10^-300",
+		"4,9406564584124654.10^-324+0,30000000000000004-0,1-0,2",
+		",5+,25+,125+,0625+,03125+,015625",
+		"1,0000000000000002-0,9999999999999999+100000000000000000000000"
+	};
+
+	private static final String[] NESTED;
+
+	static {
+		StringBuilder deep = new StringBuilder(), mixed = new StringBuilder(), calls = new StringBuilder();
+		for (int i = 0; i < 32; i++) deep.append('(');
+		deep.append('1');
+		for (int i = 0; i < 32; i++) deep.append('+').append(i).append(')');
+		String braces = "([{<", closing = ")]}>";
+		for (int i = 0; i < 24; i++) mixed.append(braces.charAt(i % 4)).append(i + 1).append('.');
+		mixed.append('2');
+		for (int i = 23; i >= 0; i--) mixed.append('-').append(i).append(closing.charAt(i % 4));
+		for (int i = 0; i < 16; i++) calls.append("abs(");
+		calls.append("-1");
+		for (int i = 0; i < 16; i++) calls.append(")");
+		NESTED = new String[] { deep.toString(), mixed.toString(), calls.toString(), "((1+(2.(3-(4:(5+6)))))^2)" };
+	}
+
+	private Corpus() {}
+
+	static String[] get(String name) {
+		switch (name) {
+			case "short": return SHORT;
+			case "nested": return NESTED;
+			case "functions": return FUNCTIONS;
+			case "variables": return VARIABLES;
+			case "literals": return LITERALS;
+		}
+		throw new IllegalArgumentException("Unknown corpus: " + name);
+	}
+}
@@ -0,0 +1,40 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cf.leduyquang753.calcit.Utils;
+
+/**
+ * Splits day indices into their dates: the start of the calendar, leap days, the ends of the 100 and 400 year cycles, and recent dates with a time of day.
+ * The scores are for all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DateBenchmark {
+	private static final double[] INDICES = { 0, 59, 365, 1460, 36524, 36525, 146096, 146097, 737000.5, 738945.25, 740000, 1000000.75 };
+
+	@Benchmark
+	public void yearAndDayOfYear(Blackhole blackhole) {
+		for (double index : INDICES) blackhole.consume(Utils.getYearAndDayOfYearFromIndex(index));
+	}
+
+	@Benchmark
+	public void monthAndDayOfMonth(Blackhole blackhole) {
+		for (double index : INDICES) blackhole.consume(Utils.getMonthAndDayOfMonthFromIndex(index));
+	}
+}
@@ -0,0 +1,57 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cf.leduyquang753.calcit.CalculationContext;
+import cf.leduyquang753.calcit.CalculatorEngine;
+import cf.leduyquang753.calcit.Utils;
+
+/**
+ * Formats numbers of every shape the display meets: integers, fractions that get rounded, and numbers shown with a power of ten.
+ * The scores are for all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+	private static final double[] NUMBERS = {
+		0, 1, -1, 42, 1000000, 0.1, 1.0 / 3, -2.5, 3.141592653589793, 1234567.891, 123456789012.5,
+		1e-8, -9.87654321e-8, 6.02214076e23, 1.7976931348623157e308, 0.30000000000000004
+	};
+
+	private CalculationContext context;
+	private final StringBuilder output = new StringBuilder();
+
+	@Setup
+	public void setUp() {
+		context = new CalculationContext(new CalculatorEngine());
+	}
+
+	@Benchmark
+	public void formatNumber(Blackhole blackhole) {
+		for (double number : NUMBERS) blackhole.consume(Utils.formatNumber(number, context));
+	}
+
+	@Benchmark
+	public void formatNumberToBuilder(Blackhole blackhole) {
+		for (double number : NUMBERS) {
+			output.setLength(0);
+			blackhole.consume(Utils.formatNumber(number, context, output));
+		}
+	}
+}
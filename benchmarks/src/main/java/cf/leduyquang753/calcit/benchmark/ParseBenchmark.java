@@ -0,0 +1,52 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cf.leduyquang753.calcit.CalculationContext;
+import cf.leduyquang753.calcit.CalculatorEngine;
+import cf.leduyquang753.calcit.ExpressionInvalidException;
+
+/**
+ * Compiles each expression of a corpus without the expression cache, so that only parsing is measured, most of it reading the numbers in the literal-heavy corpus.
+ * The scores are for the whole corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+	@Param({ "literals", "short" })
+	public String corpus;
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+	private String[] expressions;
+
+	@Setup
+	public void setUp() {
+		engine = new CalculatorEngine();
+		engine.expressionCache = null;
+		context = new CalculationContext(engine);
+		expressions = Corpus.get(corpus);
+	}
+
+	@Benchmark
+	public void compile(Blackhole blackhole) throws ExpressionInvalidException {
+		for (String expression : expressions) blackhole.consume(engine.compile(expression, context));
+	}
+}
@@ -0,0 +1,47 @@
+package cf.leduyquang753.calcit.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cf.leduyquang753.calcit.CalculationContext;
+import cf.leduyquang753.calcit.CalculatorEngine;
+import cf.leduyquang753.calcit.ExpressionInvalidException;
+import cf.leduyquang753.calcit.Utils;
+
+/**
+ * Raises numbers to powers through {@link Utils#power(double, double, CalculationContext)}: integer, fractional and negative exponents, and negative bases.
+ * The scores are for all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PowerBenchmark {
+	private static final double[] BASES = { 2, 1.5, 10, 2, 9, -8, -2, 0.5, 1.0001, 7 };
+	private static final double[] EXPONENTS = { 10, 3, 300, 0.5, -2, 3, 4, -10, 10000, 2.5 };
+
+	private CalculationContext context;
+
+	@Setup
+	public void setUp() {
+		context = new CalculationContext(new CalculatorEngine());
+	}
+
+	@Benchmark
+	public void power(Blackhole blackhole) throws ExpressionInvalidException {
+		for (int i = 0; i < BASES.length; i++) blackhole.consume(Utils.power(BASES[i], EXPONENTS[i], context));
+	}
+}
@@ -0,0 +1,127 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates one compiled expression over many rows of variable values given as columns.
+ * A row that fails to evaluate is marked in an error bitmap instead of stopping the batch.
+ */
+public class BatchEvaluator {
+	private static final int
+		minimumChunkSize = 16384,
+		chunksPerThread = 4, // More chunks than threads so that a slow chunk does not hold the others up.
+		chunkAlignment = 1024;
+
+	private final Node root;
+	private final Program program;
+
+	/**
+	 * Set to evaluate a block of rows at a time, one node over the whole block, instead of row by row. The results are identical.
+	 * This is faster for expressions made mostly of arithmetic, whose loops the JIT can vectorize.
+	 */
+	public boolean vectorized = false;
+
+	/**
+	 * Set to split large batches into chunks evaluated on this executor, for example {@link ForkJoinPool#commonPool()}. The results are identical to evaluating sequentially.
+	 * The chunk size follows the number of rows and the parallelism of the executor.
+	 */
+	public ExecutorService executor = null;
+
+	public BatchEvaluator(CompiledExpression expression) {
+		root = expression.getRoot();
+		program = expression.getColumnProgram();
+	}
+
+	/**
+	 * Evaluates the expression for each row, writing the results into {@code output}. The number of rows is the length of {@code output}.
+	 * Variables that have a column read the value of the row; other variables are read from the context. The context's answer history and variables are not changed.
+	 * @param columns The values of the variables, keyed by name. Each column must have at least as many values as there are rows.
+	 * @param errors If not {@code null}, the bits of the rows that failed are set and the others cleared. The output of a failed row is NaN.
+	 * @return The number of rows that failed.
+	 */
+	public int evaluate(Map<String, double[]> columns, double[] output, BitSet errors, CalculationContext context) {
+		int rowCount = output.length;
+		Map<String, double[]> normalizedColumns = new HashMap<String, double[]>();
+		for (Map.Entry<String, double[]> column : columns.entrySet()) {
+			if (column.getValue().length < rowCount) throw new IllegalArgumentException("Column " + column.getKey() + " has fewer values than there are rows.");
+			normalizedColumns.put(CalculatorEngine.lowercaseAndRemoveWhitespace(column.getKey()), column.getValue());
+		}
+		if (errors != null) errors.clear(0, rowCount);
+		if (root == null) {
+			for (int row = 0; row < rowCount; row++) output[row] = 0;
+			return 0;
+		}
+		double[][] boundColumns = vectorized ? null : program.bindColumns(normalizedColumns);
+		int chunkSize = executor == null ? rowCount : getChunkSize(rowCount);
+		if (chunkSize >= rowCount) return evaluateRange(normalizedColumns, boundColumns, output, errors, context, 0, rowCount);
+
+		List<Future<BitSet>> chunks = new ArrayList<Future<BitSet>>();
+		for (int from = 0; from < rowCount; from += chunkSize) {
+			final int chunkStart = from, chunkEnd = Math.min(rowCount, from + chunkSize);
+			chunks.add(executor.submit(new Callable<BitSet>() {
+				@Override
+				public BitSet call() {
+					BitSet chunkErrors = new BitSet();
+					evaluateRange(normalizedColumns, boundColumns, output, chunkErrors, context, chunkStart, chunkEnd);
+					return chunkErrors;
+				}
+			}));
+		}
+		int errorCount = 0;
+		try {
+			for (int i = 0; i < chunks.size(); i++) {
+				BitSet chunkErrors = chunks.get(i).get();
+				errorCount += chunkErrors.cardinality();
+				if (errors != null) for (int bit = chunkErrors.nextSetBit(0); bit >= 0; bit = chunkErrors.nextSetBit(bit + 1)) errors.set(i * chunkSize + bit);
+			}
+		} catch (InterruptedException e) {
+			for (Future<BitSet> chunk : chunks) chunk.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while waiting for the batch.");
+		} catch (ExecutionException e) {
+			for (Future<BitSet> chunk : chunks) chunk.cancel(true);
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			if (e.getCause() instanceof Error) throw (Error)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		return errorCount;
+	}
+
+	private int getChunkSize(int rowCount) {
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool)executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+		int chunkCount = Math.min(parallelism * chunksPerThread, rowCount / minimumChunkSize);
+		if (chunkCount <= 1) return rowCount;
+		int chunkSize = (rowCount + chunkCount - 1) / chunkCount;
+		return (chunkSize + chunkAlignment - 1) / chunkAlignment * chunkAlignment;
+	}
+
+	/**
+	 * Evaluates the rows in the given range with scratch state of the current thread. The bits of the failed rows are set in {@code errors} relative to {@code from}.
+	 */
+	private int evaluateRange(Map<String, double[]> columns, double[][] boundColumns, double[] output, BitSet errors, CalculationContext context, int from, int to) {
+		if (vectorized) return new ColumnKernels(root, columns, context).evaluate(output, errors, from, to);
+		EvaluationStack stack = CompiledExpression.getThreadStack();
+		boolean variablesChecked = program.hasVariables(context, boundColumns);
+		int errorCount = 0;
+		for (int row = from; row < to; row++) {
+			try {
+				output[row] = program.execute(context, stack, boundColumns, row, variablesChecked);
+			} catch (ExpressionInvalidException | ArithmeticException e) {
+				output[row] = Double.NaN;
+				if (errors != null) errors.set(row - from);
+				errorCount++;
+			}
+		}
+		return errorCount;
+	}
+}
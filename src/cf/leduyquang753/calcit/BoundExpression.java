@@ -0,0 +1,51 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * A compiled expression tied to one context by {@link CompiledExpression#bind(CalculationContext)}.
+ * Whether the variables the expression reads are set is checked once, and checked again only after a variable of the context becomes set or unset or {@link CalculationContext#zeroUndefinedVars} changes.
+ * While they are all set, evaluating reads them straight from the slots of the context. Like its context, a bound expression is not thread-safe.
+ */
+public class BoundExpression {
+	private final CompiledExpression expression;
+	private final CalculationContext context;
+	private final EvaluationStack stack = new EvaluationStack();
+
+	private int variableVersion;
+	private boolean zeroUndefinedVars;
+	private boolean variablesChecked = false;
+
+	BoundExpression(CompiledExpression expression, CalculationContext context) {
+		this.expression = expression;
+		this.context = context;
+		check();
+	}
+
+	private void check() {
+		variableVersion = context.getVariableVersion();
+		zeroUndefinedVars = context.zeroUndefinedVars;
+		variablesChecked = expression.hasVariables(context);
+	}
+
+	public CompiledExpression getExpression() {
+		return expression;
+	}
+
+	public CalculationContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Evaluates the expression, updating the answer history of the context and assigning the variables on the left of the equal signs.
+	 */
+	public double evaluate() throws ExpressionInvalidException {
+		return expression.assign(context, evaluateValue());
+	}
+
+	/**
+	 * Evaluates the expression without touching the answer history nor assigning any variable.
+	 */
+	public double evaluateValue() throws ExpressionInvalidException {
+		if (variableVersion != context.getVariableVersion() || zeroUndefinedVars != context.zeroUndefinedVars) check();
+		return expression.evaluateValue(context, stack, variablesChecked);
+	}
+}
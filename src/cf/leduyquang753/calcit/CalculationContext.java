@@ -0,0 +1,157 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Arrays;
+
+/**
+ * The state of one calculation session: the settings, the answer history and the variables.
+ * A {@link CalculatorEngine} holds no session state when used with contexts, so it can be shared between threads while each thread uses its own context.
+ * A context itself is not thread-safe.
+ */
+public class CalculationContext {
+	// Slots that are not variables of the engine's table but the answer history.
+	static final int
+		ANS = -1,
+		PREANS = -2;
+
+	private final CalculatorEngine engine;
+	// Variables by their slot in the engine's table. Slots that are not set hold 0.
+	private double[] values = new double[16];
+	private boolean[] set = new boolean[16];
+	private int variableVersion = 0; // Incremented whenever a variable becomes set or unset.
+
+	// BEGIN SETTINGS VARIABLES
+	// These start with the values set in the engine when the context is created.
+	public boolean
+		decimalDot,
+		enforceDecimalSeparator,
+		thousandDot,
+		mulAsterisk,
+		enforceMulDiv,
+		zeroUndefinedVars;
+
+	public AngleUnit angleUnit;
+	// END SETTINGS VALUES
+
+	/**
+	 * The limits on the calculations in this context, or {@code null}, the default, for none. Unlike the settings, it does not start with a value from the engine.
+	 */
+	public EvaluationBudget budget = null;
+
+	private double
+		ans = 0,
+		preAns = 0;
+
+	public CalculationContext(CalculatorEngine engine) {
+		this.engine = engine;
+		copySettings(engine);
+	}
+
+	void copySettings(CalculatorEngine engine) {
+		decimalDot = engine.decimalDot;
+		enforceDecimalSeparator = engine.enforceDecimalSeparator;
+		thousandDot = engine.thousandDot;
+		mulAsterisk = engine.mulAsterisk;
+		enforceMulDiv = engine.enforceMulDiv;
+		zeroUndefinedVars = engine.zeroUndefinedVars;
+		angleUnit = engine.angleUnit;
+	}
+
+	/**
+	 * Returns the engine this context was created for. Operands and functions that only implement the engine overload of {@code calculate} receive it.
+	 */
+	public CalculatorEngine getEngine() {
+		return engine;
+	}
+
+	public double getAns() {
+		return ans;
+	}
+
+	public double getPreAns() {
+		return preAns;
+	}
+
+	public double getVariable(String name) throws GetVariableException {
+		name = CalculatorEngine.lowercaseAndRemoveWhitespace(name);
+		if (name.length() == 0) throw new GetVariableException(GetVariableException.Type.EMPTY_NAME);
+		if (CalculatorEngine.isDigit(name.charAt(0))) throw new GetVariableException(GetVariableException.Type.INVALID_NAME);
+		for (char c : name.toCharArray()) if (!CalculatorEngine.isDigit(c) && !CalculatorEngine.isChar(c)) throw new GetVariableException(GetVariableException.Type.INVALID_NAME);
+		switch (name) {
+			case "ans": return ans;
+			case "preans": return preAns;
+		}
+		int slot = engine.findVariableSlot(name);
+		if (!isSet(slot) && !zeroUndefinedVars) throw new GetVariableException(GetVariableException.Type.NOT_SET);
+		return readVariable(slot);
+	}
+
+	private boolean isSet(int slot) {
+		return slot >= 0 && slot < set.length && set[slot];
+	}
+
+	/**
+	 * Tells whether reading the variable in the slot gives a value instead of an error.
+	 */
+	boolean isVariableAvailable(int slot) {
+		return slot < 0 || zeroUndefinedVars || slot < set.length && set[slot];
+	}
+
+	/**
+	 * Reads the variable in the slot without checking whether it is set; an unset variable reads as 0.
+	 */
+	double readVariable(int slot) {
+		switch (slot) {
+			case ANS: return ans;
+			case PREANS: return preAns;
+		}
+		return slot < values.length ? values[slot] : 0;
+	}
+
+	/**
+	 * Reads a variable referenced in an expression, which fails if it is not set unless {@link #zeroUndefinedVars} is on.
+	 */
+	double getVariableInternal(int slot, String name, int position) throws ExpressionInvalidException {
+		if (isVariableAvailable(slot)) return readVariable(slot);
+		throw new ExpressionInvalidException("variableNotSet", position, new String[] { name });
+	}
+
+	int getVariableVersion() {
+		return variableVersion;
+	}
+
+	void clearVariables(int[] slots) {
+		for (int slot : slots) unsetVariable(slot);
+		preAns = ans;
+		ans = 0;
+	}
+
+	void assignResult(int[] slots, double result) {
+		for (int slot : slots) setVariable(slot, result);
+		preAns = ans;
+		ans = result;
+	}
+
+	/**
+	 * Sets the variable in the slot without touching the answer history.
+	 */
+	void setVariable(int slot, double value) {
+		if (slot < 0) return; // Assigning to ans or preAns is overridden by the answer history.
+		if (slot >= values.length) {
+			int length = Math.max(slot + 1, values.length * 2);
+			values = Arrays.copyOf(values, length);
+			set = Arrays.copyOf(set, length);
+		}
+		values[slot] = value;
+		if (!set[slot]) {
+			set[slot] = true;
+			variableVersion++;
+		}
+	}
+
+	void unsetVariable(int slot) {
+		if (!isSet(slot)) return;
+		set[slot] = false;
+		values[slot] = 0;
+		variableVersion++;
+	}
+}
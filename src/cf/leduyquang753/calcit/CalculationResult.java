@@ -0,0 +1,67 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * The outcome of {@link CalculatorEngine#tryCalculate(String, CalculationContext)}: either a number or the error that an {@link ExpressionInvalidException} would have carried.
+ */
+public class CalculationResult {
+	private final double value;
+	private final String errorKey;
+	private final int position;
+	private final Object[] messageArguments;
+
+	private CalculationResult(double value, String errorKey, int position, Object[] messageArguments) {
+		this.value = value;
+		this.errorKey = errorKey;
+		this.position = position;
+		this.messageArguments = messageArguments;
+	}
+
+	static CalculationResult of(double value) {
+		return new CalculationResult(value, null, -1, null);
+	}
+
+	static CalculationResult of(ExpressionInvalidException e) {
+		return new CalculationResult(Double.NaN, e.getMessage(), e.getPosition(), e.getMessageArguments());
+	}
+
+	public boolean isValid() {
+		return errorKey == null;
+	}
+
+	/**
+	 * Returns the result of the calculation, or NaN if it failed.
+	 */
+	public double getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns the key of the error, as the message of {@link ExpressionInvalidException}, or {@code null} if the calculation succeeded.
+	 */
+	public String getErrorKey() {
+		return errorKey;
+	}
+
+	/**
+	 * Returns the 1-based position of the error in the expression, or -1 if there is none.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	public Object[] getMessageArguments() {
+		return messageArguments;
+	}
+
+	/**
+	 * Returns the exception that {@link CalculatorEngine#calculate(String, CalculationContext)} would have thrown, or {@code null} if the calculation succeeded.
+	 */
+	public ExpressionInvalidException toException() {
+		return isValid() ? null : new ExpressionInvalidException(errorKey, position, messageArguments);
+	}
+
+	@Override
+	public String toString() {
+		return isValid() ? Double.toString(value) : errorKey + " at " + position;
+	}
+}
@@ -1,32 +1,61 @@
 package cf.leduyquang753.calcit;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EmptyStackException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cf.leduyquang753.calcit.Operand.ClosingBrace;
 import cf.leduyquang753.calcit.Operand.OpeningBrace;
 
 public class CalculatorEngine {
 	private static Operand.DotlessMultiplication dotlessMulOp = new Operand.DotlessMultiplication();
-	private static HashMap<String, String> braceMap = new HashMap<String, String>();
+	private static HashMap<Character, Character> braceMap = new HashMap<Character, Character>();
 	private static final int positiveInfinity = 99999;
 	//private static final int negativeInfinity = -99999;
 
 	static {
-		braceMap.put("(", ")");
-		braceMap.put("{", "}");
-		braceMap.put("[", "]");
-		braceMap.put("<", ">");
+		braceMap.put('(', ')');
+		braceMap.put('{', '}');
+		braceMap.put('[', ']');
+		braceMap.put('<', '>');
 	}
 
-	private HashMap<String, Operand> operandMap = new HashMap<String, Operand>();
-	private HashMap<String, Double> variableMap = new HashMap<String, Double>();
-	private HashMap<String, Function> functionMap = new HashMap<String, Function>();
+	// The registries, only touched while holding the engine's lock. The parser reads the symbol table built from them instead, which is replaced as a whole so that calculations running on other threads always see a complete one.
+	private final Map<String, Operand> operandMap = new HashMap<String, Operand>();
+	private final Map<String, Function> functionMap = new HashMap<String, Function>();
+	private volatile SymbolTable symbols;
+
+	// Every variable name the engine has parsed gets a slot, which is its index in the variables of every context.
+	private final ConcurrentHashMap<String, Integer> variableSlots = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger variableSlotCount = new AtomicInteger();
+
+	/**
+	 * The most variable names the engine gives slots to. Slots are never taken back, since compiled expressions and contexts refer to them,
+	 * so once about this many names have been used, parsing an expression with another new one fails with {@code tooManyVariables}.
+	 */
+	public int maxVariables = 1 << 16;
+
+	/**
+	 * The cache of compiled expressions used by {@link #compile(String, CalculationContext)}, or {@code null} to parse every expression.
+	 * It is cleared when an operand or a function is registered.
+	 */
+	public ExpressionCache expressionCache = new ExpressionCache(1024, 1 << 20);
+
+	/**
+	 * Receives the time taken by parsing and evaluation, the calls to each function and operand and the errors, or {@code null}, the default, to measure nothing.
+	 * See {@link EngineMetrics}.
+	 */
+	public MetricsRecorder metrics = null;
 
 	// BEGIN SETTINGS VARIABLES
 	// You can set these values to change how the engine behaves.
+	// When calculating with a CalculationContext, the context's settings are used instead; these are only the values new contexts start with.
 	public boolean
 		decimalDot = false,
 		enforceDecimalSeparator = false,
@@ -38,9 +67,7 @@ public class CalculatorEngine {
 	public AngleUnit angleUnit = AngleUnit.DEGREE;
 	// END SETTINGS VALUES
 
-	private double
-		ans = 0,
-		preAns = 0;
+	private final CalculationContext defaultContext = new CalculationContext(this); // Used by the methods that take no context.
 
 	public CalculatorEngine() {
 		// Register every operand.
@@ -53,7 +80,7 @@ public class CalculatorEngine {
 			new Operand.Root(),
 			new Operand.OpeningBrace(),
 			new Operand.ClosingBrace()
-		}) registerOperand(operand);
+		}) putOperand(operand);
 
 		// Register every function.
 		for (Function function : new Function[] {
@@ -113,65 +140,112 @@ public class CalculatorEngine {
 			new Function.DayOfWeekMondayFirst(),
 			new Function.DayOfWeekSundayFirst(),
 			new Function.Time()
-		}) registerFunction(function);
+		}) putFunction(function);
+
+		symbols = new SymbolTable(operandMap, functionMap);
 	}
 
 	/**
 	 * Registers an operand to the engine. If there is a registered operand with some characters overlapping the operand being added, the one being will override.
 	 */
-	public void registerOperand(Operand op) {
+	public synchronized void registerOperand(Operand op) {
+		putOperand(op);
+		symbols = new SymbolTable(operandMap, functionMap);
+		clearCache();
+	}
+
+	private void putOperand(Operand op) {
 		for (String key : op.getCharacters()) operandMap.put(key, op);
 	}
 
 	/**
 	/* Registers a function to the engine. If there is a registered function with some names overlapping the operand being added, the one being will override.
 	*/
-	public void registerFunction(Function func) {
+	public synchronized void registerFunction(Function func) {
+		putFunction(func);
+		symbols = new SymbolTable(operandMap, functionMap);
+		clearCache();
+	}
+
+	private void putFunction(Function func) {
 		for (String key : func.getNames()) functionMap.put(lowercaseAndRemoveWhitespace(key), func);
 	}
 
-	private boolean isDigit(char c) {
+	private void clearCache() {
+		ExpressionCache cache = expressionCache;
+		if (cache != null) cache.clear();
+	}
+
+	/**
+	 * Returns the slot of a variable, giving it one if it has none. The name must be lowercase without whitespace.
+	 * @throws ExpressionInvalidException If the variable has no slot and {@link #maxVariables} names already have one.
+	 */
+	private int getVariableSlot(String name, int position) throws ExpressionInvalidException {
+		switch (name) {
+			case "ans": return CalculationContext.ANS;
+			case "preans": return CalculationContext.PREANS;
+		}
+		Integer slot = variableSlots.get(name);
+		if (slot != null) return slot;
+		if (variableSlots.size() >= maxVariables) throw new ExpressionInvalidException("tooManyVariables", position, new String[] { name });
+		return variableSlots.computeIfAbsent(name, key -> variableSlotCount.getAndIncrement());
+	}
+
+	/**
+	 * Returns the slot of a variable, or {@link Integer#MAX_VALUE} if no expression has used it, which no context has a value for.
+	 * The variables a compiled expression assigns always have a slot.
+	 */
+	int findVariableSlot(String name) {
+		switch (name) {
+			case "ans": return CalculationContext.ANS;
+			case "preans": return CalculationContext.PREANS;
+		}
+		Integer slot = variableSlots.get(name);
+		return slot == null ? Integer.MAX_VALUE : slot;
+	}
+
+	static boolean isDigit(char c) {
 		return c >= '0' && c <= '9';
 	}
 
-	private boolean isChar(char c) {
+	static boolean isChar(char c) {
 		return Character.isAlphabetic(c) || c == '_';
 	}
 
-	private boolean areBracesMatch(String opening, String closing) {
-		return braceMap.get(opening).equals(closing);
+	private boolean areBracesMatch(char opening, char closing) {
+		return braceMap.get(opening) == closing;
 	}
 
 	private void performBacktrackCalculation(CalculationStatus calculationStatus, boolean shouldCalculateAll) throws ExpressionInvalidException {
 		if (calculationStatus.OS.isEmpty()) return;
 		Operand currentOperand = calculationStatus.OS.pop();
-		double currentNumber = calculationStatus.NS.pop();
+		Node currentNumber = calculationStatus.NS.pop();
 		int lastPriority = positiveInfinity;
 		while (shouldCalculateAll || !(currentOperand instanceof OpeningBrace)) {
 			if (shouldCalculateAll && currentOperand instanceof OpeningBrace) {
-				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 				lastPriority = positiveInfinity;
 				if (!calculationStatus.OS.isEmpty()) currentOperand = calculationStatus.OS.pop(); else {
-					while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+					while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 					calculationStatus.NS.push(currentNumber);
 					return;
 				}
 			}
 			if (currentOperand.getPriority() != lastPriority)
-				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
-			if (currentOperand.isReversed()) currentNumber = currentOperand.calculate(calculationStatus.NS.pop(), currentNumber, this); else {
+				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
+			if (currentOperand.isReversed()) currentNumber = calculationStatus.made(new Node.Binary(currentOperand, calculationStatus.NS.pop(), currentNumber)); else {
 				calculationStatus.TNS.push(currentNumber);
 				calculationStatus.TOS.push(currentOperand);
 				currentNumber = calculationStatus.NS.pop();
 			}
 			lastPriority = currentOperand.getPriority();
 			if (!calculationStatus.OS.isEmpty()) currentOperand = calculationStatus.OS.pop(); else {
-				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 				calculationStatus.NS.push(currentNumber);
 				return;
 			}
 		}
-		while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+		while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 		calculationStatus.NS.push(currentNumber);
 		calculationStatus.OS.push(currentOperand);
 	}
@@ -179,73 +253,137 @@ public class CalculatorEngine {
 	private void performBacktrackSameLevelCalculation(CalculationStatus calculationStatus) throws ExpressionInvalidException {
 		if (calculationStatus.OS.isEmpty()) return;
 		Operand currentOperand = calculationStatus.OS.pop();
-		double currentNumber = calculationStatus.NS.pop();
+		Node currentNumber = calculationStatus.NS.pop();
 		int lastPriority = currentOperand.getPriority();
 		while (!(currentOperand instanceof OpeningBrace)) {
 			if (currentOperand.getPriority() != lastPriority) {
-				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 				calculationStatus.NS.push(currentNumber);
 				calculationStatus.OS.push(currentOperand);
 				return;
 			}
-			if (currentOperand.isReversed()) currentNumber = currentOperand.calculate(calculationStatus.NS.pop(), currentNumber, this); else {
+			if (currentOperand.isReversed()) currentNumber = calculationStatus.made(new Node.Binary(currentOperand, calculationStatus.NS.pop(), currentNumber)); else {
 				calculationStatus.TNS.push(currentNumber);
 				calculationStatus.TOS.push(currentOperand);
 				currentNumber = calculationStatus.NS.pop();
 			}
 			lastPriority = currentOperand.getPriority();
 			if (!calculationStatus.OS.isEmpty()) currentOperand = calculationStatus.OS.pop(); else {
-				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+				while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 				calculationStatus.NS.push(currentNumber);
 				return;
 			}
 		}
-		while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.TOS.pop().calculate(currentNumber, calculationStatus.TNS.pop(), this);
+		while (!calculationStatus.TOS.isEmpty()) currentNumber = calculationStatus.made(new Node.Binary(calculationStatus.TOS.pop(), currentNumber, calculationStatus.TNS.pop()));
 		calculationStatus.NS.push(currentNumber);
 		calculationStatus.OS.push(currentOperand);
 	}
 
-	private double processNumberToken(CalculationStatus calculationStatus, int position) throws ExpressionInvalidException {
-		boolean percent = false;
-		if (calculationStatus.currentToken.charAt(calculationStatus.currentToken.length()-1) == '%') {
-			percent = true;
-			calculationStatus.currentToken = calculationStatus.currentToken.substring(0, calculationStatus.currentToken.length()-1);
-		}
-		double result;
-		if (calculationStatus.isVariable) result = getVariableInternal(calculationStatus.currentToken, position); else {
-			calculationStatus.currentToken = calculationStatus.currentToken.replace(",", ".");
-			result = Double.parseDouble(calculationStatus.currentToken);
+	private Node processNumberToken(CalculationStatus calculationStatus, int position) throws ExpressionInvalidException {
+		boolean percent = calculationStatus.lastTokenChar == '%';
+		int tokenEnd = percent ? calculationStatus.tokenEnd - 1 : calculationStatus.tokenEnd;
+		Node result;
+		ValidationResult validation = calculationStatus.validation;
+		if (calculationStatus.isVariable) {
+			String name = calculationStatus.getName(tokenEnd);
+			if (validation != null) validation.addVariable(name);
+			result = new Node.Variable(name, validation == null ? getVariableSlot(name, position) : findVariableSlot(name), position); // Validating gives no slot to a new variable.
+			if (percent) result = new Node.Percent(result);
+		} else {
+			CalculationContext settings = calculationStatus.settings;
+			// When validating, the token may span characters skipped as invalid, which are left out of the literal.
+			CharSequence literal = validation == null ? calculationStatus.input : calculationStatus.getName(tokenEnd);
+			int start = validation == null ? calculationStatus.tokenStart : 0, end = validation == null ? tokenEnd : literal.length();
+			double value;
+			try {
+				value = NumberParser.parse(literal, start, end, settings.thousandDot, settings.decimalDot ? '.' : ',');
+			} catch (NumberFormatException e) { // The tokenizer should have rejected the literal.
+				ExpressionInvalidException error = new ExpressionInvalidException("unexpectedDecimalSeparator", calculationStatus.tokenStart + 1);
+				if (validation == null) throw error;
+				validation.addError(error);
+				value = 0;
+			}
+			if (percent) value /= 100;
+			result = new Node.Constant(value);
 		}
-		if (percent) result /= 100;
 		if (calculationStatus.negativity) {
-			calculationStatus.NS.push(-1d);
-			calculationStatus.OS.push(dotlessMulOp);
+			calculationStatus.NS.push(new Node.Constant(-1));
+			calculationStatus.pushOperand(dotlessMulOp);
 		}
 		calculationStatus.negativity = false;
 		calculationStatus.hadNegation = false;
 		calculationStatus.hadComma = false;
-		calculationStatus.currentToken = "";
-		return result;
+		calculationStatus.clearToken();
+		return calculationStatus.made(result);
 	}
 
-	private boolean isDecimalSeparator(char c) {
-		return decimalDot ? enforceDecimalSeparator ? c == '.' : c == '.' || c == ',' : c == ',';
+	private boolean isDecimalSeparator(char c, CalculationContext settings) {
+		return settings.decimalDot ? settings.enforceDecimalSeparator ? c == '.' : c == '.' || c == ',' : c == ',';
 	}
 
-	private double performCalculation(String input) throws ExpressionInvalidException {
-		try {
-			CalculationStatus calculationStatus = new CalculationStatus();
-			Stack<Bracelet> BS = new Stack<Bracelet>();
-			boolean
-				status = false, // true: previous was number/closing brace; false: previous was operand/opening brace.
-				hadClosingBrace = false,
-				hadPercent = false;
-			char thousandSeparator = decimalDot ? '.' : ',';
-			Operand currentOperand;
-			Function currentFunction;
-			Bracelet currentBracelet;
-			for (int i = 0; i < input.length(); i++) {
-				char c = input.charAt(i);
+	private void parseExpression(CalculationStatus calculationStatus, ParseCheckpoints checkpoints) throws ExpressionInvalidException {
+		parseCharacters(calculationStatus, checkpoints);
+		calculationStatus.result = finishParsing(calculationStatus);
+	}
+
+	/**
+	 * Returns a copy of the last state saved before the first character of the input that differs from the previously parsed one, or a new state if there is none, and forgets the states after it.
+	 */
+	private CalculationStatus resume(ParseCheckpoints checkpoints, String input, CalculationContext settings) {
+		List<CalculationStatus> states = checkpoints.states;
+		int fingerprint = ExpressionCache.fingerprint(settings);
+		if (checkpoints.symbols != symbols || checkpoints.settings != fingerprint) {
+			states.clear();
+			checkpoints.symbols = symbols;
+			checkpoints.settings = fingerprint;
+		}
+		String previous = checkpoints.input;
+		int common = 0, limit = Math.min(previous.length(), input.length());
+		while (common < limit && previous.charAt(common) == input.charAt(common)) common++;
+		int count = states.size();
+		while (count > 0 && states.get(count - 1).position > common) count--;
+		states.subList(count, states.size()).clear();
+		checkpoints.input = input;
+		if (count == 0) {
+			checkpoints.resumedAt = 0;
+			return new CalculationStatus(input, settings);
+		}
+		CalculationStatus state = states.get(count - 1);
+		checkpoints.resumedAt = state.position;
+		return state.copy(input, settings);
+	}
+
+	/**
+	 * Reads the characters of the input from the position of the state on. If checkpoints are given, a copy of the state is saved to them after each token.
+	 * When validating, an invalid character is reported and skipped instead of thrown.
+	 */
+	private void parseCharacters(CalculationStatus calculationStatus, ParseCheckpoints checkpoints) throws ExpressionInvalidException {
+		String input = calculationStatus.input;
+		CalculationContext settings = calculationStatus.settings;
+		SymbolTable symbols = this.symbols;
+		ParseStack<Bracelet> BS = calculationStatus.BS;
+		boolean
+			status = calculationStatus.status, // true: previous was number/closing brace; false: previous was operand/opening brace.
+			hadClosingBrace = calculationStatus.hadClosingBrace,
+			hadPercent = calculationStatus.hadPercent;
+		boolean
+			thousandDot = settings.thousandDot,
+			mulAsterisk = settings.mulAsterisk,
+			enforceMulDiv = settings.enforceMulDiv;
+		char thousandSeparator = settings.decimalDot ? '.' : ',';
+		EvaluationBudget budget = calculationStatus.budget;
+		ValidationResult validation = calculationStatus.validation;
+		CalculationStatus saved = null;
+		Operand currentOperand;
+		Function currentFunction;
+		for (int i = calculationStatus.position; i < input.length(); i++) {
+			if (budget != null && (i & 255) == 0) budget.check();
+			char c = input.charAt(i);
+			if (validation != null) { // Saved to go on as if the character were not there if it is invalid.
+				calculationStatus.setFlags(status, hadClosingBrace, hadPercent);
+				saved = calculationStatus.copy(i);
+			}
+			try {
 				if (thousandDot && c == thousandSeparator) {
 					if (status && !calculationStatus.isVariable) continue; else throw new ExpressionInvalidException("unexpectedThousandSeparator", i+1);
 				} else if (c == '-' && !status) {
@@ -254,113 +392,119 @@ public class CalculatorEngine {
 				} else if (c == '%') {
 					if (hadPercent) throw new ExpressionInvalidException("unexpectedPercent", i + 1);
 					if (hadClosingBrace) {
-						calculationStatus.NS.push(calculationStatus.NS.pop() / 100d);
+						calculationStatus.NS.push(calculationStatus.made(new Node.Percent(calculationStatus.NS.pop())));
 						hadPercent = true;
-					} else if (!status || calculationStatus.currentToken.charAt(calculationStatus.currentToken.length() - 1) == '%') throw new ExpressionInvalidException("unexpectedPercent", i+1); else calculationStatus.currentToken += c;
+					} else if (!status || calculationStatus.lastTokenChar == '%') throw new ExpressionInvalidException("unexpectedPercent", i+1); else calculationStatus.appendToken(i);
 				} else if (c == ';') {
 					if (!BS.isEmpty()) {
 						if (status) {
-							if (calculationStatus.currentToken.length() != 0) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
+							if (calculationStatus.hasToken()) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
 							performBacktrackCalculation(calculationStatus, false);
-							BS.peek().addArgument(calculationStatus.NS.pop());
+							BS.push(BS.pop().withArgument(calculationStatus.NS.pop()));
 							status = false;
 							hadClosingBrace = false;
 							hadPercent = false;
 						} else if (calculationStatus.OS.peek() instanceof OpeningBrace) {
-							BS.peek().addArgument(0);
+							BS.push(BS.pop().withArgument(new Node.Constant(0)));
 							status = false;
 							hadClosingBrace = false;
 							hadPercent = false;
 						} else throw new ExpressionInvalidException("unexpectedSemicolon", i+1);
 					} else throw new ExpressionInvalidException("unexpectedSemicolon", i+1);
-				} else if (isDecimalSeparator(c)) {
-					if (calculationStatus.currentToken.length() == 0) {
+				} else if (isDecimalSeparator(c, settings)) {
+					if (!calculationStatus.hasToken()) {
 						if (hadClosingBrace) {
 							while (!calculationStatus.OS.isEmpty() && dotlessMulOp.getPriority() < calculationStatus.OS.peek().getPriority()) performBacktrackSameLevelCalculation(calculationStatus);
-							calculationStatus.OS.push(dotlessMulOp);
+							calculationStatus.pushOperand(dotlessMulOp);
 							hadClosingBrace = false;
 						}
-						calculationStatus.currentToken = "0,";
+						calculationStatus.startToken(i);
 						status = true;
 						calculationStatus.isVariable = false;
 						calculationStatus.hadComma = true;
 						hadPercent = false;
 					} else if (status) {
-						if (calculationStatus.isVariable || calculationStatus.hadComma) throw new ExpressionInvalidException("unexpectedDecimalSeparator", i+1);
-						calculationStatus.currentToken += c;
+						if (calculationStatus.isVariable || calculationStatus.hadComma || calculationStatus.lastTokenChar == '%') throw new ExpressionInvalidException("unexpectedDecimalSeparator", i+1);
+						calculationStatus.appendToken(i);
 						calculationStatus.hadComma = true;
 						hadPercent = false;
 					} else { };
 				} else if (isDigit(c)) {
-					if (calculationStatus.currentToken.length() == 0) {
+					if (!calculationStatus.hasToken()) {
 						if (hadClosingBrace) {
 							while (!calculationStatus.OS.isEmpty() && dotlessMulOp.getPriority() < calculationStatus.OS.peek().getPriority()) performBacktrackSameLevelCalculation(calculationStatus);
-							calculationStatus.OS.push(dotlessMulOp);
+							calculationStatus.pushOperand(dotlessMulOp);
 							hadClosingBrace = false;
 						}
-						calculationStatus.currentToken = Character.toString(c);
+						calculationStatus.startToken(i);
 						status = true;
 						calculationStatus.isVariable = false;
 						hadPercent = false;
 					} else if (status) {
-						if (calculationStatus.isVariable) calculationStatus.currentToken += c;
-						else if (calculationStatus.currentToken.charAt(calculationStatus.currentToken.length() - 1) == '%') throw new ExpressionInvalidException("unexpectedDigit", i+1);
-						else calculationStatus.currentToken += c;
+						if (calculationStatus.isVariable) calculationStatus.appendToken(i);
+						else if (calculationStatus.lastTokenChar == '%') throw new ExpressionInvalidException("unexpectedDigit", i+1);
+						else calculationStatus.appendToken(i);
 					} else {
-						calculationStatus.currentToken = Character.toString(c);
+						calculationStatus.startToken(i);
 						status = true;
 						calculationStatus.isVariable = false;
 						hadPercent = false;
 					}
 				} else if (isChar(c)) {
-					if (hadClosingBrace || calculationStatus.currentToken.length() != 0 && !calculationStatus.isVariable) {
-						if (calculationStatus.currentToken.length() != 0 && !calculationStatus.isVariable) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
+					if (hadClosingBrace || calculationStatus.hasToken() && !calculationStatus.isVariable) {
+						if (calculationStatus.hasToken() && !calculationStatus.isVariable) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
 						while (!calculationStatus.OS.isEmpty() && dotlessMulOp.getPriority() < calculationStatus.OS.peek().getPriority()) performBacktrackSameLevelCalculation(calculationStatus);
-						calculationStatus.OS.push(dotlessMulOp);
+						calculationStatus.pushOperand(dotlessMulOp);
 						hadClosingBrace = false;
 					}
-					calculationStatus.currentToken += c;
+					calculationStatus.appendToken(i);
 					calculationStatus.isVariable = true;
 					status = true;
 					hadClosingBrace = false;
 					hadPercent = false;
-				} else if ((currentOperand = operandMap.get(Character.toString(c))) == null) throw new ExpressionInvalidException("unknownSymbol", i+1);
+				} else if ((currentOperand = symbols.getOperand(c)) == null) throw new ExpressionInvalidException("unknownSymbol", i+1);
 				else {
 					if (currentOperand instanceof OpeningBrace) {
-						if (hadClosingBrace || calculationStatus.currentToken.length() != 0 && !calculationStatus.isVariable) {
-							if (calculationStatus.currentToken.length() != 0 && !calculationStatus.isVariable) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
+						if (hadClosingBrace || calculationStatus.hasToken() && !calculationStatus.isVariable) {
+							if (calculationStatus.hasToken() && !calculationStatus.isVariable) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
 							while (!calculationStatus.OS.isEmpty() && dotlessMulOp.getPriority() < calculationStatus.OS.peek().getPriority()) performBacktrackSameLevelCalculation(calculationStatus);
-							calculationStatus.OS.push(dotlessMulOp);
+							calculationStatus.pushOperand(dotlessMulOp);
 							hadClosingBrace = false;
 						}
-						if ((currentFunction = functionMap.get(calculationStatus.currentToken)) == null) throw new ExpressionInvalidException("unknownFunction", i, new String[] { calculationStatus.currentToken });
-						calculationStatus.OS.push(currentOperand);
-						BS.push(new Bracelet(Character.toString(c), currentFunction, this));
+						if ((currentFunction = calculationStatus.findFunction(symbols)) == null) {
+							ExpressionInvalidException e = new ExpressionInvalidException("unknownFunction", i, new String[] { calculationStatus.getToken() });
+							if (validation == null) throw e;
+							validation.addError(e);
+							currentFunction = symbols.getFunction(input, i, i); // Go on with plain braces.
+						} else if (validation != null) validation.addFunction(currentFunction);
+						calculationStatus.pushOperand(currentOperand);
+						calculationStatus.openBrace();
+						BS.push(new Bracelet(c, currentFunction));
 						status = false;
 						hadPercent = false;
-						calculationStatus.currentToken = "";
+						calculationStatus.clearToken();
 					} else if (currentOperand instanceof ClosingBrace) {
 						if (status) if (BS.isEmpty()) throw new ExpressionInvalidException("unexpectedClosingBrace", i + 1);
-							else if (areBracesMatch(BS.peek().opening, Character.toString(c))) {
-								if (calculationStatus.currentToken.length() != 0) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
+							else if (areBracesMatch(BS.peek().opening, c)) {
+								if (calculationStatus.hasToken()) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
 								performBacktrackCalculation(calculationStatus, false);
 								calculationStatus.OS.pop();
-								(currentBracelet = BS.pop()).addArgument(calculationStatus.NS.pop());
-								calculationStatus.NS.push(currentBracelet.getResult());
+								calculationStatus.NS.push(calculationStatus.made(BS.pop().withArgument(calculationStatus.NS.pop()).getResult()));
+								calculationStatus.depth--;
 								status = true;
 								hadClosingBrace = true;
 								hadPercent = false;
 							} else throw new ExpressionInvalidException("unmatchingBraces", i + 1);
 						else if (calculationStatus.OS.isEmpty()) {
-							calculationStatus.NS.push(0d);
+							calculationStatus.NS.push(new Node.Constant(0));
 							status = true;
 							hadClosingBrace = true;
 							hadPercent = false;
 						} else if (calculationStatus.OS.peek() instanceof OpeningBrace) {
-							if (!BS.isEmpty() && !areBracesMatch(BS.peek().opening, Character.toString(c))) throw new ExpressionInvalidException("unmatchingBraces", i + 1);
+							if (!BS.isEmpty() && !areBracesMatch(BS.peek().opening, c)) throw new ExpressionInvalidException("unmatchingBraces", i + 1);
 							calculationStatus.OS.pop();
-							(currentBracelet = BS.pop()).addArgument(0);
-							calculationStatus.NS.push(currentBracelet.getResult());
+							calculationStatus.NS.push(calculationStatus.made(BS.pop().withArgument(new Node.Constant(0)).getResult()));
+							calculationStatus.depth--;
 							status = true;
 							hadClosingBrace = true;
 							hadPercent = false;
@@ -377,136 +521,614 @@ public class CalculatorEngine {
 										if (!mulAsterisk) throw new ExpressionInvalidException("unknownSymbol", i+1);
 										break;
 								}
-							if (calculationStatus.currentToken.length() != 0) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
+							if (calculationStatus.hasToken()) calculationStatus.NS.push(processNumberToken(calculationStatus, i));
 							else if (calculationStatus.hadNegation) throw new ExpressionInvalidException("unexpectedOperand", i);
 							while (!calculationStatus.OS.isEmpty() && currentOperand.getPriority() < calculationStatus.OS.peek().getPriority()) performBacktrackSameLevelCalculation(calculationStatus);
-							calculationStatus.OS.push(currentOperand);
+							calculationStatus.pushOperand(currentOperand);
 							status = false;
 							hadClosingBrace = false;
 							hadPercent = false;
 						} else if (c == '+') calculationStatus.hadNegation = true; else throw new ExpressionInvalidException("unexpectedOperand", i+1);
 					}
 				}
+			} catch (ExpressionInvalidException e) {
+				if (validation == null) throw e;
+				validation.addError(e);
+				calculationStatus.skipped.set(i);
+				calculationStatus.restore(saved);
+				BS = calculationStatus.BS;
+				status = saved.status;
+				hadClosingBrace = saved.hadClosingBrace;
+				hadPercent = saved.hadPercent;
 			}
-			if (status) {
-				if (calculationStatus.currentToken.length() != 0) calculationStatus.NS.push(processNumberToken(calculationStatus, input.length()));
-				else if (calculationStatus.hadNegation) throw new ExpressionInvalidException("trailingSign");
-				else { };
-			} else throw new ExpressionInvalidException("unexpectedEnd");
-			while (!BS.isEmpty()) {
-				performBacktrackCalculation(calculationStatus, false);
-				currentBracelet = BS.pop();
-				currentBracelet.addArgument(calculationStatus.NS.pop());
-				calculationStatus.NS.push(currentBracelet.getResult());
+			if (checkpoints != null && !calculationStatus.hasToken()) {
+				calculationStatus.setFlags(status, hadClosingBrace, hadPercent);
+				checkpoints.states.add(calculationStatus.copy(i + 1));
 			}
-			performBacktrackCalculation(calculationStatus, true);
-			return calculationStatus.NS.pop();
-		} catch (ArithmeticException e) {
-			throw new ExpressionInvalidException("numberOutOfRange");
 		}
+		calculationStatus.setFlags(status, hadClosingBrace, hadPercent);
 	}
 
-	private String lowercaseAndRemoveWhitespace(String stringIn) {
-		return stringIn.replace(" ", "").replace("\t", "").replace("\n", "").toLowerCase();
+	/**
+	 * Completes the expression after its last character has been read.
+	 */
+	private Node finishParsing(CalculationStatus calculationStatus) throws ExpressionInvalidException {
+		finishToken(calculationStatus);
+		try {
+			checkOpenBraces(calculationStatus);
+		} catch (ExpressionInvalidException e) {
+			// The engine used to take the inner brace as an operator and fail when calculating it, after what comes before it, so the nodes before it are still made.
+			try {
+				closeBraces(calculationStatus);
+			} catch (RuntimeException ignored) {}
+			throw e;
+		}
+		return closeBraces(calculationStatus);
 	}
 
-	public double calculate(String expression) throws ExpressionInvalidException {
-		String trimmedExpression = lowercaseAndRemoveWhitespace(expression);
+	private Node closeBraces(CalculationStatus calculationStatus) throws ExpressionInvalidException {
+		ParseStack<Bracelet> BS = calculationStatus.BS;
+		while (!BS.isEmpty()) {
+			performBacktrackCalculation(calculationStatus, false);
+			calculationStatus.NS.push(calculationStatus.made(BS.pop().withArgument(calculationStatus.NS.pop()).getResult()));
+		}
+		performBacktrackCalculation(calculationStatus, true);
+		return calculationStatus.NS.pop();
+	}
+
+	/**
+	 * Checks the end of the expression and pushes its last number, if any.
+	 */
+	private void finishToken(CalculationStatus calculationStatus) throws ExpressionInvalidException {
+		if (calculationStatus.status) {
+			if (calculationStatus.hasToken()) calculationStatus.NS.push(processNumberToken(calculationStatus, calculationStatus.input.length()));
+			else if (calculationStatus.hadNegation) throw new ExpressionInvalidException("trailingSign");
+			else { };
+		} else throw new ExpressionInvalidException("unexpectedEnd");
+	}
+
+	/**
+	 * Fails if two braces left open are next to each other, as in {@code 2*((3}: the inner one would be taken as an operator when finishing.
+	 * Closing the braces left open only takes the operators above the last one, so this can be checked before.
+	 */
+	private static void checkOpenBraces(CalculationStatus calculationStatus) throws ExpressionInvalidException {
+		boolean afterBrace = false;
+		for (Cell<Operand> cell = calculationStatus.OS.top; cell != null; cell = cell.next) {
+			boolean brace = cell.value instanceof OpeningBrace;
+			if (brace && afterBrace) throw new ExpressionInvalidException("braceInvolved");
+			afterBrace = brace;
+		}
+	}
+
+	static String lowercaseAndRemoveWhitespace(String stringIn) {
+		return NormalizedExpression.of(stringIn).getText();
+	}
+
+	/**
+	 * Parses an expression once so that it can be evaluated many times without parsing it again.
+	 * The settings of the engine are read at this point; changing them afterwards does not affect the returned expression.
+	 */
+	public CompiledExpression compile(String expression) throws ExpressionInvalidException {
+		return compile(expression, getDefaultContext());
+	}
+
+	/**
+	 * Parses an expression using the settings of the given context. The returned expression can be evaluated with any context.
+	 * Syntax errors are thrown here and evaluation errors when evaluating, so for an expression with several errors this may report another one than {@link #calculate(String, CalculationContext)}, which reports the one met first from left to right.
+	 */
+	public CompiledExpression compile(String expression, CalculationContext context) throws ExpressionInvalidException {
+		return compile(expression, context, false);
+	}
+
+	/**
+	 * Parses an expression through the cache. If {@code firstError} is set, a syntax error is only thrown if no operation before it fails, as in {@link #calculate(String, CalculationContext)}.
+	 */
+	private CompiledExpression compile(String expression, CalculationContext context, boolean firstError) throws ExpressionInvalidException {
+		checkBudget(expression, context);
+		ExpressionCache cache = expressionCache;
+		if (cache == null) return parse(NormalizedExpression.of(expression), context, null, firstError);
+		// An expression that is already normalized is looked up as it is, so that a hit allocates nothing.
+		NormalizedExpression source = NormalizedExpression.isNormalized(expression) ? null : NormalizedExpression.of(expression);
+		String trimmedExpression = source == null ? expression : source.getText();
+		int settings = ExpressionCache.fingerprint(context);
+		CompiledExpression result = cache.get(trimmedExpression, settings);
+		if (result != null) {
+			if (source != null || !result.hasOriginal(expression)) result = result.withSource(source != null ? source : NormalizedExpression.of(expression));
+			if (context.budget != null) try {
+				result.checkSize(context.budget); // It may have been parsed without the budget.
+			} catch (ExpressionInvalidException e) {
+				throw recordError(e);
+			}
+			return result;
+		}
+		long generation = cache.getGeneration();
+		result = parse(source != null ? source : NormalizedExpression.of(expression), context, null, firstError);
+		if (result.getRoot() != null) cache.put(trimmedExpression, settings, result, generation); // The clearing form depends on the exact text, so it is not cached.
+		return result;
+	}
+
+	/**
+	 * Parses an expression without the cache, resuming from the states saved while parsing the previous expression with the same checkpoints.
+	 */
+	CompiledExpression compile(String expression, CalculationContext context, ParseCheckpoints checkpoints) throws ExpressionInvalidException {
+		checkBudget(expression, context);
+		return parse(NormalizedExpression.of(expression), context, checkpoints, false);
+	}
+
+	/**
+	 * Checks the time and the length of the expression against the budget of the context, before parsing it or taking it from the cache.
+	 */
+	private void checkBudget(String expression, CalculationContext context) throws ExpressionInvalidException {
+		EvaluationBudget budget = context.budget;
+		if (budget == null) return;
+		try {
+			budget.check();
+			budget.checkInputLength(expression.length());
+		} catch (ExpressionInvalidException e) {
+			throw recordError(e);
+		}
+	}
+
+	private ExpressionInvalidException recordError(ExpressionInvalidException e) {
+		MetricsRecorder metrics = this.metrics;
+		if (metrics != null) metrics.recordError(e.getMessage());
+		return e;
+	}
+
+	private CompiledExpression parse(NormalizedExpression source, CalculationContext context, ParseCheckpoints checkpoints, boolean firstError) throws ExpressionInvalidException {
+		MetricsRecorder metrics = this.metrics;
+		if (metrics == null) return parseUnmeasured(source, context, checkpoints, firstError);
+		long start = System.nanoTime();
+		try {
+			return parseUnmeasured(source, context, checkpoints, firstError);
+		} catch (ExpressionInvalidException e) {
+			metrics.recordError(e.getMessage());
+			throw e;
+		} finally {
+			metrics.recordParse(System.nanoTime() - start);
+		}
+	}
+
+	private CompiledExpression parseUnmeasured(NormalizedExpression source, CalculationContext context, ParseCheckpoints checkpoints, boolean firstError) throws ExpressionInvalidException {
+		String trimmedExpression = source.getText();
 		List<String> toAssign = new ArrayList<String>();
+		List<ExpressionInvalidException> errors = new ArrayList<ExpressionInvalidException>();
+		int position = readAssignments(source, toAssign, errors);
+		if (!errors.isEmpty()) throw errors.get(0);
+		int assignmentEnd = -1;
+		for (String name : toAssign) getVariableSlot(name, source.toOriginalPosition(assignmentEnd += name.length() + 1));
+		if (position != 0) trimmedExpression = trimmedExpression.substring(position);
+		if (trimmedExpression.length() == 0) throw new ExpressionInvalidException("nothingToCalculate", source.toOriginalPosition(position));
+		String[] variables = toAssign.toArray(new String[toAssign.size()]);
+		if (trimmedExpression == "!") return new CompiledExpression(this, source, position, variables, null, new Node[0], 0, 0);
+		CalculationStatus parsed = checkpoints == null ? new CalculationStatus(trimmedExpression, context) : resume(checkpoints, trimmedExpression, context);
+		try {
+			parseExpression(parsed, checkpoints);
+			Node root = Optimizer.fold(parsed.result, context);
+			if (checkpoints == null) return new CompiledExpression(this, source, position, variables, root, parsed.getMadeNodes(), parsed.operationCount, parsed.maxDepth);
+			return new CompiledExpression(this, source, position, variables, root, Program.compile(root, false), parsed.getMadeNodes(), parsed.operationCount, parsed.maxDepth); // An expression being edited is rarely evaluated more than once.
+		} catch (ExpressionInvalidException e) {
+			ExpressionInvalidException error = positionException(e, source, position);
+			throw firstError ? findFirstError(parsed.getMadeNodes(), context, error, source, position) : error;
+		}
+	}
+
+	/**
+	 * Reads the variables assigned at the start of the expression, adding the errors of those that cannot be assigned to the list, and returns the index of the part to calculate.
+	 */
+	private static int readAssignments(NormalizedExpression source, List<String> toAssign, List<ExpressionInvalidException> errors) {
+		String trimmedExpression = source.getText();
 		int ps;
 		int position = 0;
-		mainLoop: while (true) {
-			switch (ps = trimmedExpression.indexOf('=')) {
-				case -1: break mainLoop;
-				case 0: throw new ExpressionInvalidException("unexpectedEqual", Utils.getIndexWithWhitespace(expression, position+1));
-				default:
-					String s = trimmedExpression.substring(0, ps);
-					if (s == "ans" || s == "preAns") throw new ExpressionInvalidException("reservedVariable", Utils.getIndexWithWhitespace(expression, position + ps));
-					if (isDigit(s.charAt(0))) throw new ExpressionInvalidException("invalidVariable", Utils.getIndexWithWhitespace(expression, position + ps), new String[] { s }); 
-					for (char c : s.toCharArray()) if (!isChar(c) && !isDigit(c)) throw new ExpressionInvalidException("nonAlphanumericVariableName", Utils.getIndexWithWhitespace(expression, position + ps), new String[] { s });
-					toAssign.add(s);
-					break;
+		while ((ps = trimmedExpression.indexOf('=', position)) != -1) {
+			String s = trimmedExpression.substring(position, ps);
+			ExpressionInvalidException error = checkAssignedVariable(s, source, position, ps);
+			if (error == null) toAssign.add(s); else errors.add(error);
+			position = ps + 1;
+		}
+		return position;
+	}
+
+	private static ExpressionInvalidException checkAssignedVariable(String s, NormalizedExpression source, int position, int ps) {
+		if (ps == position) return new ExpressionInvalidException("unexpectedEqual", source.toOriginalPosition(position + 1));
+		if (s == "ans" || s == "preAns") return new ExpressionInvalidException("reservedVariable", source.toOriginalPosition(ps));
+		if (isDigit(s.charAt(0))) return new ExpressionInvalidException("invalidVariable", source.toOriginalPosition(ps), new String[] { s });
+		for (int i = 0; i < s.length(); i++) if (!isChar(s.charAt(i)) && !isDigit(s.charAt(i))) return new ExpressionInvalidException("nonAlphanumericVariableName", source.toOriginalPosition(ps), new String[] { s });
+		return null;
+	}
+
+	public ValidationResult validate(String expression) {
+		return validate(expression, getDefaultContext());
+	}
+
+	/**
+	 * Checks the syntax of an expression with the settings of the given context, reporting every error instead of stopping at the first: after an invalid character, reading goes on as if it were not there.
+	 * Nothing is evaluated and nothing changes: not the context, the cache, the variables known to the engine nor the metrics. The time is linear in the length of the expression, and the budget of the context does not apply.
+	 */
+	public ValidationResult validate(String expression, CalculationContext context) {
+		NormalizedExpression source = NormalizedExpression.of(expression);
+		ValidationResult result = new ValidationResult();
+		int position = readAssignments(source, result.variablesToAssign, result.errors);
+		String trimmedExpression = source.getText();
+		if (position != 0) trimmedExpression = trimmedExpression.substring(position);
+		if (trimmedExpression.length() == 0) result.addError(new ExpressionInvalidException("nothingToCalculate", source.toOriginalPosition(position)));
+		else if (trimmedExpression != "!") {
+			CalculationStatus calculationStatus = new CalculationStatus(trimmedExpression, context);
+			calculationStatus.budget = null;
+			calculationStatus.validation = result;
+			calculationStatus.skipped = new BitSet(trimmedExpression.length());
+			int first = result.errors.size();
+			try {
+				parseCharacters(calculationStatus, null);
+				finishToken(calculationStatus);
+				checkOpenBraces(calculationStatus); // The rest of finishing only builds the tree, which is not needed.
+			} catch (ExpressionInvalidException e) {
+				result.addError(e); // The end of the expression is invalid.
 			}
-			trimmedExpression = trimmedExpression.substring(ps + 1);
-			position += ps + 1;
+			for (int i = first; i < result.errors.size(); i++) result.errors.set(i, positionException(result.errors.get(i), source, position));
 		}
-		if (trimmedExpression.length() == 0) throw new ExpressionInvalidException("nothingToCalculate", Utils.getIndexWithWhitespace(expression, position));
-		if (trimmedExpression == "!") {
-			for (String s : toAssign) variableMap.remove(s);
-			preAns = ans;
-			ans = 0;
-			return 0;
+		return result;
+	}
+
+	public double calculate(String expression) throws ExpressionInvalidException {
+		return calculate(expression, getDefaultContext());
+	}
+
+	/**
+	 * Calculates an expression using the settings, answer history and variables of the given context.
+	 * This does not change the engine, so many threads can calculate with one engine as long as each uses its own context.
+	 */
+	public double calculate(String expression, CalculationContext context) throws ExpressionInvalidException {
+		CompiledExpression compiled = compile(expression, context, true);
+		try {
+			return compiled.evaluate(context);
+		} catch (ExpressionInvalidException e) {
+			throw compiled.findFirstError(context, e);
 		}
-		double oldAns = ans;
+	}
+
+	/**
+	 * Returns the error met first from left to right, as when the engine calculated while parsing: an operation failing before a syntax error further right, and the variables read in the order they are written.
+	 * Compiling finds every syntax error before evaluating, so once an expression has failed the nodes the parser made are calculated again in the order it made them, each from the values of its children.
+	 * The given error is returned if none of them fails, and the errors of the budget are returned as they are.
+	 */
+	static ExpressionInvalidException findFirstError(Node[] madeNodes, CalculationContext context, ExpressionInvalidException error, NormalizedExpression source, int position) {
+		if (EvaluationBudget.isLimitError(error)) return error;
+		Map<Node, Double> values = new IdentityHashMap<Node, Double>();
 		try {
-			ans = performCalculation(trimmedExpression);
-		} catch (ExpressionInvalidException e) { // Handle and rethrow the exception to properly position the error in the expression with whitespace.
-			throw new ExpressionInvalidException(e.getMessage(), position + Utils.getIndexWithWhitespace(expression, position + e.getPosition()), e.getMessageArguments());
+			for (Node node : madeNodes) {
+				if (values.containsKey(node)) continue; // Plain braces around one argument give back the node inside.
+				double[] children = new double[node.getChildCount()];
+				for (int i = 0; i < children.length; i++) {
+					Node child = node.getChild(i);
+					Double value = values.get(child);
+					children[i] = value != null ? value : child.evaluate(context); // Nodes that are not made, such as the -1 of a negation, are calculated with their parent.
+				}
+				values.put(node, node.calculate(children, context));
+			}
+		} catch (ExpressionInvalidException e) {
+			return EvaluationBudget.isLimitError(e) ? error : positionException(e, source, position);
+		} catch (RuntimeException e) {
+			return error; // The engine used to fail there without a key.
 		}
-		for (String s : toAssign) variableMap.put(s, ans);
-		preAns = oldAns;
-		return ans;
+		return error;
 	}
 
-	public double getVariable(String name) throws GetVariableException {
-		name = lowercaseAndRemoveWhitespace(name);
-		if (name.length() == 0) throw new GetVariableException(GetVariableException.Type.EMPTY_NAME);
-		if (isDigit(name.charAt(0))) throw new GetVariableException(GetVariableException.Type.INVALID_NAME);
-		for (char c : name.toCharArray()) if (!isDigit(c) && !isChar(c)) throw new GetVariableException(GetVariableException.Type.INVALID_NAME);
-		switch (name) {
-			case "ans": return ans;
-			case "preans": return preAns;
+	public CalculationResult tryCalculate(String expression) {
+		return tryCalculate(expression, getDefaultContext());
+	}
+
+	/**
+	 * Calculates an expression like {@link #calculate(String, CalculationContext)}, but returns an invalid expression as an error result instead of throwing.
+	 */
+	public CalculationResult tryCalculate(String expression, CalculationContext context) {
+		try {
+			return CalculationResult.of(calculate(expression, context));
+		} catch (ExpressionInvalidException e) {
+			return CalculationResult.of(e);
 		}
-		Double p = variableMap.get(name);
-		if (p == null && !zeroUndefinedVars) throw new GetVariableException(GetVariableException.Type.NOT_SET);
-		return name == null ? 0 : p;
 	}
 
-	private double getVariableInternal(String var, int position) throws ExpressionInvalidException {
-		String name = lowercaseAndRemoveWhitespace(var);
-		switch (name) {
-			case "ans": return ans;
-			case "preans": return preAns;
+	/**
+	 * Calculates an expression in the given context within the given budget, which the context keeps only during this call.
+	 */
+	public double calculate(String expression, CalculationContext context, EvaluationBudget budget) throws ExpressionInvalidException {
+		EvaluationBudget previous = context.budget;
+		context.budget = budget;
+		try {
+			return calculate(expression, context);
+		} finally {
+			context.budget = previous;
 		}
-		Double p = variableMap.get(name);
-		if (p != null) return p;
-		else if (zeroUndefinedVars) return 0;
-		else throw new ExpressionInvalidException("variableNotSet", position, new String[] { var });
+	}
+
+	/**
+	 * Returns the context used by the methods that take none, updated with the current settings of the engine.
+	 */
+	CalculationContext getDefaultContext() {
+		defaultContext.copySettings(this);
+		return defaultContext;
+	}
+
+	/**
+	 * Rethrows an exception from the part of the trimmed expression after the assignments, which starts at the given index, to properly position the error in the expression with whitespace.
+	 * An error without a position is put at the end of the expression.
+	 */
+	static ExpressionInvalidException positionException(ExpressionInvalidException e, NormalizedExpression source, int position) {
+		return new ExpressionInvalidException(e.getMessage(), source.toOriginalPosition(e.getPosition() <= 0 ? 0 : position + e.getPosition()), e.getMessageArguments());
+	}
+
+	public double getVariable(String name) throws GetVariableException {
+		return getDefaultContext().getVariable(name);
 	}
 	
-	private class Bracelet {
-		public String opening;
-		public Function functionAssigned;
-		public List<Double> arguments = new ArrayList<Double>();
-		private CalculatorEngine engine;
+	/**
+	 * An unclosed brace with the arguments read so far. It never changes, so saved parser states can share it.
+	 */
+	private static class Bracelet {
+		public final char opening;
+		public final Function functionAssigned;
+		private final Cell<Node> arguments; // The last argument first.
+		private final int argumentCount;
+
+		public Bracelet(char openingIn, Function functionIn) {
+			this(openingIn, functionIn, null, 0);
+		}
 
-		public Bracelet(String openingIn, Function functionIn, CalculatorEngine engineIn) {
+		private Bracelet(char openingIn, Function functionIn, Cell<Node> argumentsIn, int argumentCountIn) {
 			opening = openingIn;
 			functionAssigned = functionIn;
-			engine = engineIn;
+			arguments = argumentsIn;
+			argumentCount = argumentCountIn;
+		}
+
+		public Bracelet withArgument(Node argumentIn) {
+			return new Bracelet(opening, functionAssigned, new Cell<Node>(argumentIn, arguments), argumentCount + 1);
+		}
+
+		public Node getResult() {
+			Node[] result = new Node[argumentCount];
+			int i = argumentCount;
+			for (Cell<Node> cell = arguments; cell != null; cell = cell.next) result[--i] = cell.value;
+			return new Node.Call(functionAssigned, result);
+		}
+	}
+
+	private static class Cell<T> {
+		final T value;
+		final Cell<T> next;
+
+		Cell(T value, Cell<T> next) {
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * A stack whose copies share its cells, so that a copy takes constant time and later pushes and pops do not affect it.
+	 */
+	private static class ParseStack<T> {
+		private Cell<T> top;
+
+		public ParseStack() {}
+
+		private ParseStack(Cell<T> top) {
+			this.top = top;
+		}
+
+		public void push(T value) {
+			top = new Cell<T>(value, top);
 		}
 
-		public void addArgument(double argumentIn) {
-			arguments.add(argumentIn);
+		public T pop() {
+			T value = peek();
+			top = top.next;
+			return value;
 		}
 
-		public double getResult() throws ExpressionInvalidException {
-			return functionAssigned.calculate(arguments, engine);
+		public T peek() {
+			if (top == null) throw new EmptyStackException();
+			return top.value;
+		}
+
+		public boolean isEmpty() {
+			return top == null;
+		}
+
+		public ParseStack<T> copy() {
+			return new ParseStack<T>(top);
+		}
+	}
+
+	/**
+	 * The parser states saved at the token boundaries of the last expression parsed with them, from which parsing the next expression resumes.
+	 */
+	static class ParseCheckpoints {
+		private final List<CalculationStatus> states = new ArrayList<CalculationStatus>();
+		private String input = "";
+		private SymbolTable symbols;
+		private int settings;
+		private int resumedAt;
+
+		/**
+		 * Returns the number of characters of the last parsed expression, after its assignments, that were not read again.
+		 */
+		int getResumedAt() {
+			return resumedAt;
 		}
 	}
 	
 	private class CalculationStatus {
-		public Stack<Double>
-			NS = new Stack<Double>(),
-			TNS = new Stack<Double>();
-		public Stack<Operand>
-			OS = new Stack<Operand>(),
-			TOS = new Stack<Operand>();
+		public ParseStack<Node>
+			NS = new ParseStack<Node>(),
+			TNS = new ParseStack<Node>();
+		public ParseStack<Operand>
+			OS = new ParseStack<Operand>(),
+			TOS = new ParseStack<Operand>();
+		public ParseStack<Bracelet> BS = new ParseStack<Bracelet>();
+		public ParseStack<Node> madeNodes = new ParseStack<Node>(); // Every node made, the last on top, to find the error met first when calculating.
 		public boolean
 			negativity = false,
 			hadNegation = false,
 			isVariable = false,
-			hadComma = false;
-		String currentToken = "";
+			hadComma = false,
+			status = false,
+			hadClosingBrace = false,
+			hadPercent = false;
+		// The current token is a slice of the input. Thousand separators inside a number are skipped when it is read.
+		public String input;
+		public CalculationContext settings;
+		public int
+			tokenStart = 0,
+			tokenEnd = 0,
+			position = 0, // The index of the next character to read.
+			operationCount = 0, // Operators and function calls read, which the budget of the context limits.
+			depth = 0, // Braces open.
+			maxDepth = 0,
+			madeCount = 0;
+		public char lastTokenChar;
+		public Node result; // Set once the whole input has been read.
+		public EvaluationBudget budget;
+		public ValidationResult validation; // Set to report the errors instead of throwing them.
+		public BitSet skipped; // The positions of the invalid characters, when validating.
+
+		public CalculationStatus(String inputIn, CalculationContext settingsIn) {
+			input = inputIn;
+			settings = settingsIn;
+			budget = settingsIn.budget;
+		}
+
+		/**
+		 * Returns a copy of the state to be resumed at the given position, sharing the contents of its stacks. The temporary stacks are empty between characters and are not copied.
+		 */
+		public CalculationStatus copy(int positionIn) {
+			return copy(input, settings, positionIn);
+		}
+
+		/**
+		 * Returns a copy of the state to go on reading another input that starts the same.
+		 */
+		public CalculationStatus copy(String inputIn, CalculationContext settingsIn) {
+			return copy(inputIn, settingsIn, position);
+		}
+
+		private CalculationStatus copy(String inputIn, CalculationContext settingsIn, int positionIn) {
+			CalculationStatus result = new CalculationStatus(inputIn, settingsIn);
+			result.copyFrom(this);
+			result.position = positionIn;
+			return result;
+		}
+
+		/**
+		 * Goes back to a copy of the state saved between two characters.
+		 */
+		public void restore(CalculationStatus saved) {
+			copyFrom(saved);
+			TNS = new ParseStack<Node>();
+			TOS = new ParseStack<Operand>();
+		}
+
+		private void copyFrom(CalculationStatus other) {
+			NS = other.NS.copy();
+			OS = other.OS.copy();
+			BS = other.BS.copy();
+			madeNodes = other.madeNodes.copy();
+			negativity = other.negativity;
+			hadNegation = other.hadNegation;
+			isVariable = other.isVariable;
+			hadComma = other.hadComma;
+			status = other.status;
+			hadClosingBrace = other.hadClosingBrace;
+			hadPercent = other.hadPercent;
+			tokenStart = other.tokenStart;
+			tokenEnd = other.tokenEnd;
+			lastTokenChar = other.lastTokenChar;
+			operationCount = other.operationCount;
+			depth = other.depth;
+			maxDepth = other.maxDepth;
+			madeCount = other.madeCount;
+		}
+
+		public void setFlags(boolean statusIn, boolean hadClosingBraceIn, boolean hadPercentIn) {
+			status = statusIn;
+			hadClosingBrace = hadClosingBraceIn;
+			hadPercent = hadPercentIn;
+		}
+
+		/**
+		 * Records the node just made and returns it. The parser makes the nodes in the order the engine used to calculate while parsing.
+		 */
+		public Node made(Node node) {
+			madeNodes.push(node);
+			madeCount++;
+			return node;
+		}
+
+		/**
+		 * Returns the nodes made so far, the first made first.
+		 */
+		public Node[] getMadeNodes() {
+			Node[] result = new Node[madeCount];
+			int i = madeCount;
+			for (Cell<Node> cell = madeNodes.top; cell != null; cell = cell.next) result[--i] = cell.value;
+			return result;
+		}
+
+		/**
+		 * Pushes an operand read from the input, or the opening brace of a function call.
+		 */
+		public void pushOperand(Operand operand) throws ExpressionInvalidException {
+			OS.push(operand);
+			operationCount++;
+			if (budget != null) budget.checkOperations(operationCount);
+		}
+
+		public void openBrace() throws ExpressionInvalidException {
+			if (++depth <= maxDepth) return;
+			maxDepth = depth;
+			if (budget != null) budget.checkDepth(maxDepth);
+		}
+
+		public boolean hasToken() {
+			return tokenEnd != tokenStart;
+		}
+
+		public String getToken() {
+			return input.substring(tokenStart, tokenEnd);
+		}
+
+		/**
+		 * Returns the name in the current token, up to the given end. When validating, the characters skipped as invalid inside it are left out.
+		 */
+		public String getName(int end) {
+			if (validation == null) return input.substring(tokenStart, end);
+			StringBuilder name = new StringBuilder(end - tokenStart);
+			for (int i = tokenStart; i < end; i++) if (!skipped.get(i)) name.append(input.charAt(i));
+			return name.toString();
+		}
+
+		/**
+		 * Returns the function named by the current token, or {@code null} if there is none.
+		 */
+		public Function findFunction(SymbolTable symbols) {
+			if (validation == null) return symbols.getFunction(input, tokenStart, tokenEnd);
+			String name = getName(tokenEnd);
+			return symbols.getFunction(name, 0, name.length());
+		}
+
+		public void startToken(int position) {
+			tokenStart = position;
+			appendToken(position);
+		}
+
+		public void appendToken(int position) {
+			if (!hasToken()) tokenStart = position;
+			tokenEnd = position + 1;
+			lastTokenChar = input.charAt(position);
+		}
+
+		public void clearToken() {
+			tokenStart = tokenEnd = 0;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Evaluates an expression tree a block of rows at a time: each node is computed for the whole block in a tight loop over primitive arrays, which the JIT can vectorize.
+ * Checks that would throw in the scalar code are recorded in a mask of failed rows instead. Operands and functions without a column kernel are called row by row.
+ */
+class ColumnKernels extends TreeWalk<double[], RuntimeException> {
+	private static final int blockSize = 1024;
+
+	private final Node root;
+	private final Map<String, double[]> columns;
+	private final CalculationContext context;
+	private final ArrayDeque<double[]> buffers = new ArrayDeque<double[]>();
+	private final boolean[] failed = new boolean[blockSize];
+	private int blockStart, blockLength;
+
+	/**
+	 * @param columns The columns keyed by variable name, lowercase without whitespace.
+	 */
+	ColumnKernels(Node root, Map<String, double[]> columns, CalculationContext context) {
+		this.root = root instanceof MethodHandleBackend.HandleNode ? ((MethodHandleBackend.HandleNode)root).getSource() : root;
+		this.columns = columns;
+		this.context = context;
+	}
+
+	/**
+	 * Evaluates the rows in the given range. The bits of the failed rows are set in {@code errors} relative to {@code from}.
+	 */
+	int evaluate(double[] output, BitSet errors, int from, int to) {
+		int errorCount = 0;
+		for (blockStart = from; blockStart < to; blockStart += blockSize) {
+			blockLength = Math.min(blockSize, to - blockStart);
+			Arrays.fill(failed, false);
+			double[] values;
+			try {
+				values = walk(root);
+			} catch (ArithmeticException e) {
+				values = acquire();
+				Arrays.fill(failed, true);
+			}
+			for (int i = 0; i < blockLength; i++) if (failed[i]) {
+				output[blockStart + i] = Double.NaN;
+				if (errors != null) errors.set(blockStart - from + i);
+				errorCount++;
+			} else output[blockStart + i] = values[i];
+			release(values);
+		}
+		return errorCount;
+	}
+
+	private double[] acquire() {
+		double[] buffer = buffers.poll();
+		return buffer == null ? new double[blockSize] : buffer;
+	}
+
+	private void release(double[] buffer) {
+		buffers.push(buffer);
+	}
+
+	/**
+	 * Computes the node for the block from the arrays of its children, which are released.
+	 */
+	@Override
+	double[] leave(Node node) {
+		int length = blockLength;
+		double[] out = acquire();
+		if (node instanceof Node.Constant) Arrays.fill(out, 0, length, ((Node.Constant)node).getValue());
+		else if (node instanceof Node.Variable) {
+			Node.Variable variable = (Node.Variable)node;
+			double[] column = columns.get(variable.getName());
+			if (column != null) System.arraycopy(column, blockStart, out, 0, length); else try {
+				Arrays.fill(out, 0, length, context.getVariableInternal(variable.getSlot(), variable.getName(), variable.getPosition()));
+			} catch (ExpressionInvalidException e) {
+				Arrays.fill(failed, 0, length, true);
+			}
+		} else if (node instanceof Node.Percent) {
+			double[] a = getChild(0);
+			for (int i = 0; i < length; i++) out[i] = a[i] / 100;
+			release(a);
+		} else if (node instanceof Node.Binary) evaluateBinary((Node.Binary)node, out);
+		else if (node instanceof Node.Call) evaluateCall((Node.Call)node, out);
+		else for (int i = 0; i < length; i++) {
+			if (failed[i]) continue;
+			try {
+				out[i] = node.evaluate(context);
+			} catch (ExpressionInvalidException e) {
+				failed[i] = true;
+			}
+		}
+		return out;
+	}
+
+	private void evaluateBinary(Node.Binary node, double[] out) {
+		int length = blockLength;
+		double[] a = getChild(0), b = getChild(1);
+		Operand operand = node.getOperand();
+		// Exact class checks: a subclass may override the calculation.
+		Class<?> type = operand.getClass();
+		if (type == Operand.Plus.class) for (int i = 0; i < length; i++) out[i] = a[i] + b[i];
+		else if (type == Operand.Minus.class) for (int i = 0; i < length; i++) out[i] = a[i] - b[i];
+		else if (type == Operand.Multiply.class || type == Operand.DotlessMultiplication.class) for (int i = 0; i < length; i++) out[i] = a[i] * b[i];
+		else if (type == Operand.Divide.class) {
+			for (int i = 0; i < length; i++) out[i] = a[i] / b[i];
+			for (int i = 0; i < length; i++) failed[i] |= b[i] == 0;
+		} else if (type == Operand.Exponentiation.class) power(a, b, out);
+		else if (type == Operand.Root.class) {
+			for (int i = 0; i < length; i++) {
+				failed[i] |= a[i] == 0;
+				a[i] = 1 / a[i];
+			}
+			power(b, a, out);
+		} else for (int i = 0; i < length; i++) {
+			if (failed[i]) continue;
+			try {
+				out[i] = operand.calculate(a[i], b[i], context);
+			} catch (ExpressionInvalidException e) {
+				failed[i] = true;
+			}
+		}
+		release(a);
+		release(b);
+	}
+
+	private void power(double[] bases, double[] exponents, double[] out) {
+		for (int i = 0; i < blockLength; i++) {
+			if (!Utils.isPowerDefined(bases[i], exponents[i])) failed[i] = true;
+			if (failed[i]) continue;
+			try {
+				out[i] = Utils.power(bases[i], exponents[i], context);
+			} catch (ExpressionInvalidException e) { // Already masked out above.
+				failed[i] = true;
+			}
+		}
+	}
+
+	private void evaluateCall(Node.Call node, double[] out) {
+		int length = blockLength;
+		double[][] arguments = new double[node.getArgumentCount()][];
+		for (int i = 0; i < arguments.length; i++) arguments[i] = getChild(i);
+		Function function = node.getFunction();
+		Class<?> type = function.getClass();
+		if (type == Function.Sum.class) { // Summed from 0 like Function.total().
+			Arrays.fill(out, 0, length, 0);
+			for (double[] argument : arguments) for (int i = 0; i < length; i++) out[i] += argument[i];
+		} else if (arguments.length == 1 && type == Function.Sin.class) {
+			AngleUnit angleUnit = context.angleUnit;
+			for (int i = 0; i < length; i++) out[i] = Math.sin(angleUnit.convertToRadians(0 + arguments[0][i]));
+		} else if (arguments.length == 1 && type == Function.Cos.class) {
+			AngleUnit angleUnit = context.angleUnit;
+			for (int i = 0; i < length; i++) out[i] = Math.cos(angleUnit.convertToRadians(0 + arguments[0][i]));
+		} else if (arguments.length == 1 && type == Function.Tan.class) {
+			AngleUnit angleUnit = context.angleUnit;
+			for (int i = 0; i < length; i++) {
+				double tot = 0 + arguments[0][i];
+				failed[i] |= Math.cos(tot) == 0;
+				out[i] = Math.tan(angleUnit.convertToRadians(tot));
+			}
+		} else if (arguments.length == 1 && type == Function.Floor.class) for (int i = 0; i < length; i++) out[i] = Math.floor(0 + arguments[0][i]);
+		else if (arguments.length == 1 && type == Function.Abs.class) for (int i = 0; i < length; i++) out[i] = Math.abs(0 + arguments[0][i]);
+		else {
+			double[] row = new double[arguments.length];
+			for (int i = 0; i < length; i++) {
+				if (failed[i]) continue;
+				try {
+					switch (arguments.length) {
+						case 1:
+							out[i] = function.calculate1(arguments[0][i], context);
+							break;
+						case 2:
+							out[i] = function.calculate2(arguments[0][i], arguments[1][i], context);
+							break;
+						default:
+							for (int j = 0; j < row.length; j++) row[j] = arguments[j][i];
+							out[i] = function.calculateN(row, 0, row.length, context);
+					}
+				} catch (ExpressionInvalidException e) {
+					failed[i] = true;
+				}
+			}
+		}
+		for (double[] argument : arguments) release(argument);
+	}
+}
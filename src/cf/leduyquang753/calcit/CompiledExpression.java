@@ -0,0 +1,203 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * An expression parsed by {@link CalculatorEngine#compile(String)}. Evaluating it gives the same result as calling {@link CalculatorEngine#calculate(String)} with the original text, without parsing it again.
+ */
+public class CompiledExpression {
+	private static final ThreadLocal<EvaluationStack> stacks = ThreadLocal.withInitial(EvaluationStack::new);
+
+	private final CalculatorEngine engine;
+	private final NormalizedExpression source;
+	private final int position;
+	private final String[] variablesToAssign;
+	private final int[] slotsToAssign;
+	private final Node root;
+	private final Program program;
+	private final Node[] madeNodes; // The nodes of the parsed expression before folding, in the order the parser made them.
+	// The operators and function calls and the deepest nesting of braces of the parsed expression, which a budget limits.
+	private final int operationCount, depth;
+
+	CompiledExpression(CalculatorEngine engine, NormalizedExpression source, int position, String[] variablesToAssign, Node root, Node[] madeNodes, int operationCount, int depth) {
+		this(engine, source, position, variablesToAssign, root, root == null ? null : Program.compile(root), madeNodes, operationCount, depth);
+	}
+
+	CompiledExpression(CalculatorEngine engine, NormalizedExpression source, int position, String[] variablesToAssign, Node root, Program program, Node[] madeNodes, int operationCount, int depth) {
+		this.engine = engine;
+		this.source = source;
+		this.position = position;
+		this.variablesToAssign = variablesToAssign;
+		slotsToAssign = new int[variablesToAssign.length];
+		for (int i = 0; i < slotsToAssign.length; i++) slotsToAssign[i] = engine.findVariableSlot(variablesToAssign[i]);
+		this.root = root;
+		this.program = program;
+		this.madeNodes = madeNodes;
+		this.operationCount = operationCount;
+		this.depth = depth;
+	}
+
+	/**
+	 * Returns a copy of this expression for a text that differs only in whitespace and letter case, so that errors are positioned in that text.
+	 */
+	CompiledExpression withSource(NormalizedExpression source) {
+		return hasOriginal(source.getOriginal()) ? this : new CompiledExpression(engine, source, position, variablesToAssign, root, program, madeNodes, operationCount, depth);
+	}
+
+	/**
+	 * Tells whether the expression was compiled from exactly the given text.
+	 */
+	boolean hasOriginal(String original) {
+		return original.equals(source.getOriginal());
+	}
+
+	/**
+	 * Returns a copy of this expression that evaluates the given node instead.
+	 */
+	CompiledExpression withRoot(Node root) {
+		return new CompiledExpression(engine, source, position, variablesToAssign, root, madeNodes, operationCount, depth);
+	}
+
+	/**
+	 * Returns the error met first from left to right, as {@link CalculatorEngine#calculate(String, CalculationContext)} reports it, given the one evaluating the expression failed with.
+	 */
+	ExpressionInvalidException findFirstError(CalculationContext context, ExpressionInvalidException error) {
+		return CalculatorEngine.findFirstError(madeNodes, context, error, source, position);
+	}
+
+	/**
+	 * Fails if the expression is larger than the budget allows.
+	 */
+	void checkSize(EvaluationBudget budget) throws ExpressionInvalidException {
+		budget.checkDepth(depth);
+		budget.checkOperations(operationCount);
+	}
+
+	Program getProgram() {
+		return program;
+	}
+
+	/**
+	 * Returns the program to execute with columns bound to the variables. Method handles read variables only from the context, so this interprets their source instead.
+	 */
+	Program getColumnProgram() {
+		return root instanceof MethodHandleBackend.HandleNode ? Program.compile(((MethodHandleBackend.HandleNode)root).getSource()) : program;
+	}
+
+	public String getExpression() {
+		return source.getOriginal();
+	}
+
+	public String[] getVariablesToAssign() {
+		return variablesToAssign.clone();
+	}
+
+	/**
+	 * Returns the root of the parsed expression, or {@code null} if the expression clears the variables it assigns.
+	 */
+	public Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Evaluates the expression with the engine's own settings, answer history and variables, updating the answer history and assigning the variables on the left of the equal signs.
+	 */
+	public double evaluate() throws ExpressionInvalidException {
+		return evaluate(engine.getDefaultContext());
+	}
+
+	/**
+	 * Evaluates the expression in the given context, updating its answer history and assigning the variables on the left of the equal signs.
+	 */
+	public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+		return assign(context, root == null ? 0 : evaluateValue(context));
+	}
+
+	/**
+	 * Updates the answer history of the context and assigns or clears the variables on the left of the equal signs.
+	 */
+	double assign(CalculationContext context, double result) {
+		if (root == null) context.clearVariables(slotsToAssign);
+		else context.assignResult(slotsToAssign, result);
+		return result;
+	}
+
+	/**
+	 * Finds what evaluating the expression involves: its size, the variables and functions it uses and the built-in functions that run loops, without evaluating it.
+	 */
+	public ExpressionAnalysis analyze() {
+		return new ExpressionAnalysis(source.getOriginal().length(), root, operationCount, depth);
+	}
+
+	/**
+	 * Ties the expression to a context, so that the variables it reads are checked once instead of on every evaluation.
+	 */
+	public BoundExpression bind(CalculationContext context) {
+		return new BoundExpression(this, context);
+	}
+
+	/**
+	 * Evaluates the expression with the engine's own settings and variables, without touching the answer history nor assigning any variable.
+	 */
+	public double evaluateValue() throws ExpressionInvalidException {
+		return evaluateValue(engine.getDefaultContext());
+	}
+
+	/**
+	 * Evaluates the expression in the given context without touching the answer history nor assigning any variable.
+	 */
+	public double evaluateValue(CalculationContext context) throws ExpressionInvalidException {
+		return evaluateValue(context, getThreadStack());
+	}
+
+	static EvaluationStack getThreadStack() {
+		return stacks.get();
+	}
+
+	/**
+	 * Evaluates the expression in the given context on the given stack without touching the answer history nor assigning any variable.
+	 * Unless the expression calls functions, this does not allocate once the stack has grown large enough.
+	 */
+	public double evaluateValue(CalculationContext context, EvaluationStack stack) throws ExpressionInvalidException {
+		return evaluateValue(context, stack, hasVariables(context));
+	}
+
+	/**
+	 * Tells whether every variable the expression reads has a value in the context.
+	 */
+	boolean hasVariables(CalculationContext context) {
+		return root == null || program.hasVariables(context, null);
+	}
+
+	double evaluateValue(CalculationContext context, EvaluationStack stack, boolean variablesChecked) throws ExpressionInvalidException {
+		if (root == null) return 0;
+		MetricsRecorder metrics = engine.metrics;
+		if (metrics == null) return execute(context, stack, variablesChecked);
+		long start = System.nanoTime();
+		try {
+			double result = execute(context, stack, variablesChecked);
+			program.recordCalls(metrics);
+			return result;
+		} catch (ExpressionInvalidException e) {
+			metrics.recordError(e.getMessage());
+			throw e;
+		} finally {
+			metrics.recordEvaluation(System.nanoTime() - start);
+		}
+	}
+
+	private double execute(CalculationContext context, EvaluationStack stack, boolean variablesChecked) throws ExpressionInvalidException {
+		try {
+			EvaluationBudget budget = context.budget;
+			if (budget != null) {
+				budget.check();
+				checkSize(budget);
+			}
+			try {
+				return program.execute(context, stack, null, 0, variablesChecked);
+			} catch (ArithmeticException e) {
+				throw new ExpressionInvalidException("numberOutOfRange");
+			}
+		} catch (ExpressionInvalidException e) {
+			throw CalculatorEngine.positionException(e, source, position);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package cf.leduyquang753.calcit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams a CSV or TSV file through one or more compiled expressions. Each output line is the input line followed by one field per expression.
+ * The input is memory-mapped a window at a time and numeric fields are parsed in place, so memory use does not depend on the size of the file.
+ * The first line must be a header; columns are bound to the variables of the same name. Quoted fields may not contain line breaks.
+ */
+public class CsvEvaluator {
+	private static final int
+		windowSize = 64 << 20,
+		outputBufferSize = 1 << 16;
+
+	private final LinkedHashMap<String, CompiledExpression> expressions;
+
+	/**
+	 * The field separator, {@code ','} for CSV or {@code '\t'} for TSV.
+	 */
+	public char separator = ',';
+
+	/**
+	 * @param expressions The expressions to evaluate for each row, keyed by the name of their output column.
+	 */
+	public CsvEvaluator(Map<String, CompiledExpression> expressions) {
+		this.expressions = new LinkedHashMap<String, CompiledExpression>(expressions);
+	}
+
+	/**
+	 * Evaluates every row of the input file and writes the result to the output file.
+	 * Results are formatted with {@link Utils#formatNumber(double, CalculationContext)}. A result is left empty if its expression fails, if it cannot be displayed or if a column bound to a variable is not a number.
+	 * @return The number of data rows.
+	 */
+	public long evaluate(Path input, Path output, CalculationContext context) throws IOException {
+		try (
+			FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+		) {
+			Run run = new Run(out, context);
+			long size = in.size(), position = 0;
+			while (position < size) {
+				long length = Math.min(windowSize, size - position);
+				boolean lastWindow = position + length == size;
+				MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+				int lineStart = 0, limit = (int)length;
+				while (lineStart < limit) {
+					int lineEnd = lineStart;
+					while (lineEnd < limit && window.get(lineEnd) != '\n') lineEnd++;
+					if (lineEnd == limit && !lastWindow) break;
+					run.processLine(window, lineStart, lineEnd, lineEnd < limit);
+					lineStart = lineEnd + 1;
+				}
+				if (lineStart == 0) throw new IOException("A line is longer than " + windowSize + " bytes.");
+				position += Math.min(lineStart, limit);
+			}
+			run.flush();
+			return run.rowCount;
+		}
+	}
+
+	/**
+	 * The state of evaluating one file.
+	 */
+	private class Run {
+		private final FileChannel out;
+		private final CalculationContext context;
+		private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(outputBufferSize);
+		private final EvaluationStack stack = new EvaluationStack();
+		private final StringBuilder formatted = new StringBuilder();
+		private final Program[] programs;
+		private final double[][][] boundColumns;
+		private boolean[] variablesChecked;
+		private final List<int[]> fields = new ArrayList<int[]>(); // Start and end of each field of the current line.
+		private double[][] cells; // The current value of each column bound to a variable, indexed by field.
+		private long rowCount = -1; // The header is not a row.
+
+		Run(FileChannel out, CalculationContext context) {
+			this.out = out;
+			this.context = context;
+			programs = new Program[expressions.size()];
+			boundColumns = new double[programs.length][][];
+			int i = 0;
+			for (CompiledExpression expression : expressions.values()) programs[i++] = expression.getColumnProgram();
+		}
+
+		void processLine(ByteBuffer line, int start, int end, boolean newLine) throws IOException {
+			boolean carriageReturn = end > start && line.get(end - 1) == '\r';
+			if (carriageReturn) end--;
+			splitFields(line, start, end);
+			writeBytes(line, start, end);
+			if (rowCount == -1) readHeader(line);
+			else {
+				boolean valid = true;
+				for (int field = 0; field < cells.length; field++) if (cells[field] != null) {
+					if (field >= fields.size()) {
+						valid = false;
+						break;
+					}
+					try {
+						cells[field][0] = NumberParser.parse(line, fields.get(field)[0], fields.get(field)[1]);
+					} catch (NumberFormatException e) {
+						valid = false;
+						break;
+					}
+				}
+				for (int i = 0; i < programs.length; i++) {
+					writeChar(separator);
+					if (!valid || programs[i] == null) continue;
+					try {
+						formatted.setLength(0);
+						if (Utils.formatNumber(programs[i].execute(context, stack, boundColumns[i], 0, variablesChecked[i]), context, formatted)) writeField(formatted);
+					} catch (ExpressionInvalidException | ArithmeticException e) { }
+				}
+			}
+			if (carriageReturn) writeChar('\r');
+			if (newLine) writeChar('\n');
+			rowCount++;
+		}
+
+		private void readHeader(ByteBuffer line) throws IOException {
+			Map<String, double[]> columns = new HashMap<String, double[]>();
+			cells = new double[fields.size()][];
+			for (int field = 0; field < fields.size(); field++) {
+				int[] range = fields.get(field);
+				byte[] bytes = new byte[range[1] - range[0]];
+				for (int i = 0; i < bytes.length; i++) bytes[i] = line.get(range[0] + i);
+				String name = CalculatorEngine.lowercaseAndRemoveWhitespace(unquote(new String(bytes, StandardCharsets.UTF_8)));
+				if (!columns.containsKey(name)) columns.put(name, cells[field] = new double[1]);
+			}
+			variablesChecked = new boolean[programs.length];
+			for (int i = 0; i < programs.length; i++) if (programs[i] != null) {
+				boundColumns[i] = programs[i].bindColumns(columns);
+				variablesChecked[i] = programs[i].hasVariables(context, boundColumns[i]);
+			}
+			for (int field = 0; field < cells.length; field++) if (cells[field] != null && !isBound(cells[field])) cells[field] = null; // Do not parse columns no expression reads.
+			for (String name : expressions.keySet()) {
+				writeChar(separator);
+				writeField(name);
+			}
+		}
+
+		private boolean isBound(double[] cell) {
+			for (double[][] columns : boundColumns) if (columns != null) for (double[] column : columns) if (column == cell) return true;
+			return false;
+		}
+
+		private void splitFields(ByteBuffer line, int start, int end) {
+			int count = 0;
+			int fieldStart = start;
+			boolean quoted = false;
+			for (int i = start; i <= end; i++) {
+				if (i < end) {
+					byte b = line.get(i);
+					if (b == '"') quoted = !quoted;
+					if (quoted || b != separator) continue;
+				}
+				int fieldEnd = i;
+				int from = fieldStart;
+				if (fieldEnd - from >= 2 && line.get(from) == '"' && line.get(fieldEnd - 1) == '"') {
+					from++;
+					fieldEnd--;
+				}
+				if (count == fields.size()) fields.add(new int[2]);
+				fields.get(count)[0] = from;
+				fields.get(count)[1] = fieldEnd;
+				count++;
+				fieldStart = i + 1;
+			}
+			while (fields.size() > count) fields.remove(fields.size() - 1);
+		}
+
+		private String unquote(String field) {
+			return field.replace("\"\"", "\"");
+		}
+
+		private void writeField(CharSequence text) throws IOException {
+			boolean needsQuotes = false;
+			for (int i = 0; i < text.length() && !needsQuotes; i++) needsQuotes = text.charAt(i) == separator || text.charAt(i) == '"';
+			if (needsQuotes) writeChar('"');
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == '"') writeChar('"');
+				writeChar(c);
+			}
+			if (needsQuotes) writeChar('"');
+		}
+
+		private void writeChar(char c) throws IOException {
+			if (outputBuffer.remaining() < 3) flush();
+			if (c < 0x80) outputBuffer.put((byte)c);
+			else if (c < 0x800) {
+				outputBuffer.put((byte)(0xC0 | c >> 6));
+				outputBuffer.put((byte)(0x80 | c & 0x3F));
+			} else {
+				outputBuffer.put((byte)(0xE0 | c >> 12));
+				outputBuffer.put((byte)(0x80 | c >> 6 & 0x3F));
+				outputBuffer.put((byte)(0x80 | c & 0x3F));
+			}
+		}
+
+		private void writeBytes(ByteBuffer source, int start, int end) throws IOException {
+			for (int i = start; i < end; i++) {
+				if (!outputBuffer.hasRemaining()) flush();
+				outputBuffer.put(source.get(i));
+			}
+		}
+
+		void flush() throws IOException {
+			outputBuffer.flip();
+			while (outputBuffer.hasRemaining()) out.write(outputBuffer);
+			outputBuffer.clear();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * Compiles an expression again each time it is edited, for showing its result while it is typed.
+ * The parser saves its state after each token, and after an edit it only reads the text again from the last token before the first changed character, so typing at the end of a long expression takes about as long as typing into a short one.
+ * The results and errors are the same as with {@link CalculatorEngine#compile(String, CalculationContext)}, but the expression cache is not used.
+ * <p>
+ * A session remembers one expression, so each text field needs its own. Like its context, it is not thread-safe.
+ */
+public class EditingSession {
+	private final CalculationContext context;
+	private final CalculatorEngine engine;
+	private final CalculatorEngine.ParseCheckpoints checkpoints = new CalculatorEngine.ParseCheckpoints();
+
+	public EditingSession(CalculationContext context) {
+		this.context = context;
+		engine = context.getEngine();
+	}
+
+	public CalculationContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Compiles the new text of the expression with the settings of the context.
+	 * Use {@link CompiledExpression#evaluateValue(CalculationContext)} on the result to preview it without touching the answer history nor the variables.
+	 */
+	public CompiledExpression compile(String expression) throws ExpressionInvalidException {
+		return engine.compile(expression, context, checkpoints);
+	}
+
+	/**
+	 * Calculates the new text of the expression in the context, updating its answer history, as {@link CalculatorEngine#calculate(String, CalculationContext)} does.
+	 */
+	public double calculate(String expression) throws ExpressionInvalidException {
+		return compile(expression).evaluate(context);
+	}
+
+	/**
+	 * Returns how many characters at the start of the last compiled expression, not counting its assignments, were not read again.
+	 */
+	public int getReusedLength() {
+		return checkpoints.getResumedAt();
+	}
+}
@@ -0,0 +1,113 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the measurements of one or more engines: distributions of parse and evaluation times, the number of calls to each function and operand, and the number of errors of each key.
+ * Set it as the {@link CalculatorEngine#metrics} of the engines to measure, then read it or {@link #export(MetricsExporter)} it at any time.
+ */
+public class EngineMetrics implements MetricsRecorder {
+	private final LatencyHistogram
+		parseTimes = new LatencyHistogram(),
+		evaluationTimes = new LatencyHistogram();
+	private final ConcurrentHashMap<Function, LongAdder> functionCalls = new ConcurrentHashMap<Function, LongAdder>();
+	private final ConcurrentHashMap<Operand, LongAdder> operandCalls = new ConcurrentHashMap<Operand, LongAdder>();
+	private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+
+	@Override
+	public void recordParse(long nanoseconds) {
+		parseTimes.record(nanoseconds);
+	}
+
+	@Override
+	public void recordEvaluation(long nanoseconds) {
+		evaluationTimes.record(nanoseconds);
+	}
+
+	@Override
+	public void recordFunctionCalls(Function function, int count) {
+		getCounter(functionCalls, function).add(count);
+	}
+
+	@Override
+	public void recordOperandCalls(Operand operand, int count) {
+		getCounter(operandCalls, operand).add(count);
+	}
+
+	@Override
+	public void recordError(String key) {
+		getCounter(errors, key).increment();
+	}
+
+	private static <K> LongAdder getCounter(ConcurrentHashMap<K, LongAdder> counters, K key) {
+		LongAdder counter = counters.get(key);
+		return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+	}
+
+	/**
+	 * Returns the distribution of parse times, in nanoseconds.
+	 */
+	public LatencyHistogram getParseTimes() {
+		return parseTimes;
+	}
+
+	/**
+	 * Returns the distribution of evaluation times, in nanoseconds.
+	 */
+	public LatencyHistogram getEvaluationTimes() {
+		return evaluationTimes;
+	}
+
+	public long getFunctionCalls(Function function) {
+		LongAdder counter = functionCalls.get(function);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public long getOperandCalls(Operand operand) {
+		LongAdder counter = operandCalls.get(operand);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public long getErrors(String key) {
+		LongAdder counter = errors.get(key);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * Passes every measurement to the exporter: the histograms {@code parse.time} and {@code evaluation.time}, then the counters {@code function.calls} labeled with the first name of each function, {@code operand.calls} labeled with the first character of each operand and {@code errors} labeled with each error key.
+	 * Functions or operands with the same name, such as those replaced by registering others, are added together.
+	 */
+	public void export(MetricsExporter exporter) {
+		exporter.histogram("parse.time", parseTimes);
+		exporter.histogram("evaluation.time", evaluationTimes);
+		Map<String, Long> totals = new TreeMap<String, Long>();
+		for (Map.Entry<Function, LongAdder> entry : functionCalls.entrySet()) totals.merge(getName(entry.getKey()), entry.getValue().sum(), Long::sum);
+		for (Map.Entry<String, Long> entry : totals.entrySet()) exporter.counter("function.calls", entry.getKey(), entry.getValue());
+		totals.clear();
+		for (Map.Entry<Operand, LongAdder> entry : operandCalls.entrySet()) totals.merge(entry.getKey().getCharacters()[0], entry.getValue().sum(), Long::sum);
+		for (Map.Entry<String, Long> entry : totals.entrySet()) exporter.counter("operand.calls", entry.getKey(), entry.getValue());
+		for (Map.Entry<String, LongAdder> entry : errors.entrySet()) exporter.counter("errors", entry.getKey(), entry.getValue().sum());
+	}
+
+	/**
+	 * Returns the first name of the function that is not empty, as plain braces call {@link Function.Sum} by the empty name.
+	 */
+	private static String getName(Function function) {
+		for (String name : function.getNames()) if (!name.isEmpty()) return name;
+		return function.getClass().getName();
+	}
+
+	/**
+	 * Forgets every measurement.
+	 */
+	public void reset() {
+		parseTimes.reset();
+		evaluationTimes.reset();
+		functionCalls.clear();
+		operandCalls.clear();
+		errors.clear();
+	}
+}
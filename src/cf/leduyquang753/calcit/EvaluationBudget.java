@@ -0,0 +1,86 @@
+package cf.leduyquang753.calcit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the work of a calculation, for evaluating expressions from untrusted sources on shared threads.
+ * Set it as the {@link CalculationContext#budget} of the context to calculate with, or pass it to {@link CalculatorEngine#calculate(String, CalculationContext, EvaluationBudget)}, and the engine stops as soon as a limit is exceeded with an {@link ExpressionInvalidException} of one of these keys:
+ * <ul>
+ * <li>{@code expressionTooLong}: the expression has more characters than {@link #maxInputLength}.</li>
+ * <li>{@code nestingTooDeep}: the expression has more braces open at once than {@link #maxDepth}.</li>
+ * <li>{@code tooManyOperations}: the expression has more operators and function calls than {@link #maxOperations}.</li>
+ * <li>{@code timeLimitExceeded}: the deadline set with {@link #setTimeout(long, TimeUnit)} has passed.</li>
+ * <li>{@code calculationCancelled}: {@link #cancel()} has been called, or the calculating thread has been interrupted.</li>
+ * </ul>
+ * The size limits are checked while parsing and again before evaluating, as the expression may come from the cache or from another context.
+ * The time and cancellation are checked while parsing, before each call folded into a constant when compiling, before evaluating and before each function call. A single call is not interrupted: each built-in function takes at most a few thousand steps whatever its arguments, as {@code p} and {@code c} return infinity when the result overflows and {@code gcd} and {@code lcm} return NaN for infinite or NaN arguments.
+ * Functions that may run long on their own can call {@link #check()} on the budget of their context.
+ * <p>
+ * A budget is meant for one calculation at a time. Only {@link #cancel()} may be called from another thread.
+ */
+public class EvaluationBudget {
+	public int
+		maxInputLength = Integer.MAX_VALUE,
+		maxDepth = Integer.MAX_VALUE, // Long chains of operators nest too; limit them with maxOperations.
+		maxOperations = Integer.MAX_VALUE;
+
+	private long deadline;
+	private boolean hasDeadline = false;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Sets the deadline to the given time from now.
+	 */
+	public EvaluationBudget setTimeout(long timeout, TimeUnit unit) {
+		deadline = System.nanoTime() + unit.toNanos(timeout);
+		hasDeadline = true;
+		return this;
+	}
+
+	/**
+	 * Stops the calculation using this budget at its next check. This may be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Fails if the calculation has been cancelled, its thread interrupted or its deadline passed. The interrupt status of the thread is left set.
+	 */
+	public void check() throws ExpressionInvalidException {
+		if (cancelled || Thread.currentThread().isInterrupted()) throw new ExpressionInvalidException("calculationCancelled");
+		if (hasDeadline && System.nanoTime() - deadline > 0) throw new ExpressionInvalidException("timeLimitExceeded");
+	}
+
+	/**
+	 * Tells whether the error is one of those of a budget.
+	 */
+	static boolean isLimitError(ExpressionInvalidException error) {
+		switch (error.getMessage()) {
+			case "expressionTooLong":
+			case "nestingTooDeep":
+			case "tooManyOperations":
+			case "timeLimitExceeded":
+			case "calculationCancelled":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	void checkInputLength(int length) throws ExpressionInvalidException {
+		if (length > maxInputLength) throw new ExpressionInvalidException("expressionTooLong");
+	}
+
+	void checkDepth(int depth) throws ExpressionInvalidException {
+		if (depth > maxDepth) throw new ExpressionInvalidException("nestingTooDeep");
+	}
+
+	void checkOperations(int count) throws ExpressionInvalidException {
+		if (count > maxOperations) throw new ExpressionInvalidException("tooManyOperations");
+	}
+}
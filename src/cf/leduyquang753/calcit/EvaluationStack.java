@@ -0,0 +1,26 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Arrays;
+
+/**
+ * Reusable primitive storage for evaluating compiled expressions. Once it has grown to the depth needed, evaluating operands, numbers and variables does not allocate.
+ * It is not thread-safe; use one per thread.
+ */
+public class EvaluationStack {
+	double[] values = new double[32];
+	private int size = 0;
+
+	/**
+	 * Reserves room for an evaluation, which may be nested inside another one, and returns the first index it may use.
+	 */
+	int reserve(int count) {
+		int base = size;
+		if (base + count > values.length) values = Arrays.copyOf(values, Math.max(values.length * 2, base + count));
+		size += count;
+		return base;
+	}
+
+	void release(int base) {
+		size = base;
+	}
+}
@@ -0,0 +1,221 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What evaluating a compiled expression involves, found without evaluating it, so that expensive expressions can be turned away or scheduled apart before they reach a worker.
+ * See {@link CompiledExpression#analyze()}.
+ * <p>
+ * The tree analyzed is the compiled one, in which the calls to pure functions with constant arguments have already been replaced with their results, so they cost nothing.
+ * <p>
+ * The bounds on the loops of built-in functions are worked out for integers that doubles hold exactly. A call with a constant argument that is infinite, NaN or at least 2<sup>53</sup> in magnitude is not bounded: its steps and the estimated cost are {@link Long#MAX_VALUE}.
+ */
+public class ExpressionAnalysis {
+	private static final double
+		maxPermutationSteps = 170, // Beyond, the result overflows before the loop starts.
+		maxCombinationSteps = 1024,
+		logGoldenRatio = Math.log((1 + Math.sqrt(5)) / 2),
+		maxExactInteger = 9007199254740992.0; // 2^53; beyond, differences of integers are rounded.
+
+	private final int inputLength, operationCount, nestingDepth;
+	private int nodeCount = 0, depth = 0;
+	private long estimatedCost = 0;
+	private final Set<String> variables = new LinkedHashSet<String>();
+	private final Set<Function> functions = new LinkedHashSet<Function>();
+	private final List<LoopingCall> loopingCalls = new ArrayList<LoopingCall>();
+
+	ExpressionAnalysis(int inputLength, Node root, int operationCount, int nestingDepth) {
+		this.inputLength = inputLength;
+		this.operationCount = operationCount;
+		this.nestingDepth = nestingDepth;
+		if (root instanceof MethodHandleBackend.HandleNode) root = ((MethodHandleBackend.HandleNode)root).getSource();
+		if (root != null) depth = new Visitor().walk(root);
+	}
+
+	/**
+	 * Counts the nodes and gives the depth of each.
+	 */
+	private class Visitor extends TreeWalk<Integer, RuntimeException> {
+		@Override
+		boolean enter(Node node) {
+			nodeCount++;
+			addCost(1);
+			if (node instanceof Node.Variable) variables.add(((Node.Variable)node).getName());
+			else if (node instanceof Node.Call) functions.add(((Node.Call)node).getFunction());
+			return true;
+		}
+
+		@Override
+		Integer leave(Node node) {
+			int depth = 0;
+			for (int i = 0; i < node.getChildCount(); i++) depth = Math.max(depth, getChild(i));
+			if (node instanceof Node.Call) {
+				Node.Call call = (Node.Call)node;
+				double[] arguments = new double[call.getArgumentCount()];
+				boolean exact = true;
+				for (int i = 0; i < arguments.length; i++) {
+					Node argument = call.getArgument(i);
+					if (argument instanceof Node.Constant) exact &= Math.abs(arguments[i] = ((Node.Constant)argument).getValue()) < maxExactInteger;
+					else arguments[i] = Double.NaN;
+				}
+				double steps = getSteps(call.getFunction(), arguments);
+				if (steps > 0) {
+					long maxSteps = exact ? (long)steps : Long.MAX_VALUE;
+					loopingCalls.add(new LoopingCall(call.getFunction(), arguments, maxSteps));
+					addCost(maxSteps);
+				}
+			}
+			return depth + 1;
+		}
+	}
+
+	/**
+	 * Adds to the estimated cost, which stays at {@link Long#MAX_VALUE} once a call is not bounded.
+	 */
+	private void addCost(long cost) {
+		estimatedCost = cost > Long.MAX_VALUE - estimatedCost ? Long.MAX_VALUE : estimatedCost + cost;
+	}
+
+	/**
+	 * Returns the most steps the loop of a built-in function can take with the given arguments, NaN being those not known, or 0 if the function has no loop.
+	 * Exact class checks: a subclass may override the calculation.
+	 */
+	private static double getSteps(Function function, double[] arguments) {
+		Class<?> type = function.getClass();
+		if (arguments.length != 2 && (type == Function.Permutation.class || type == Function.Combination.class)) return 0; // Rejected at once.
+		if (type == Function.Permutation.class) return bound(Math.floor(arguments[1]), maxPermutationSteps);
+		if (type == Function.Combination.class) {
+			double n = Math.floor(arguments[0]), k = Math.floor(arguments[1]);
+			return bound(Double.isNaN(n) ? k : Double.isNaN(k) ? Math.floor(n / 2) : Math.min(k, n - k), maxCombinationSteps);
+		}
+		if (type == Function.GCD.class || type == Function.LCM.class) {
+			// Each argument after the first takes a run of Euclid's algorithm, which is no longer than for the smallest number.
+			double smallest = Double.MAX_VALUE; // Arguments that are not known may be as large as any.
+			for (double argument : arguments) if (Math.abs(argument) < smallest) smallest = Math.abs(argument);
+			return (arguments.length - 1) * getEuclidSteps(smallest);
+		}
+		return 0;
+	}
+
+	/**
+	 * Limits the steps to those the loop can take at most, which is also the bound when they are not known.
+	 */
+	private static double bound(double steps, double max) {
+		return Double.isNaN(steps) ? max : Math.max(0, Math.min(steps, max));
+	}
+
+	/**
+	 * Returns the most steps Euclid's algorithm takes when one of the numbers is at most the given magnitude. The worst case is two consecutive Fibonacci numbers.
+	 */
+	private static double getEuclidSteps(double magnitude) {
+		return magnitude < 1 ? 1 : Math.ceil(Math.log(magnitude) / logGoldenRatio) + 2;
+	}
+
+	/**
+	 * Returns the number of characters of the expression, which {@link EvaluationBudget#maxInputLength} limits.
+	 */
+	public int getInputLength() {
+		return inputLength;
+	}
+
+	/**
+	 * Returns the number of operators and function calls of the expression as written, which {@link EvaluationBudget#maxOperations} limits.
+	 */
+	public int getOperationCount() {
+		return operationCount;
+	}
+
+	/**
+	 * Returns the deepest nesting of braces of the expression as written, which {@link EvaluationBudget#maxDepth} limits.
+	 */
+	public int getNestingDepth() {
+		return nestingDepth;
+	}
+
+	/**
+	 * Returns the number of nodes of the compiled tree.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the depth of the compiled tree; a single number or variable has depth 1.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns an estimate of the work of one evaluation: one for each node, plus the most steps each call of a built-in function with a loop can take.
+	 * Functions that are not built in are counted as one step, as what they do is not known. The cost is {@link Long#MAX_VALUE} if a call is not bounded.
+	 */
+	public long getEstimatedCost() {
+		return estimatedCost;
+	}
+
+	/**
+	 * Returns the names of the variables the expression reads, lowercase and in the order they first appear.
+	 */
+	public Set<String> getVariables() {
+		return Collections.unmodifiableSet(variables);
+	}
+
+	/**
+	 * Returns the functions the expression calls, in the order they first appear. Plain braces call {@link Function.Sum}.
+	 */
+	public Set<Function> getFunctions() {
+		return Collections.unmodifiableSet(functions);
+	}
+
+	/**
+	 * Returns the calls of built-in functions whose time depends on their arguments, such as {@code gcd} and {@code c}.
+	 */
+	public List<LoopingCall> getLoopingCalls() {
+		return Collections.unmodifiableList(loopingCalls);
+	}
+
+	/**
+	 * Tells whether evaluating the expression within the budget can only fail on time or cancellation, not on its size.
+	 */
+	public boolean fitsIn(EvaluationBudget budget) {
+		return inputLength <= budget.maxInputLength && nestingDepth <= budget.maxDepth && operationCount <= budget.maxOperations;
+	}
+
+	/**
+	 * A call of a built-in function that runs a loop.
+	 */
+	public static class LoopingCall {
+		private final Function function;
+		private final double[] arguments;
+		private final long maxSteps;
+
+		LoopingCall(Function function, double[] arguments, long maxSteps) {
+			this.function = function;
+			this.arguments = arguments;
+			this.maxSteps = maxSteps;
+		}
+
+		public Function getFunction() {
+			return function;
+		}
+
+		/**
+		 * Returns the values of the arguments that are constants, and NaN for the others.
+		 */
+		public double[] getArguments() {
+			return arguments.clone();
+		}
+
+		/**
+		 * Returns the most steps the loop can take, knowing the constant arguments, or {@link Long#MAX_VALUE} if a constant argument is out of the range the bound holds for.
+		 */
+		public long getMaxSteps() {
+			return maxSteps;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of compiled expressions, keyed by the expression without whitespace and the settings that affect parsing.
+ * The least recently used entries are evicted when there are more than {@code maxEntries} entries or when their total weight exceeds {@code maxWeight}; the weight of an entry is the length of its key.
+ * Lookups do not block each other. When another thread is updating the cache, a lookup skips updating the recency order, so the order is only approximate under contention.
+ */
+public class ExpressionCache {
+	private static final int fingerprintCount = 32;
+
+	private final int maxEntries;
+	private final long maxWeight;
+
+	// One map for each settings fingerprint, keyed by the expression alone, so that a lookup makes no key.
+	private final ConcurrentHashMap<String, Entry>[] maps = newMaps();
+	private final LinkedHashMap<Key, Key> order = new LinkedHashMap<Key, Key>(16, 0.75f, true); // Guarded by lock; the eldest entry is the least recently used.
+	private final ReentrantLock lock = new ReentrantLock();
+	private long weight = 0; // Guarded by lock.
+	private volatile long generation = 0; // Incremented by every clear so that expressions parsed before it are not added after it.
+
+	private final LongAdder
+		hits = new LongAdder(),
+		misses = new LongAdder(),
+		evictions = new LongAdder();
+
+	public ExpressionCache(int maxEntries, long maxWeight) {
+		if (maxEntries < 0) throw new IllegalArgumentException("maxEntries must not be negative.");
+		if (maxWeight < 0) throw new IllegalArgumentException("maxWeight must not be negative.");
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns the cached expression for the given expression without whitespace and settings fingerprint, or {@code null} if there is none.
+	 * A hit does not allocate.
+	 */
+	CompiledExpression get(String trimmedExpression, int settings) {
+		Entry entry = maps[settings].get(trimmedExpression);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		if (lock.tryLock()) try {
+			order.get(entry.key);
+		} finally {
+			lock.unlock();
+		}
+		return entry.expression;
+	}
+
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Adds an expression parsed after {@link #getGeneration()} returned the given generation. Nothing is added if the cache has been cleared since.
+	 */
+	void put(String trimmedExpression, int settings, CompiledExpression expression, long generation) {
+		Key key = new Key(trimmedExpression, settings);
+		int entryWeight = trimmedExpression.length();
+		if (maxEntries == 0 || entryWeight > maxWeight) return;
+		lock.lock();
+		try {
+			if (generation != this.generation || maps[settings].putIfAbsent(trimmedExpression, new Entry(key, expression)) != null) return;
+			order.put(key, key);
+			weight += entryWeight;
+			Iterator<Key> eldest = order.keySet().iterator();
+			while (order.size() > maxEntries || weight > maxWeight) {
+				Key evicted = eldest.next();
+				eldest.remove();
+				maps[evicted.settings].remove(evicted.expression);
+				weight -= evicted.expression.length();
+				evictions.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes every entry. The counters are kept.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			for (ConcurrentHashMap<String, Entry> map : maps) map.clear();
+			order.clear();
+			weight = 0;
+			generation++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public int size() {
+		int size = 0;
+		for (ConcurrentHashMap<String, Entry> map : maps) size += map.size();
+		return size;
+	}
+
+	public long getWeight() {
+		lock.lock();
+		try {
+			return weight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static ConcurrentHashMap<String, Entry>[] newMaps() {
+		ConcurrentHashMap<String, Entry>[] maps = new ConcurrentHashMap[fingerprintCount];
+		for (int i = 0; i < fingerprintCount; i++) maps[i] = new ConcurrentHashMap<String, Entry>();
+		return maps;
+	}
+
+	/**
+	 * Packs the settings that affect parsing into one number below {@link #fingerprintCount}.
+	 */
+	static int fingerprint(CalculationContext settings) {
+		return
+			(settings.decimalDot ? 1 : 0)
+			| (settings.enforceDecimalSeparator ? 2 : 0)
+			| (settings.thousandDot ? 4 : 0)
+			| (settings.mulAsterisk ? 8 : 0)
+			| (settings.enforceMulDiv ? 16 : 0);
+	}
+
+	private static class Entry {
+		final Key key;
+		final CompiledExpression expression;
+
+		Entry(Key key, CompiledExpression expression) {
+			this.key = key;
+			this.expression = expression;
+		}
+	}
+
+	private static class Key {
+		final String expression;
+		final int settings;
+
+		Key(String expression, int settings) {
+			this.expression = expression;
+			this.settings = settings;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) return false;
+			Key key = (Key)other;
+			return settings == key.settings && expression.equals(key.expression);
+		}
+
+		@Override
+		public int hashCode() {
+			return expression.hashCode() * 31 + settings;
+		}
+	}
+}
@@ -1,28 +1,32 @@
 package cf.leduyquang753.calcit;
 
+/**
+ * An expression that cannot be calculated. The key tells why, and the position, if any, is 1-based in the original text.
+ * Invalid input is common and expected, so the exception does not capture a stack trace, which would cost more than parsing.
+ */
 public class ExpressionInvalidException extends Exception {
 	private static final long serialVersionUID = -8453470294521018709L;
 	private int position = -1;
 	private Object[] messageArguments = null;
 
 	public ExpressionInvalidException(String key, int position, Object[] messageArguments) {
-		super(key);
+		super(key, null, false, false);
 		this.position = position;
 		this.messageArguments = messageArguments;
 	}
 	
 	public ExpressionInvalidException(String key, Object[] messageArguments) {
-		super(key);
+		super(key, null, false, false);
 		this.messageArguments = messageArguments;
 	}
 	
 	public ExpressionInvalidException(String key, int position) {
-		super(key);
+		super(key, null, false, false);
 		this.position = position;
 	}
 	
 	public ExpressionInvalidException(String key) {
-		super(key);
+		super(key, null, false, false);
 	}
 	
 	public int getPosition() {
@@ -0,0 +1,236 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculates lines in formula mode: a variable assigned by a line such as {@code a = b + 1} keeps its expression as its formula, like a spreadsheet cell.
+ * When a variable is assigned again, only the formulas that depend on it, directly or not, are recalculated, each after the formulas it reads.
+ * A line that would make a formula depend on itself is rejected with the {@code circularReference} error.
+ * <p>
+ * The variables live in the context given to the sheet. Variables assigned to the context by other means are read by the formulas but changing them does not trigger recalculation.
+ * Like its context, a sheet is not thread-safe.
+ */
+public class FormulaSheet {
+	private final CalculationContext context;
+	private final CalculatorEngine engine;
+	private final Map<String, Formula> formulas = new HashMap<String, Formula>();
+	private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>(); // The formulas that read each variable.
+	private List<String> recalculated = Collections.emptyList();
+
+	public FormulaSheet(CalculationContext context) {
+		this.context = context;
+		engine = context.getEngine();
+	}
+
+	public CalculationContext getContext() {
+		return context;
+	}
+
+	/**
+	 * Calculates a line in the context, updating its answer history, as {@link CalculatorEngine#calculate(String, CalculationContext)} does.
+	 * Each variable on the left of the equal signs gets the expression as its formula, replacing its previous one, and the formulas that depend on it are recalculated.
+	 * @throws ExpressionInvalidException If the line is invalid or would create a circular reference, in which case nothing changes, or if the expression fails to evaluate.
+	 * In the last case the formula is still kept, its variables are unset and the error is given by {@link #getError(String)}.
+	 */
+	public double calculate(String line) throws ExpressionInvalidException {
+		recalculated = Collections.emptyList();
+		CompiledExpression expression = engine.compile(line, context);
+		Set<String> targets = new LinkedHashSet<String>();
+		for (String name : expression.getVariablesToAssign()) if (engine.findVariableSlot(name) >= 0) targets.add(name);
+		if (targets.isEmpty()) return expression.evaluate(context);
+		Set<String> precedents = new HashSet<String>();
+		if (expression.getRoot() != null) {
+			collectVariables(expression.getRoot(), precedents);
+			checkCycles(targets, precedents);
+		}
+		for (String name : targets) {
+			removeFormula(name);
+			if (expression.getRoot() != null) addFormula(new Formula(name, expression, precedents));
+		}
+		double result;
+		try {
+			result = expression.evaluate(context);
+		} catch (ExpressionInvalidException e) {
+			for (String name : targets) {
+				formulas.get(name).error = e;
+				context.unsetVariable(engine.findVariableSlot(name));
+			}
+			recalculate(targets);
+			throw e;
+		}
+		recalculate(targets);
+		return result;
+	}
+
+	/**
+	 * Removes the formula of the variable and unsets it, then recalculates the formulas that depend on it.
+	 */
+	public void remove(String name) {
+		name = CalculatorEngine.lowercaseAndRemoveWhitespace(name);
+		recalculated = Collections.emptyList();
+		int slot = engine.findVariableSlot(name);
+		if (slot == Integer.MAX_VALUE) return;
+		removeFormula(name);
+		context.unsetVariable(slot);
+		recalculate(Collections.singleton(name));
+	}
+
+	/**
+	 * Returns the expression of the formula of the variable, or {@code null} if it has none.
+	 */
+	public CompiledExpression getFormula(String name) {
+		Formula formula = formulas.get(CalculatorEngine.lowercaseAndRemoveWhitespace(name));
+		return formula == null ? null : formula.expression;
+	}
+
+	/**
+	 * Returns the error of the last calculation of the formula of the variable, or {@code null} if it succeeded or the variable has no formula.
+	 */
+	public ExpressionInvalidException getError(String name) {
+		Formula formula = formulas.get(CalculatorEngine.lowercaseAndRemoveWhitespace(name));
+		return formula == null ? null : formula.error;
+	}
+
+	/**
+	 * Returns the variables whose formulas read the variable directly.
+	 */
+	public Set<String> getDependents(String name) {
+		Set<String> result = dependents.get(CalculatorEngine.lowercaseAndRemoveWhitespace(name));
+		return result == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(result);
+	}
+
+	/**
+	 * Returns the variables whose formulas were recalculated by the last call to {@link #calculate(String)}, in the order they were recalculated.
+	 */
+	public List<String> getRecalculated() {
+		return Collections.unmodifiableList(recalculated);
+	}
+
+	private static void collectVariables(Node root, Set<String> names) {
+		new TreeWalk<Void, RuntimeException>() {
+			@Override
+			boolean enter(Node node) {
+				if (node instanceof Node.Variable) {
+					if (((Node.Variable)node).getSlot() >= 0) names.add(((Node.Variable)node).getName());
+				} else if (node instanceof MethodHandleBackend.HandleNode) collectVariables(((MethodHandleBackend.HandleNode)node).getSource(), names);
+				return true;
+			}
+
+			@Override
+			Void leave(Node node) {
+				return null;
+			}
+		}.walk(root);
+	}
+
+	/**
+	 * Throws if a variable read by the new formula of the targets depends on one of them.
+	 */
+	private void checkCycles(Set<String> targets, Set<String> precedents) throws ExpressionInvalidException {
+		Map<String, String> reachedFrom = new HashMap<String, String>();
+		ArrayDeque<String> pending = new ArrayDeque<String>();
+		for (String name : precedents) {
+			reachedFrom.put(name, null);
+			pending.add(name);
+		}
+		while (!pending.isEmpty()) {
+			String name = pending.poll();
+			if (targets.contains(name)) {
+				List<String> cycle = new ArrayList<String>();
+				for (String step = name; step != null; step = reachedFrom.get(step)) cycle.add(step);
+				cycle.add(name);
+				Collections.reverse(cycle);
+				throw new ExpressionInvalidException("circularReference", new String[] { String.join(" -> ", cycle) });
+			}
+			Formula formula = formulas.get(name);
+			if (formula != null) for (String precedent : formula.precedents) if (!reachedFrom.containsKey(precedent)) {
+				reachedFrom.put(precedent, name);
+				pending.add(precedent);
+			}
+		}
+	}
+
+	private void addFormula(Formula formula) {
+		formulas.put(formula.name, formula);
+		for (String precedent : formula.precedents) {
+			Set<String> names = dependents.get(precedent);
+			if (names == null) dependents.put(precedent, names = new HashSet<String>());
+			names.add(formula.name);
+		}
+	}
+
+	private void removeFormula(String name) {
+		Formula formula = formulas.remove(name);
+		if (formula != null) for (String precedent : formula.precedents) {
+			Set<String> names = dependents.get(precedent);
+			names.remove(name);
+			if (names.isEmpty()) dependents.remove(precedent);
+		}
+	}
+
+	/**
+	 * Recalculates every formula that depends on the changed variables, in topological order.
+	 */
+	private void recalculate(Set<String> changed) {
+		// Find the affected formulas.
+		Set<String> affected = new HashSet<String>();
+		ArrayDeque<String> pending = new ArrayDeque<String>(changed);
+		while (!pending.isEmpty()) {
+			Set<String> names = dependents.get(pending.poll());
+			if (names != null) for (String name : names) if (!changed.contains(name) && affected.add(name)) pending.add(name);
+		}
+		// Count for each one how many of the formulas it reads are still to be recalculated.
+		Map<String, Integer> waiting = new HashMap<String, Integer>();
+		for (String name : affected) {
+			int count = 0;
+			for (String precedent : formulas.get(name).precedents) if (affected.contains(precedent)) count++;
+			if (count == 0) pending.add(name);
+			else waiting.put(name, count);
+		}
+		List<String> order = new ArrayList<String>(affected.size());
+		while (!pending.isEmpty()) {
+			String name = pending.poll();
+			order.add(name);
+			Formula formula = formulas.get(name);
+			int slot = engine.findVariableSlot(name);
+			try {
+				context.setVariable(slot, formula.expression.evaluateValue(context));
+				formula.error = null;
+			} catch (ExpressionInvalidException e) {
+				context.unsetVariable(slot);
+				formula.error = e;
+			}
+			Set<String> names = dependents.get(name);
+			if (names != null) for (String dependent : names) {
+				Integer count = waiting.get(dependent);
+				if (count == null) continue;
+				if (count == 1) {
+					waiting.remove(dependent);
+					pending.add(dependent);
+				} else waiting.put(dependent, count - 1);
+			}
+		}
+		recalculated = order;
+	}
+
+	private static class Formula {
+		final String name;
+		final CompiledExpression expression;
+		final Set<String> precedents;
+		ExpressionInvalidException error = null;
+
+		Formula(String name, CompiledExpression expression, Set<String> precedents) {
+			this.name = name;
+			this.expression = expression;
+			this.precedents = precedents;
+		}
+	}
+}
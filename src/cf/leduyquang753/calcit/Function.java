@@ -1,165 +1,308 @@
 package cf.leduyquang753.calcit;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public abstract class Function {
+	/**
+	 * What the result of a function depends on, which tells the optimizer what it may do with calls to it.
+	 */
+	public static enum Purity {
+		/** The result depends only on the arguments; calls with constant arguments are folded when compiling. */
+		PURE,
+		/** The result depends on the arguments and the settings of the context, so calls are not folded but repeated calls are evaluated only once. */
+		SETTINGS_DEPENDENT,
+		/** The result may differ between calls with the same arguments, such as random numbers; calls are never folded nor shared. */
+		NONDETERMINISTIC
+	}
+
 	private String[] names;
-	private static Random random = new Random();
+	private Purity purity;
 	
+	/**
+	 * Creates a function that the optimizer leaves alone, as it cannot know what the result depends on.
+	 */
 	public Function(String[] names) {
+		this(names, Purity.NONDETERMINISTIC);
+	}
+
+	public Function(String[] names, Purity purity) {
 		this.names = names;
+		this.purity = purity;
 	}
 	
 	public abstract double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException;
+
+	/**
+	 * Calculates within a context. Functions that depend on settings should override this to read them from the context; by default the engine's own settings are used.
+	 */
+	public double calculate(List<Double> arguments, CalculationContext context) throws ExpressionInvalidException {
+		return calculate(arguments, context.getEngine());
+	}
+
+	/**
+	 * Calculates with one argument. Evaluation calls this for calls with one argument; by default it goes through {@link #calculateN}.
+	 */
+	public double calculate1(double argument, CalculationContext context) throws ExpressionInvalidException {
+		return calculateN(new double[] { argument }, 0, 1, context);
+	}
+
+	/**
+	 * Calculates with two arguments. Evaluation calls this for calls with two arguments; by default it goes through {@link #calculateN}.
+	 */
+	public double calculate2(double argument1, double argument2, CalculationContext context) throws ExpressionInvalidException {
+		return calculateN(new double[] { argument1, argument2 }, 0, 2, context);
+	}
+
+	/**
+	 * Calculates with the {@code count} arguments starting at {@code offset} in the array, which must be neither modified nor kept.
+	 * By default the arguments are boxed into a list for {@link #calculate(List, CalculationContext)}; functions that override this and the other primitive overloads avoid that.
+	 */
+	public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+		List<Double> values = new ArrayList<Double>(count);
+		for (int i = offset; i < offset + count; i++) values.add(arguments[i]);
+		return calculate(values, context);
+	}
 	
 	protected static double total(List<Double> arguments) {
 		double total = 0;
 		for (double d : arguments) total += d;
 		return total;
 	}
+
+	protected static double total(double[] arguments, int offset, int count) {
+		double total = 0;
+		for (int i = offset; i < offset + count; i++) total += arguments[i];
+		return total;
+	}
 	
 	public String[] getNames() {
 		return names;
 	}
+
+	public Purity getPurity() {
+		return purity;
+	}
 	
+	/**
+	 * Returns the random number generator of the current thread, so that functions using it do not contend when calculating on many threads.
+	 */
 	protected Random getRandom() {
-		return random;
+		return ThreadLocalRandom.current();
+	}
+
+	/**
+	 * Base of the functions that calculate on primitive arguments only. The list overloads unbox the arguments for {@link #calculateN}.
+	 */
+	public static abstract class PrimitiveFunction extends Function {
+		public PrimitiveFunction(String[] names, Purity purity) {
+			super(names, purity);
+		}
+		@Override
+		public abstract double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException;
+		@Override
+		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
+			return calculate(arguments, new CalculationContext(engine));
+		}
+		@Override
+		public double calculate(List<Double> arguments, CalculationContext context) throws ExpressionInvalidException {
+			double[] values = new double[arguments.size()];
+			for (int i = 0; i < values.length; i++) values[i] = arguments.get(i);
+			return calculateN(values, 0, values.length, context);
+		}
+	}
+
+	/**
+	 * Base of the functions of the sum of their arguments.
+	 */
+	public static abstract class TotalFunction extends PrimitiveFunction {
+		public TotalFunction(String[] names, Purity purity) {
+			super(names, purity);
+		}
+		protected abstract double calculate(double total) throws ExpressionInvalidException;
+		@Override
+		public double calculate1(double argument, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(0 + argument); // Summed from 0 like total(), which turns -0 into 0.
+		}
+		@Override
+		public double calculate2(double argument1, double argument2, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(0 + argument1 + argument2);
+		}
+		@Override
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(total(arguments, offset, count));
+		}
+		@Override
+		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
+			return calculate(total(arguments));
+		}
+		@Override
+		public double calculate(List<Double> arguments, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(total(arguments));
+		}
+	}
+
+	/**
+	 * Base of the functions of the sum of their arguments that depend on the angle unit, which is read from the context when there is one.
+	 */
+	public static abstract class AngleFunction extends PrimitiveFunction {
+		public AngleFunction(String[] names) {
+			super(names, Purity.SETTINGS_DEPENDENT);
+		}
+		protected abstract double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException;
+		@Override
+		public double calculate1(double argument, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(0 + argument, context.angleUnit);
+		}
+		@Override
+		public double calculate2(double argument1, double argument2, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(0 + argument1 + argument2, context.angleUnit);
+		}
+		@Override
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(total(arguments, offset, count), context.angleUnit);
+		}
+		@Override
+		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
+			return calculate(total(arguments), engine.angleUnit);
+		}
+		@Override
+		public double calculate(List<Double> arguments, CalculationContext context) throws ExpressionInvalidException {
+			return calculate(total(arguments), context.angleUnit);
+		}
 	}
 	
-	public static class Sum extends Function {
+	public static class Sum extends TotalFunction {
 		public Sum() {
-			super(new String[] { "", "sum", "total" });
+			super(new String[] { "", "sum", "total" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return total(arguments);
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return total;
 		}
 	}
 
-	public static class Sin extends Function {
+	public static class Sin extends AngleFunction {
 		public Sin() {
 			super(new String[] { "sin", "sine" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Math.sin(engine.angleUnit.convertToRadians(total(arguments)));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return Math.sin(angleUnit.convertToRadians(total));
 		}
 	}
 
-	public static class Cos extends Function {
+	public static class Cos extends AngleFunction {
 		public Cos() {
 			super(new String[] { "cos", "cosine" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Math.cos(engine.angleUnit.convertToRadians(total(arguments)));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return Math.cos(angleUnit.convertToRadians(total));
 		}
 	}
 
-	public static class Tan extends Function {
+	public static class Tan extends AngleFunction {
 		public Tan() {
 			super(new String[] { "tan", "tangent", "tang", "tg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
+		protected double calculate(double tot, AngleUnit angleUnit) throws ExpressionInvalidException {
 			if (Math.cos(tot) == 0) throw new ExpressionInvalidException("divisionByZero");
-			return Math.tan(engine.angleUnit.convertToRadians(tot));
+			return Math.tan(angleUnit.convertToRadians(tot));
 		}
 	}
 
-	public static class Cot extends Function {
+	public static class Cot extends AngleFunction {
 		public Cot() {
 			super(new String[] { "cot", "cotangent", "cotang", "cotg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
+		protected double calculate(double tot, AngleUnit angleUnit) throws ExpressionInvalidException {
 			if (Math.sin(tot) == 0) throw new ExpressionInvalidException("divisionByZero");
-			return 1 / Math.tan(engine.angleUnit.convertToRadians(tot));
+			return 1 / Math.tan(angleUnit.convertToRadians(tot));
 		}
 	}
 
-	public static class ArcSin extends Function {
+	public static class ArcSin extends AngleFunction {
 		public ArcSin() {
 			super(new String[] { "arcsin", "arcsine", "sin_1", "sine_1", "asin" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
+		protected double calculate(double tot, AngleUnit angleUnit) throws ExpressionInvalidException {
 			if (tot < -1 || tot > 1) throw new ExpressionInvalidException("invalidArcsinArg"); // TODO extends Add the number.
-			return engine.angleUnit.convertFromRadians(Math.asin(tot));
+			return angleUnit.convertFromRadians(Math.asin(tot));
 		}
 	}
 
-	public static class ArcCos extends Function {
+	public static class ArcCos extends AngleFunction {
 		public ArcCos() {
 			super(new String[] { "arccos", "arccosine", "cos_1", "cosine_1", "acos" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
+		protected double calculate(double tot, AngleUnit angleUnit) throws ExpressionInvalidException {
 			if (tot < -1 || tot > 1) throw new ExpressionInvalidException("invalidArccosArg"); // TODO extends Add the number.
-			return engine.angleUnit.convertFromRadians(Math.acos(tot));
+			return angleUnit.convertFromRadians(Math.acos(tot));
 		}
 	}
 
-	public static class ArcTan extends Function {
+	public static class ArcTan extends AngleFunction {
 		public ArcTan() {
 			super(new String[] { "arctan", "arctangent", "arctang", "arctg", "tan_1", "tangent_1", "tang_1", "tg_1", "atan", "atg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertFromRadians(Math.atan(total(arguments)));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertFromRadians(Math.atan(total));
 		}
 	}
 
-	public static class ArcCot extends Function {
+	public static class ArcCot extends AngleFunction {
 		public ArcCot() {
 			super(new String[] { "arccot", "arccotangent", "arccotang", "arccotg", "cot_1", "cotangent_1", "cotang_1", "cotg_1", "acot", "acotg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
-			if (tot == 0) return engine.angleUnit.convertFromDegrees(90);
-			return engine.angleUnit.convertFromRadians(Math.atan(1 / tot));
+		protected double calculate(double tot, AngleUnit angleUnit) throws ExpressionInvalidException {
+			if (tot == 0) return angleUnit.convertFromDegrees(90);
+			return angleUnit.convertFromRadians(Math.atan(1 / tot));
 		}
 	}
 
-	public static class Floor extends Function {
+	public static class Floor extends TotalFunction {
 		public Floor() {
-			super(new String[] { "floor", "flr" });
+			super(new String[] { "floor", "flr" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Math.floor(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Math.floor(total);
 		}
 	}
 
-	public static class Abs extends Function {
+	public static class Abs extends TotalFunction {
 		public Abs() {
-			super(new String[] { "abs", "absolute" });
+			super(new String[] { "abs", "absolute" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Math.abs(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Math.abs(total);
 		}
 	}
 
-	public static class GCD extends Function {
+	public static class GCD extends PrimitiveFunction {
 		public GCD() {
-			super(new String[] { "gcd", "greatestCommonDivisor", "greatest_common_divisor" });
+			super(new String[] { "gcd", "greatestCommonDivisor", "greatest_common_divisor" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() == 1) {
-				double r = Math.floor(Math.abs(arguments.get(0)));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count == 1) {
+				double r = Math.floor(Math.abs(arguments[offset]));
 				return r == 0 ? 1 : r;
 			}
-			double res = Math.floor(Math.abs(arguments.get(0)));
-			for (int i = 1; i < arguments.size(); i++) {
-				double n = Math.floor(Math.abs(arguments.get(i)));
+			if (!Utils.areFinite(arguments, offset, count)) return Double.NaN; // Euclid's algorithm would never end.
+			double res = Math.floor(Math.abs(arguments[offset]));
+			for (int i = 1; i < count; i++) {
+				double n = Math.floor(Math.abs(arguments[offset + i]));
 				while (n != 0) {
 					double temp = n;
 					n = Utils.mod(res, n);
@@ -170,16 +313,17 @@ public abstract class Function {
 		}
 	}
 
-	public static class LCM extends Function {
+	public static class LCM extends PrimitiveFunction {
 		public LCM() {
-			super(new String[] { "lcm", "lowestCommonMultiplier", "lowest_common_multiplier" });
+			super(new String[] { "lcm", "lowestCommonMultiplier", "lowest_common_multiplier" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() == 1) return Math.floor(Math.abs(arguments.get(0)));
-			double res = Math.floor(Math.abs(arguments.get(0)));
-			for (int i = 1; i < arguments.size(); i++) {
-				double n = Math.floor(Math.abs(arguments.get(i)));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count == 1) return Math.floor(Math.abs(arguments[offset]));
+			if (!Utils.areFinite(arguments, offset, count)) return Double.NaN; // Euclid's algorithm would never end.
+			double res = Math.floor(Math.abs(arguments[offset]));
+			for (int i = 1; i < count; i++) {
+				double n = Math.floor(Math.abs(arguments[offset + i]));
 				double t = n;
 				double t2 = res;
 				while (t2 != 0) {
@@ -193,232 +337,220 @@ public abstract class Function {
 		}
 	}
 
-	public static class Fact extends Function {
+	public static class Fact extends TotalFunction {
 		public Fact() {
-			super(new String[] { "fact", "factorial" });
+			super(new String[] { "fact", "factorial" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double total = 0;
-			for (double argument : arguments) total += argument;
+		protected double calculate(double total) throws ExpressionInvalidException {
 			double n = Math.floor(total);
 			if (n < 0) throw new ExpressionInvalidException("invalidFactorialArg");
-			total = 1;
-			for (double i = 1; i <= n; i += 1) total *= i;
-			return total;
+			return Utils.factorial(n);
 		}
 	}
 
-	public static class Log extends Function {
+	public static class Log extends PrimitiveFunction {
 		public Log() {
-			super(new String[] { "log", "logarithm", "logarid" });
+			super(new String[] { "log", "logarithm", "logarid" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() == 1) {
-				if (arguments.get(0) <= 0) throw new ExpressionInvalidException("invalidLogInput");
-				return Math.log10(arguments.get(0));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count == 1) {
+				if (arguments[offset] <= 0) throw new ExpressionInvalidException("invalidLogInput");
+				return Math.log10(arguments[offset]);
 			} else {
-				if (arguments.get(0) <= 0 || arguments.get(0) == 1) throw new ExpressionInvalidException("invalidLogBase");
+				if (arguments[offset] <= 0 || arguments[offset] == 1) throw new ExpressionInvalidException("invalidLogBase");
 				double total = 0;
-				for (int i = 1; i < arguments.size(); i++) total += arguments.get(i);
+				for (int i = 1; i < count; i++) total += arguments[offset + i];
 				if (total <= 0) throw new ExpressionInvalidException("invalidLogInput");
-				return Math.log(total)/Math.log(arguments.get(0));
+				return Math.log(total)/Math.log(arguments[offset]);
 			}
 		}
 	}
 
-	public static class Ln extends Function {
+	public static class Ln extends TotalFunction {
 		public Ln() {
-			super(new String[] { "logn", "loge", "natural_algorithm", "natural_logarid" });
+			super(new String[] { "logn", "loge", "natural_algorithm", "natural_logarid" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double tot = total(arguments);
+		protected double calculate(double total) throws ExpressionInvalidException {
+			double tot = total;
 			if (tot <= 0) throw new ExpressionInvalidException("invalidLogInput");
 			return Math.log(tot);
 		}
 	}
 
-	public static class Permutation extends Function {
+	public static class Permutation extends PrimitiveFunction {
 		public Permutation() {
-			super(new String[] { "p", "permutation", "permut" });
+			super(new String[] { "p", "permutation", "permut" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() != 2) throw new ExpressionInvalidException("invalidPermutationNumArgs");
-			double n = Math.floor(arguments.get(0));
-			double k = Math.floor(arguments.get(1));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count != 2) throw new ExpressionInvalidException("invalidPermutationNumArgs");
+			double n = Math.floor(arguments[offset]);
+			double k = Math.floor(arguments[offset + 1]);
 			if (n < 0 || k < 0) throw new ExpressionInvalidException("invalidPermutationNegativeArgs");
 			if (k > n) return 0;
-			k = n - k;
+			if (n == Double.POSITIVE_INFINITY) return k == 0 ? 1 : n;
+			// The result is at least k!, which overflows beyond 170, so the loop below runs at most 170 times.
+			if (k > 170) return Double.POSITIVE_INFINITY;
 			double res = 1;
-			while (k < n) res *= k++;
+			for (long i = 0; i < k; i++) res *= n - i;
 			return res;
 		}
 	}
 
-	public static class Combination extends Function {
+	public static class Combination extends PrimitiveFunction {
 		public Combination() {
-			super(new String[] { "c", "combination", "combin" });
+			super(new String[] { "c", "combination", "combin" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() != 2) throw new ExpressionInvalidException("invalidCombinationNumArgs");
-			double n = Math.floor(arguments.get(0));
-			double k = Math.floor(arguments.get(1));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count != 2) throw new ExpressionInvalidException("invalidCombinationNumArgs");
+			double n = Math.floor(arguments[offset]);
+			double k = Math.floor(arguments[offset + 1]);
 			if (n < 0 || k < 0) throw new ExpressionInvalidException("invalidCombinationNegativeArgs");
 			if (k > n) return 0;
-			double i = n - k;
+			k = Math.min(k, n - k);
+			if (n == Double.POSITIVE_INFINITY) return k == 0 ? 1 : n;
+			// The result is at least 2^k, which overflows beyond 1024, so the loop below runs at most 1024 times. The count is checked itself, as n - k rounds to n for large n.
+			if (k > 1024 || Utils.logFactorial(n) - Utils.logFactorial(k) - Utils.logFactorial(n - k) > Utils.logMaxValue + 1) return Double.POSITIVE_INFINITY;
+			// Each step gives the combinations of i among n - k + i, an integer, so the result is exact as long as the products fit in the 53 bits of a double.
 			double res = 1;
-			while (i < n) res *= ++i;
-			i = 0;
-			while (i < k) res /= ++i;
+			for (long i = 1; i <= k; i++) res = res * (n - k + i) / i;
 			return res;
 		}
 	}
 
-	public static class Round extends Function {
+	public static class Round extends TotalFunction {
 		public Round() {
-			super(new String[] { "round", "rnd" });
+			super(new String[] { "round", "rnd" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double total = 0;
-			for (double argument : arguments) total += argument;
+		protected double calculate(double total) throws ExpressionInvalidException {
 			return Math.round(total);
 		}
 	}
 
-	public static class DegToRad extends Function {
+	public static class DegToRad extends TotalFunction {
 		public DegToRad() {
-			super(new String[] { "dtr", "degToRad", "deg_to_rad", "degreesToRadians", "degrees_to_radians" });
+			super(new String[] { "dtr", "degToRad", "deg_to_rad", "degreesToRadians", "degrees_to_radians" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.degToRad(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.degToRad(total);
 		}
 	}
 
-	public static class RadToDeg extends Function {
+	public static class RadToDeg extends TotalFunction {
 		public RadToDeg() {
-			super(new String[] { "rtd", "radToDeg", "rad_to_deg", "radiansToDegrees", "radians_to_degrees" });
+			super(new String[] { "rtd", "radToDeg", "rad_to_deg", "radiansToDegrees", "radians_to_degrees" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.radToDeg(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.radToDeg(total);
 		}
 	}
 
-	public static class DegToGrad extends Function {
+	public static class DegToGrad extends TotalFunction {
 		public DegToGrad() {
-			super(new String[] { "dtg", "degToGrad", "deg_to_grad", "degreesToGradians", "degrees_to_gradians" });
+			super(new String[] { "dtg", "degToGrad", "deg_to_grad", "degreesToGradians", "degrees_to_gradians" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.degToGrad(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.degToGrad(total);
 		}
 	}
 
-	public static class GradToDeg extends Function {
+	public static class GradToDeg extends TotalFunction {
 		public GradToDeg() {
-			super(new String[] { "gtd", "gradToDeg", "grad_to_deg", "gradiansToDegrees", "gradians_to_degrees" });
+			super(new String[] { "gtd", "gradToDeg", "grad_to_deg", "gradiansToDegrees", "gradians_to_degrees" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.gradToDeg(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.gradToDeg(total);
 		}
 	}
 
-	public static class GradToRad extends Function {
+	public static class GradToRad extends TotalFunction {
 		public GradToRad() {
-			super(new String[] { "gtr", "gradToRad", "grad_to_rad", "gradiansToRadians", "gradians_to_radians" });
+			super(new String[] { "gtr", "gradToRad", "grad_to_rad", "gradiansToRadians", "gradians_to_radians" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.gradToRad(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.gradToRad(total);
 		}
 	}
 
-	public static class RadToGrad extends Function {
+	public static class RadToGrad extends TotalFunction {
 		public RadToGrad() {
-			super(new String[] { "rtg", "radToGrad", "rad_to_grad", "radiansToGradians", "radians_to_gradians" });
+			super(new String[] { "rtg", "radToGrad", "rad_to_grad", "radiansToGradians", "radians_to_gradians" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.radToGrad(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.radToGrad(total);
 		}
 	}
 
-	public static class Max extends Function {
+	public static class Max extends PrimitiveFunction {
 		public Max() {
-			super(new String[] { "max", "maximum" });
+			super(new String[] { "max", "maximum" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double max = 0;
-			boolean isFirst = true;
-			for (double num : arguments)
-				if (isFirst) {
-					isFirst = false;
-					max = num;
-				} else if (num > max) max = num;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			double max = arguments[offset];
+			for (int i = 1; i < count; i++) if (arguments[offset + i] > max) max = arguments[offset + i];
 			return max;
 		}
 	}
 
-	public static class Min extends Function {
+	public static class Min extends PrimitiveFunction {
 		public Min() {
-			super(new String[] { "min", "minimum" });
+			super(new String[] { "min", "minimum" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double min = 0;
-			boolean isFirst = true;
-			for (double num : arguments)
-				if (isFirst) {
-					isFirst = false;
-					min = num;
-				} else if (num < min) min = num;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			double min = arguments[offset];
+			for (int i = 1; i < count; i++) if (arguments[offset + i] < min) min = arguments[offset + i];
 			return min;
 		}
 	}
 
-	public static class Average extends Function {
+	public static class Average extends PrimitiveFunction {
 		public Average() {
-			super(new String[] { "avg", "average" });
+			super(new String[] { "avg", "average" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return total(arguments) / arguments.size();
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			return total(arguments, offset, count) / count;
 		} // No need to worry about division by zero, there can never be zero arguments.
 	}
 
-	public static class RandomFunc extends Function {
+	public static class RandomFunc extends PrimitiveFunction {
 		public RandomFunc() {
-			super(new String[] { "random", "rand" });
+			super(new String[] { "random", "rand" }, Purity.NONDETERMINISTIC);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			switch (arguments.size()) {
-				case 1: return random.nextDouble() * arguments.get(0);
-				case 2: return arguments.get(0) + (arguments.get(1) - arguments.get(0)) * random.nextDouble();
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			switch (count) {
+				case 1: return getRandom().nextDouble() * arguments[offset];
+				case 2: return arguments[offset] + (arguments[offset + 1] - arguments[offset]) * getRandom().nextDouble();
 				default: throw new ExpressionInvalidException("invalidRandomNumArgs");
 			}
 		}
 	}
 
-	public static class RandomInt extends Function {
+	public static class RandomInt extends PrimitiveFunction {
 		private static final double aLittleBitMoreThanOne = 1 + 1E-10;
 		public RandomInt() {
-			super(new String[] { "randomInt", "randInt", "randomInteger", "random_integer" });
+			super(new String[] { "randomInt", "randInt", "randomInteger", "random_integer" }, Purity.NONDETERMINISTIC);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
 			double lower, higher;
-			switch (arguments.size()) {
-				case 1: lower = 0; higher = arguments.get(0); break;
-				case 2: lower = arguments.get(0); higher = arguments.get(1); break;
+			switch (count) {
+				case 1: lower = 0; higher = arguments[offset]; break;
+				case 2: lower = arguments[offset]; higher = arguments[offset + 1]; break;
 				default: throw new ExpressionInvalidException("invalidRandomNumArgs");
 			}
 			if (lower > higher) {
@@ -429,49 +561,49 @@ public abstract class Function {
 			lower = Utils.roundUp(lower);
 			higher = Utils.roundDown(higher);
 			if (lower > higher) throw new ExpressionInvalidException("invalidRandomNoIntegerBetween");
-			return Utils.roundDown(lower + random.nextDouble() * (higher - lower + aLittleBitMoreThanOne));
+			return Utils.roundDown(lower + getRandom().nextDouble() * (higher - lower + aLittleBitMoreThanOne));
 		}
 	}
 
-	public static class RandomInList extends Function {
+	public static class RandomInList extends PrimitiveFunction {
 		public RandomInList() {
-			super(new String[] { "randomInList", "random_in_list", "randInList" });
+			super(new String[] { "randomInList", "random_in_list", "randInList" }, Purity.NONDETERMINISTIC);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return arguments.get(random.nextInt(arguments.size()));
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			return arguments[offset + getRandom().nextInt(count)];
 		}
 	}
 
-	public static class IsGreater extends Function {
+	public static class IsGreater extends PrimitiveFunction {
 		public IsGreater() {
-			super(new String[] { "isGreater" });
+			super(new String[] { "isGreater" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() < 2) throw new ExpressionInvalidException("invalidComparisonNumArgs");
-			for (int i = 1; i < arguments.size(); i++)
-				if (arguments.get(i) >= arguments.get(i - 1)) return 0;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count < 2) throw new ExpressionInvalidException("invalidComparisonNumArgs");
+			for (int i = offset + 1; i < offset + count; i++)
+				if (arguments[i] >= arguments[i - 1]) return 0;
 			return 1;
 		}
 	}
 
-	public static class IsSmaller extends Function {
+	public static class IsSmaller extends PrimitiveFunction {
 		public IsSmaller() {
-			super(new String[] { "isSmaller" });
+			super(new String[] { "isSmaller" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() < 2) throw new ExpressionInvalidException("invalidComparisonNumArgs");
-			for (int i = 1; i < arguments.size(); i++)
-				if (arguments.get(i) <= arguments.get(i - 1)) return 0;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count < 2) throw new ExpressionInvalidException("invalidComparisonNumArgs");
+			for (int i = offset + 1; i < offset + count; i++)
+				if (arguments[i] <= arguments[i - 1]) return 0;
 			return 1;
 		}
 	}
 
 	public static class IsEqual extends Function {
 		public IsEqual() {
-			super(new String[] { "isEqual" });
+			super(new String[] { "isEqual" }, Purity.PURE);
 		}
 		@Override
 		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
@@ -482,243 +614,242 @@ public abstract class Function {
 		}
 	}
 
-	public static class If extends Function {
+	public static class If extends PrimitiveFunction {
 		public If() {
-			super(new String[] { "if" });
+			super(new String[] { "if" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() > 3) throw new ExpressionInvalidException("invalidIfNumArgs");
-			while (arguments.size() < 3) arguments.add(0d);
-			return arguments.get(0) > 0 ? arguments.get(1): arguments.get(2);
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count > 3) throw new ExpressionInvalidException("invalidIfNumArgs");
+			return arguments[offset] > 0 ? count > 1 ? arguments[offset + 1] : 0 : count > 2 ? arguments[offset + 2] : 0;
 		}
 	}
 
-	public static class And extends Function {
+	public static class And extends PrimitiveFunction {
 		public And() {
-			super(new String[] { "and" });
+			super(new String[] { "and" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			for (double num : arguments)
-				if (num <= 0) return 0;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			for (int i = offset; i < offset + count; i++)
+				if (arguments[i] <= 0) return 0;
 			return 1;
 		}
 	}
 
-	public static class Or extends Function {
+	public static class Or extends PrimitiveFunction {
 		public Or() {
-			super(new String[] { "or" });
+			super(new String[] { "or" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			for (double num : arguments)
-				if (num > 0) return 1;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			for (int i = offset; i < offset + count; i++)
+				if (arguments[i] > 0) return 1;
 			return 0;
 		}
 	}
 
-	public static class Not extends Function {
+	public static class Not extends PrimitiveFunction {
 		public Not() {
-			super(new String[] { "not" });
+			super(new String[] { "not" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() != 1) throw new ExpressionInvalidException("invalidNotNumArgs");
-			return arguments.get(0) > 0 ? 0 : 1;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count != 1) throw new ExpressionInvalidException("invalidNotNumArgs");
+			return arguments[offset] > 0 ? 0 : 1;
 		}
 	}
 
-	public static class AngleToDegrees extends Function {
+	public static class AngleToDegrees extends AngleFunction {
 		public AngleToDegrees() {
 			super(new String[] { "angle to degrees", "angle_to_degrees", "to degrees", "to_degrees", "to deg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertToDegrees(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertToDegrees(total);
 		}
 	}
 
-	public static class AngleToRadians extends Function {
+	public static class AngleToRadians extends AngleFunction {
 		public AngleToRadians() {
 			super(new String[] { "angle to radians", "angle_to_radians", "to radians", "to_radians", "to rad" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertToRadians(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertToRadians(total);
 		}
 	}
 
-	public static class AngleToGradians extends Function {
+	public static class AngleToGradians extends AngleFunction {
 		public AngleToGradians() {
 			super(new String[] { "angle to gradians", "angle_to_gradians", "to gradians", "to_gradians", "to grad" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertToGradians(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertToGradians(total);
 		}
 	}
 
-	public static class AngleFromDegrees extends Function {
+	public static class AngleFromDegrees extends AngleFunction {
 		public AngleFromDegrees() {
 			super(new String[] { "angle from degrees", "angle_from_degrees", "from degrees", "from_degrees", "from deg" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertFromDegrees(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertFromDegrees(total);
 		}
 	}
 
-	public static class AngleFromRadians extends Function {
+	public static class AngleFromRadians extends AngleFunction {
 		public AngleFromRadians() {
 			super(new String[] { "angle from radians", "angle_from_radians", "from radians", "from_radians", "from rad" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertFromRadians(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertFromRadians(total);
 		}
 	}
 
-	public static class AngleFromGradians extends Function {
+	public static class AngleFromGradians extends AngleFunction {
 		public AngleFromGradians() {
 			super(new String[] { "angle from gradians", "angle_from_gradians", "from gradians", "from_gradians", "from grad" });
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return engine.angleUnit.convertFromGradians(total(arguments));
+		protected double calculate(double total, AngleUnit angleUnit) throws ExpressionInvalidException {
+			return angleUnit.convertFromGradians(total);
 		}
 	}
 
-	public static class Date extends Function {
+	public static class Date extends PrimitiveFunction {
 		public Date() {
-			super(new String[] { "date" });
+			super(new String[] { "date" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() > 6) throw new ExpressionInvalidException("invalidDateNumOfArgs");
-			while (arguments.size() < 3) arguments.add(1d);
-			while (arguments.size() < 6) arguments.add(0d);
-			for (int i = 0; i < 2; i++) arguments.set(i, (double)Math.round(arguments.get(i)));
-			if (arguments.get(1) < 0.5 || arguments.get(1) > 12.49999 /* Accounting for rounding errors */) throw new ExpressionInvalidException("invalidDateMonthOutOfRange");
-			arguments.set(2, arguments.get(2) - 1 + arguments.get(3) / 24 + arguments.get(4) / 1440 + arguments.get(5) / 86400);
-			if (arguments.get(2) < 0 || arguments.get(2) >= Utils.getMonthDays(arguments.get(0), arguments.get(1).intValue())) throw new ExpressionInvalidException("invalidDateDayOutOfRange");
-			return (arguments.get(0) - 1) * 365 + Utils.div(arguments.get(0), 4) - Utils.div(arguments.get(0), 100) + Utils.div(arguments.get(0), 400) - (Utils.isLeapYear(arguments.get(0)) && arguments.get(1) < 2.5 ? 1 : 0) + Utils.monthPos[arguments.get(1).intValue()] + arguments.get(2);
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count > 6) throw new ExpressionInvalidException("invalidDateNumOfArgs");
+			double[] date = { 1, 1, 1, 0, 0, 0 };
+			System.arraycopy(arguments, offset, date, 0, count);
+			for (int i = 0; i < 2; i++) date[i] = Math.round(date[i]);
+			if (date[1] < 0.5 || date[1] > 12.49999 /* Accounting for rounding errors */) throw new ExpressionInvalidException("invalidDateMonthOutOfRange");
+			date[2] = date[2] - 1 + date[3] / 24 + date[4] / 1440 + date[5] / 86400;
+			if (date[2] < 0 || date[2] >= Utils.getMonthDays(date[0], (int)date[1])) throw new ExpressionInvalidException("invalidDateDayOutOfRange");
+			return (date[0] - 1) * 365 + Utils.div(date[0], 4) - Utils.div(date[0], 100) + Utils.div(date[0], 400) - (Utils.isLeapYear(date[0]) && date[1] < 2.5 ? 1 : 0) + Utils.monthPos[(int)date[1]] + date[2];
 		}
 	}
 
-	public static class Year extends Function {
+	public static class Year extends TotalFunction {
 		public Year() {
-			super(new String[] { "year", "yr" });
+			super(new String[] { "year", "yr" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.getYearAndDayOfYearFromIndex(total(arguments))[0];
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.getYearAndDayOfYearFromIndex(total)[0];
 		}
 	}
 
-	public static class DayOfYear extends Function {
+	public static class DayOfYear extends TotalFunction {
 		public DayOfYear() {
-			super(new String[] { "day of year", "day_of_year" });
+			super(new String[] { "day of year", "day_of_year" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.getYearAndDayOfYearFromIndex(total(arguments))[1]+1;
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.getYearAndDayOfYearFromIndex(total)[1]+1;
 		}
 	}
 
-	public static class Month extends Function {
+	public static class Month extends TotalFunction {
 		public Month() {
-			super(new String[] { "month", "mth" });
+			super(new String[] { "month", "mth" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.getMonthAndDayOfMonthFromIndex(total(arguments))[0];
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.getMonthAndDayOfMonthFromIndex(total)[0];
 		}
 	}
 
-	public static class Day extends Function {
+	public static class Day extends TotalFunction {
 		public Day() {
-			super(new String[] { "day" });
+			super(new String[] { "day" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Math.floor(Utils.getMonthAndDayOfMonthFromIndex(total(arguments))[1]);
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Math.floor(Utils.getMonthAndDayOfMonthFromIndex(total)[1]);
 		}
 	}
 
-	public static class DecimalDay extends Function {
+	public static class DecimalDay extends TotalFunction {
 		public DecimalDay() {
-			super(new String[] { "decimal day", "decimal_day" });
+			super(new String[] { "decimal day", "decimal_day" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.getMonthAndDayOfMonthFromIndex(total(arguments))[1];
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.getMonthAndDayOfMonthFromIndex(total)[1];
 		}
 	}
 
-	public static class Hour extends Function {
+	public static class Hour extends TotalFunction {
 		public Hour() {
-			super(new String[] { "hour", "hr" });
+			super(new String[] { "hour", "hr" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			return Utils.getHourFromIndex(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			return Utils.getHourFromIndex(total);
 		}
 	}
 
-	public static class Minute extends Function {
+	public static class Minute extends TotalFunction {
 		public Minute() {
-			super(new String[] { "minute", "min" });
+			super(new String[] { "minute", "min" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double index = total(arguments);
+		protected double calculate(double index) throws ExpressionInvalidException {
 			return Math.floor(1440 * (Utils.mod(index, 1) - Utils.getHourFromIndex(index) / 24));
 		}
 	}
 
-	public static class Second extends Function {
+	public static class Second extends TotalFunction {
 		public Second() {
-			super(new String[] { "second", "sec" });
+			super(new String[] { "second", "sec" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double dec = Utils.mod(total(arguments), 1);
+		protected double calculate(double total) throws ExpressionInvalidException {
+			double dec = Utils.mod(total, 1);
 			return 86400 * (dec - Math.floor(1440 * dec) / 1440);
 		}
 	}
 
-	public static class DayOfWeekMondayFirst extends Function {
+	public static class DayOfWeekMondayFirst extends TotalFunction {
 		public DayOfWeekMondayFirst() {
-			super(new String[] { "day of week Monday first", "day_of_week_Monday_first" });
+			super(new String[] { "day of week Monday first", "day_of_week_Monday_first" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double date = Math.floor(total(arguments));
+		protected double calculate(double total) throws ExpressionInvalidException {
+			double date = Math.floor(total);
 			return date - Math.floor(date / 7) * 7 + 1;
 		}
 	}
 
-	public static class DayOfWeekSundayFirst extends Function {
+	public static class DayOfWeekSundayFirst extends TotalFunction {
 		public DayOfWeekSundayFirst() {
-			super(new String[] { "day of week Sunday first", "day_of_week_Sunday_first" });
+			super(new String[] { "day of week Sunday first", "day_of_week_Sunday_first" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			double date = Math.floor(total(arguments)) + 1;
+		protected double calculate(double total) throws ExpressionInvalidException {
+			double date = Math.floor(total) + 1;
 			return date - Math.floor(date / 7) * 7 + 1;
 		}
 	}
 
-	public static class Time extends Function {
+	public static class Time extends PrimitiveFunction {
 		public Time() {
-			super(new String[] { "time" });
+			super(new String[] { "time" }, Purity.PURE);
 		}
 		@Override
-		public double calculate(List<Double> arguments, CalculatorEngine engine) throws ExpressionInvalidException {
-			if (arguments.size() > 4) throw new ExpressionInvalidException("invalidTimeNumArgs");
-			while (arguments.size() < 4) arguments.add(0d);
-			return arguments.get(0) + arguments.get(1) / 24 + arguments.get(2) / 1440 + arguments.get(3) / 86400;
+		public double calculateN(double[] arguments, int offset, int count, CalculationContext context) throws ExpressionInvalidException {
+			if (count > 4) throw new ExpressionInvalidException("invalidTimeNumArgs");
+			double[] time = new double[4];
+			System.arraycopy(arguments, offset, time, 0, count);
+			return time[0] + time[1] / 24 + time[2] / 1440 + time[3] / 86400;
 		}
 	}
 }
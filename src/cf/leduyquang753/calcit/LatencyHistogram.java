@@ -0,0 +1,95 @@
+package cf.leduyquang753.calcit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A distribution of non-negative values, such as times in nanoseconds, kept in buckets like those of HdrHistogram: values below 128 are exact, larger ones are grouped 64 to each power of two so that they are kept to within about 1.5%.
+ * Recording takes constant time and never allocates, and many threads may record at once.
+ */
+public class LatencyHistogram {
+	private static final int
+		subBucketBits = 7,
+		subBucketCount = 1 << subBucketBits,
+		subBucketHalfCount = subBucketCount / 2;
+
+	private final AtomicLongArray counts = new AtomicLongArray(getIndex(Long.MAX_VALUE) + 1);
+	private final LongAdder count = new LongAdder(), total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(getIndex(value));
+		count.increment();
+		total.add(value);
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double)total.sum() / count;
+	}
+
+	/**
+	 * Returns the largest value that falls in the same bucket as the value below which the given percentage of the recorded values are, or 0 if nothing was recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = getCount();
+		if (count == 0) return 0;
+		long wanted = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * count)), seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= wanted) return Math.min(getHighestValue(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Calls the visitor for each bucket that has values, in increasing order.
+	 */
+	public void forEachBucket(BucketVisitor visitor) {
+		for (int i = 0; i < counts.length(); i++) {
+			long bucketCount = counts.get(i);
+			if (bucketCount != 0) visitor.visit(getLowestValue(i), getHighestValue(i), bucketCount);
+		}
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	private static int getIndex(long value) {
+		int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - subBucketBits);
+		return magnitude * subBucketHalfCount + (int)(value >>> magnitude);
+	}
+
+	private static long getLowestValue(int index) {
+		if (index < subBucketCount) return index;
+		int magnitude = index / subBucketHalfCount - 1;
+		return (long)(index - magnitude * subBucketHalfCount) << magnitude;
+	}
+
+	private static long getHighestValue(int index) {
+		if (index < subBucketCount) return index;
+		int magnitude = index / subBucketHalfCount - 1;
+		long next = (long)(index - magnitude * subBucketHalfCount + 1) << magnitude;
+		return next < 0 ? Long.MAX_VALUE : next - 1;
+	}
+
+	public static interface BucketVisitor {
+		void visit(long lowestValue, long highestValue, long count);
+	}
+}
@@ -0,0 +1,252 @@
+package cf.leduyquang753.calcit;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Turns a parsed expression into a chain of method handles so that the JIT can inline the built-in operands and functions into one call.
+ * Operands and functions it does not know are called through their normal {@code calculate} methods.
+ */
+public class MethodHandleBackend {
+	/**
+	 * The deepest tree turned into a chain of handles. Invoking a chain nests several calls for each level, so deeper trees are executed by the interpreter instead, which does not recurse.
+	 * The JIT stops inlining long before this depth anyway.
+	 */
+	public static final int maxDepth = 256;
+
+	private static final MethodType evaluatorType = MethodType.methodType(double.class, CalculationContext.class);
+	private static final MethodHandle
+		interpretNode,
+		executeProgram,
+		variable,
+		callOperand,
+		callFunction1,
+		callFunction2,
+		callFunction,
+		percent,
+		plus,
+		minus,
+		multiply,
+		divide,
+		exponentiation,
+		root,
+		total,
+		sin,
+		cos,
+		tan,
+		floor,
+		abs,
+		round,
+		ln;
+
+	static {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+		MethodType binaryWithEngine = MethodType.methodType(double.class, double.class, double.class, CalculationContext.class);
+		MethodType unary = MethodType.methodType(double.class, double.class);
+		MethodType unaryWithEngine = MethodType.methodType(double.class, double.class, CalculationContext.class);
+		try {
+			interpretNode = lookup.findVirtual(Node.class, "evaluate", evaluatorType);
+			executeProgram = lookup.findStatic(MethodHandleBackend.class, "executeProgram", MethodType.methodType(double.class, Program.class, CalculationContext.class));
+			variable = lookup.findStatic(MethodHandleBackend.class, "variable", MethodType.methodType(double.class, Node.Variable.class, CalculationContext.class));
+			callOperand = lookup.findVirtual(Operand.class, "calculate", binaryWithEngine);
+			callFunction1 = lookup.findVirtual(Function.class, "calculate1", unaryWithEngine);
+			callFunction2 = lookup.findVirtual(Function.class, "calculate2", binaryWithEngine);
+			callFunction = lookup.findStatic(MethodHandleBackend.class, "callFunction", MethodType.methodType(double.class, Function.class, CalculationContext.class, double[].class));
+			percent = lookup.findStatic(MethodHandleBackend.class, "percent", unary);
+			plus = lookup.findStatic(MethodHandleBackend.class, "plus", binary);
+			minus = lookup.findStatic(MethodHandleBackend.class, "minus", binary);
+			multiply = lookup.findStatic(MethodHandleBackend.class, "multiply", binary);
+			divide = lookup.findStatic(MethodHandleBackend.class, "divide", binary);
+			exponentiation = lookup.findStatic(Utils.class, "power", binaryWithEngine);
+			root = lookup.findStatic(MethodHandleBackend.class, "root", binaryWithEngine);
+			total = lookup.findStatic(MethodHandleBackend.class, "total", unary);
+			sin = lookup.findStatic(MethodHandleBackend.class, "sin", unaryWithEngine);
+			cos = lookup.findStatic(MethodHandleBackend.class, "cos", unaryWithEngine);
+			tan = lookup.findStatic(MethodHandleBackend.class, "tan", unaryWithEngine);
+			floor = lookup.findStatic(MethodHandleBackend.class, "floor", unary);
+			abs = lookup.findStatic(MethodHandleBackend.class, "abs", unary);
+			round = lookup.findStatic(MethodHandleBackend.class, "round", unary);
+			ln = lookup.findStatic(MethodHandleBackend.class, "ln", unary);
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Returns an expression that evaluates the same as the given one, using method handles instead of walking the parsed tree.
+	 * An expression deeper than {@link #maxDepth} is returned as it is.
+	 */
+	public static CompiledExpression compile(CompiledExpression expression) {
+		Node root = expression.getRoot();
+		if (root == null || TreeWalk.getDepth(root) > maxDepth) return expression;
+		return expression.withRoot(new HandleNode(compile(root), root));
+	}
+
+	/**
+	 * Builds a method handle of type {@code (CalculationContext)double} that evaluates the node.
+	 * For a node deeper than {@link #maxDepth}, the handle executes the interpreted program of the node.
+	 */
+	public static MethodHandle compile(Node node) {
+		if (TreeWalk.getDepth(node) > maxDepth) return executeProgram.bindTo(Program.compile(node));
+		return new TreeWalk<MethodHandle, RuntimeException>() {
+			@Override
+			MethodHandle leave(Node node) {
+				if (node instanceof Node.Constant) return MethodHandles.dropArguments(MethodHandles.constant(double.class, ((Node.Constant)node).getValue()), 0, CalculationContext.class);
+				if (node instanceof Node.Variable) return variable.bindTo(node);
+				if (node instanceof Node.Percent) return MethodHandles.filterReturnValue(getChild(0), percent);
+				if (node instanceof Node.Binary) return combine(getOperandKernel(((Node.Binary)node).getOperand()), getChild(0), getChild(1));
+				if (node instanceof Node.Call) {
+					Node.Call call = (Node.Call)node;
+					if (call.getArgumentCount() == 1) {
+						MethodHandle kernel = getFunctionKernel(call.getFunction());
+						return combine(kernel == null ? callFunction1.bindTo(call.getFunction()) : kernel, getChild(0));
+					}
+					if (call.getArgumentCount() == 2) return combine(callFunction2.bindTo(call.getFunction()), getChild(0), getChild(1));
+					MethodHandle[] arguments = new MethodHandle[call.getArgumentCount()];
+					for (int i = 0; i < arguments.length; i++) arguments[i] = getChild(i);
+					MethodHandle collector = callFunction.bindTo(call.getFunction()).asCollector(double[].class, arguments.length);
+					return MethodHandles.permuteArguments(MethodHandles.filterArguments(collector, 1, arguments), evaluatorType, new int[arguments.length + 1]);
+				}
+				return interpretNode.bindTo(node);
+			}
+		}.walk(node);
+	}
+
+	/**
+	 * Feeds the results of the argument handles to the kernel, which may take the context as an extra last parameter.
+	 */
+	private static MethodHandle combine(MethodHandle kernel, MethodHandle... arguments) {
+		MethodHandle filtered = MethodHandles.filterArguments(kernel, 0, arguments);
+		return MethodHandles.permuteArguments(filtered, evaluatorType, new int[filtered.type().parameterCount()]);
+	}
+
+	private static MethodHandle getOperandKernel(Operand operand) {
+		// Exact class checks: a subclass may override the calculation.
+		Class<?> type = operand.getClass();
+		if (type == Operand.Plus.class) return plus;
+		if (type == Operand.Minus.class) return minus;
+		if (type == Operand.Multiply.class || type == Operand.DotlessMultiplication.class) return multiply;
+		if (type == Operand.Divide.class) return divide;
+		if (type == Operand.Exponentiation.class) return exponentiation;
+		if (type == Operand.Root.class) return root;
+		return callOperand.bindTo(operand);
+	}
+
+	private static MethodHandle getFunctionKernel(Function function) {
+		Class<?> type = function.getClass();
+		if (type == Function.Sum.class) return total;
+		if (type == Function.Sin.class) return sin;
+		if (type == Function.Cos.class) return cos;
+		if (type == Function.Tan.class) return tan;
+		if (type == Function.Floor.class) return floor;
+		if (type == Function.Abs.class) return abs;
+		if (type == Function.Round.class) return round;
+		if (type == Function.Ln.class) return ln;
+		return null;
+	}
+
+	private static double callFunction(Function function, CalculationContext context, double[] arguments) throws ExpressionInvalidException {
+		return function.calculateN(arguments, 0, arguments.length, context);
+	}
+
+	private static double executeProgram(Program program, CalculationContext context) throws ExpressionInvalidException {
+		return program.execute(context, CompiledExpression.getThreadStack());
+	}
+
+	private static double variable(Node.Variable variable, CalculationContext context) throws ExpressionInvalidException {
+		return context.getVariableInternal(variable.getSlot(), variable.getName(), variable.getPosition());
+	}
+
+	private static double percent(double value) {
+		return value / 100;
+	}
+
+	private static double plus(double val1, double val2) {
+		return val1 + val2;
+	}
+
+	private static double minus(double val1, double val2) {
+		return val1 - val2;
+	}
+
+	private static double multiply(double val1, double val2) {
+		return val1 * val2;
+	}
+
+	private static double divide(double val1, double val2) throws ExpressionInvalidException {
+		if (val2 == 0) throw new ExpressionInvalidException("divisionByZero");
+		return val1 / val2;
+	}
+
+	private static double root(double val1, double val2, CalculationContext context) throws ExpressionInvalidException {
+		if (val1 == 0) throw new ExpressionInvalidException("level0Root");
+		return Utils.power(val2, 1 / val1, context);
+	}
+
+	// The functions sum their arguments starting from 0, which turns -0 into 0; keep that so the results stay identical.
+	private static double total(double argument) {
+		return 0 + argument;
+	}
+
+	private static double sin(double argument, CalculationContext context) {
+		return Math.sin(context.angleUnit.convertToRadians(total(argument)));
+	}
+
+	private static double cos(double argument, CalculationContext context) {
+		return Math.cos(context.angleUnit.convertToRadians(total(argument)));
+	}
+
+	private static double tan(double argument, CalculationContext context) throws ExpressionInvalidException {
+		double tot = total(argument);
+		if (Math.cos(tot) == 0) throw new ExpressionInvalidException("divisionByZero");
+		return Math.tan(context.angleUnit.convertToRadians(tot));
+	}
+
+	private static double floor(double argument) {
+		return Math.floor(total(argument));
+	}
+
+	private static double abs(double argument) {
+		return Math.abs(total(argument));
+	}
+
+	private static double round(double argument) {
+		return Math.round(total(argument));
+	}
+
+	private static double ln(double argument) throws ExpressionInvalidException {
+		double tot = total(argument);
+		if (tot <= 0) throw new ExpressionInvalidException("invalidLogInput");
+		return Math.log(tot);
+	}
+
+	/**
+	 * Evaluates a compiled method handle; keeps the original node for inspection.
+	 */
+	public static class HandleNode extends Node {
+		private final MethodHandle handle;
+		private final Node source;
+
+		HandleNode(MethodHandle handle, Node source) {
+			this.handle = handle;
+			this.source = source;
+		}
+
+		public Node getSource() {
+			return source;
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			try {
+				return (double)handle.invokeExact(context);
+			} catch (ExpressionInvalidException | RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
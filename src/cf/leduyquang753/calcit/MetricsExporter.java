@@ -0,0 +1,16 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * Receives the measurements kept by {@link EngineMetrics#export(MetricsExporter)}, to pass them on to a metrics backend.
+ */
+public interface MetricsExporter {
+	/**
+	 * Receives the value of a counter. Counters of the same name are told apart by their label, such as the function name for {@code function.calls}.
+	 */
+	void counter(String name, String label, long value);
+
+	/**
+	 * Receives a distribution of times, in nanoseconds. The histogram keeps changing while calculations run.
+	 */
+	void histogram(String name, LatencyHistogram histogram);
+}
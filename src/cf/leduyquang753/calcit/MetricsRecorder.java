@@ -0,0 +1,34 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * Receives measurements from the engines whose {@link CalculatorEngine#metrics} is set to it. {@link EngineMetrics} keeps them for export; other implementations can forward them elsewhere.
+ * The methods are called on the calculating threads, possibly many at once, so they must be thread-safe and quick.
+ * <p>
+ * Evaluations by {@link BatchEvaluator} and {@link CsvEvaluator} are not recorded, nor the functions and operands run by the {@link MethodHandleBackend}.
+ */
+public interface MetricsRecorder {
+	/**
+	 * Records the time taken to parse an expression, valid or not. Expressions taken from the cache are not parsed.
+	 */
+	void recordParse(long nanoseconds);
+
+	/**
+	 * Records the time taken to evaluate a compiled expression, successfully or not.
+	 */
+	void recordEvaluation(long nanoseconds);
+
+	/**
+	 * Records that an evaluation called the function {@code count} times. Only successful evaluations are counted.
+	 */
+	void recordFunctionCalls(Function function, int count);
+
+	/**
+	 * Records that an evaluation calculated the operand {@code count} times. Only successful evaluations are counted.
+	 */
+	void recordOperandCalls(Operand operand, int count);
+
+	/**
+	 * Records that parsing or evaluating failed with the error of the given key, the message of the {@link ExpressionInvalidException}.
+	 */
+	void recordError(String key);
+}
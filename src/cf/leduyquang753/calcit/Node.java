@@ -0,0 +1,208 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * A node of a parsed expression. Nodes are immutable and can be evaluated any number of times.
+ */
+public abstract class Node {
+	/**
+	 * Evaluates the node by walking it recursively. {@link CompiledExpression} evaluates its tree without recursing, which deeply nested expressions need.
+	 */
+	public abstract double evaluate(CalculationContext context) throws ExpressionInvalidException;
+
+	/**
+	 * Returns the number of nodes directly below this one that {@link TreeWalk} walks. Nodes not built into the engine have none.
+	 */
+	int getChildCount() {
+		return 0;
+	}
+
+	Node getChild(int index) {
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Calculates the node from the values of its children, in order, without evaluating them again.
+	 */
+	double calculate(double[] children, CalculationContext context) throws ExpressionInvalidException {
+		return evaluate(context);
+	}
+
+	public static class Constant extends Node {
+		private final double value;
+
+		public Constant(double value) {
+			this.value = value;
+		}
+
+		public double getValue() {
+			return value;
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			return value;
+		}
+	}
+
+	public static class Variable extends Node {
+		private final String name;
+		private final int slot;
+		private final int position;
+
+		/**
+		 * @param slot The slot of the variable in the engine the expression is evaluated with.
+		 */
+		public Variable(String name, int slot, int position) {
+			this.name = name;
+			this.slot = slot;
+			this.position = position;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			return context.getVariableInternal(slot, name, position);
+		}
+	}
+
+	/**
+	 * A percent sign after a closing brace or a variable, divides the operand by 100.
+	 */
+	public static class Percent extends Node {
+		private final Node operand;
+
+		public Percent(Node operand) {
+			this.operand = operand;
+		}
+
+		public Node getOperand() {
+			return operand;
+		}
+
+		@Override
+		int getChildCount() {
+			return 1;
+		}
+
+		@Override
+		Node getChild(int index) {
+			return operand;
+		}
+
+		@Override
+		double calculate(double[] children, CalculationContext context) {
+			return children[0] / 100;
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			return operand.evaluate(context) / 100;
+		}
+	}
+
+	public static class Binary extends Node {
+		private final Operand operand;
+		private final Node left, right;
+
+		public Binary(Operand operand, Node left, Node right) {
+			this.operand = operand;
+			this.left = left;
+			this.right = right;
+		}
+
+		public Operand getOperand() {
+			return operand;
+		}
+
+		public Node getLeft() {
+			return left;
+		}
+
+		public Node getRight() {
+			return right;
+		}
+
+		@Override
+		int getChildCount() {
+			return 2;
+		}
+
+		@Override
+		Node getChild(int index) {
+			return index == 0 ? left : right;
+		}
+
+		@Override
+		double calculate(double[] children, CalculationContext context) throws ExpressionInvalidException {
+			return operand.calculate(children[0], children[1], context);
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			return operand.calculate(left.evaluate(context), right.evaluate(context), context);
+		}
+	}
+
+	public static class Call extends Node {
+		private final Function function;
+		private final Node[] arguments;
+
+		public Call(Function function, Node[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		public Function getFunction() {
+			return function;
+		}
+
+		public int getArgumentCount() {
+			return arguments.length;
+		}
+
+		public Node getArgument(int index) {
+			return arguments[index];
+		}
+
+		@Override
+		int getChildCount() {
+			return arguments.length;
+		}
+
+		@Override
+		Node getChild(int index) {
+			return arguments[index];
+		}
+
+		@Override
+		double calculate(double[] children, CalculationContext context) throws ExpressionInvalidException {
+			switch (children.length) {
+				case 1: return function.calculate1(children[0], context);
+				case 2: return function.calculate2(children[0], children[1], context);
+			}
+			return function.calculateN(children, 0, children.length, context);
+		}
+
+		@Override
+		public double evaluate(CalculationContext context) throws ExpressionInvalidException {
+			switch (arguments.length) {
+				case 1: return function.calculate1(arguments[0].evaluate(context), context);
+				case 2: return function.calculate2(arguments[0].evaluate(context), arguments[1].evaluate(context), context);
+			}
+			double[] values = new double[arguments.length];
+			for (int i = 0; i < values.length; i++) values[i] = arguments[i].evaluate(context);
+			return function.calculateN(values, 0, values.length, context);
+		}
+	}
+}
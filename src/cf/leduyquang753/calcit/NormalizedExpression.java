@@ -0,0 +1,96 @@
+package cf.leduyquang753.calcit;
+
+/**
+ * An expression with its whitespace removed and its letters lowercased, made in one pass over the original text.
+ * It remembers where each of its characters comes from, so that errors found in it are positioned in the original text without scanning it again.
+ */
+final class NormalizedExpression {
+	private final String original, text;
+	private final int[] offsets; // Index in the original text of each character of the text, or null if the text is the original text.
+
+	private NormalizedExpression(String original, String text, int[] offsets) {
+		this.original = original;
+		this.text = text;
+		this.offsets = offsets;
+	}
+
+	static NormalizedExpression of(String original) {
+		int length = original.length();
+		int firstWhitespace = 0;
+		while (firstWhitespace < length && !isWhitespace(original.charAt(firstWhitespace))) firstWhitespace++;
+		if (firstWhitespace == length) {
+			// Nothing to remove; the original is returned as it is if nothing needs lowercasing either.
+			String text = original.toLowerCase();
+			return new NormalizedExpression(original, text, text.length() == length ? null : lowercaseOffsets(original, identityOffsets(length), text.length()));
+		}
+		char[] characters = new char[length];
+		int[] offsets = new int[length];
+		int count = firstWhitespace;
+		original.getChars(0, firstWhitespace, characters, 0);
+		for (int i = 0; i < firstWhitespace; i++) offsets[i] = i;
+		for (int i = firstWhitespace + 1; i < length; i++) {
+			char c = original.charAt(i);
+			if (isWhitespace(c)) continue;
+			characters[count] = c;
+			offsets[count++] = i;
+		}
+		String compacted = new String(characters, 0, count), text = compacted.toLowerCase();
+		if (text.length() != count) offsets = lowercaseOffsets(compacted, offsets, text.length());
+		return new NormalizedExpression(original, text, offsets);
+	}
+
+	/**
+	 * Tells whether the text has no whitespace nor uppercase letters, so that it is its own normalized text. This does not allocate.
+	 */
+	static boolean isNormalized(String text) {
+		for (int i = 0; i < text.length(); i++) if (isWhitespace(text.charAt(i))) return false;
+		return text.toLowerCase().equals(text);
+	}
+
+	private static int[] identityOffsets(int length) {
+		int[] offsets = new int[length];
+		for (int i = 0; i < length; i++) offsets[i] = i;
+		return offsets;
+	}
+
+	/**
+	 * Maps the characters of the lowercased text when lowercasing changed its length, which only happens with a few letters outside ASCII.
+	 */
+	private static int[] lowercaseOffsets(String compacted, int[] offsets, int lowercasedLength) {
+		int[] result = new int[lowercasedLength];
+		int count = 0;
+		for (int i = 0; i < compacted.length() && count < lowercasedLength; i++) {
+			int characterLength = compacted.substring(i, i + 1).toLowerCase().length();
+			for (int j = 0; j < characterLength && count < lowercasedLength; j++) result[count++] = offsets[i];
+		}
+		while (count < lowercasedLength) result[count++] = offsets[compacted.length() - 1];
+		return result;
+	}
+
+	/**
+	 * Tells whether the character is whitespace, which is ignored in expressions.
+	 */
+	static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n';
+	}
+
+	String getOriginal() {
+		return original;
+	}
+
+	/**
+	 * Returns the normalized text, which is the original string itself if it has no whitespace nor uppercase letters.
+	 */
+	String getText() {
+		return text;
+	}
+
+	/**
+	 * Converts a 1-based position in the normalized text into the 1-based position of the same character in the original text.
+	 * Positions outside of the normalized text give the length of the original text.
+	 */
+	int toOriginalPosition(int position) {
+		if (position <= 0 || position > text.length()) return original.length();
+		return offsets == null ? position : offsets[position - 1] + 1;
+	}
+}
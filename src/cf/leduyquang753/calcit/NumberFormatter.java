@@ -0,0 +1,161 @@
+package cf.leduyquang753.calcit;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Formats numbers for display the way {@link Utils#formatNumber(double, CalculationContext)} does, appending to a builder instead of making strings.
+ * Numbers are rounded half-even to 10 decimal places from the shortest digits that round-trip to the same double, the ones {@link Double#toString(double)} gives, so the output is the same as with a {@code DecimalFormat} of pattern {@code #,##0.##########}.
+ * It holds no shared state, so it can be used from any number of threads at once.
+ */
+final class NumberFormatter {
+	private static final int MAX_FRACTION_DIGITS = 10;
+	private static final String NAN, INFINITY;
+	static {
+		DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(Locale.ENGLISH);
+		NAN = symbols.getNaN();
+		INFINITY = symbols.getInfinity();
+	}
+
+	private static final ThreadLocal<NumberFormatter> formatters = ThreadLocal.withInitial(NumberFormatter::new);
+
+	private final StringBuilder javaFormat = new StringBuilder(32);
+	private final char[] digits = new char[32];
+	private int count, decimalAt;
+
+	/**
+	 * Scratch space for callers that need the whole result before writing it out.
+	 */
+	final StringBuilder buffer = new StringBuilder(48);
+
+	private NumberFormatter() {}
+
+	/**
+	 * Returns the formatter of the current thread.
+	 */
+	static NumberFormatter get() {
+		return formatters.get();
+	}
+
+	/**
+	 * Appends the formatted number to the builder.
+	 * @return {@code false} if the number cannot be displayed, in which case nothing is appended.
+	 */
+	boolean format(double number, boolean decimalDot, boolean thousandDot, boolean mulAsterisk, StringBuilder output) {
+		char mulSign = mulAsterisk || decimalDot || thousandDot ? '*' : '.';
+		char decimalSeparator = decimalDot ? '.' : ',';
+		char groupingSeparator = thousandDot ? decimalDot ? ',' : '.' : ' ';
+		double log = Math.log10(Math.abs(number));
+		if (number != 0 && (log <= -7 || log >= 18)) {
+			int exponent = (int)Math.floor(log / 3) * 3;
+			double displayedNumber = number * Math.pow(10, -exponent);
+			if (Double.isNaN(displayedNumber)) return false;
+			appendPlain(displayedNumber, decimalSeparator, groupingSeparator, output);
+			if (exponent != 0) output.append(mulSign).append("10^").append(exponent);
+		} else appendPlain(number, decimalSeparator, groupingSeparator, output);
+		return true;
+	}
+
+	private void appendPlain(double number, char decimalSeparator, char groupingSeparator, StringBuilder output) {
+		if (Double.isNaN(number)) {
+			output.append(NAN);
+			return;
+		}
+		if (number < 0 || number == 0 && 1 / number < 0) output.append('-');
+		if (Double.isInfinite(number)) {
+			output.append(INFINITY);
+			return;
+		}
+		number = Math.abs(number);
+		setDigits(number);
+		if (decimalAt <= 0) output.append('0');
+		else for (int i = 0; i < decimalAt; i++) {
+			if (i != 0 && (decimalAt - i) % 3 == 0) output.append(groupingSeparator);
+			output.append(i < count ? digits[i] : '0');
+		}
+		if (count > decimalAt) {
+			output.append(decimalSeparator);
+			for (int i = decimalAt; i < 0; i++) output.append('0');
+			for (int i = Math.max(decimalAt, 0); i < count; i++) output.append(digits[i]);
+		}
+	}
+
+	/**
+	 * Fills the digits with the shortest representation of the non-negative number rounded to the maximum number of decimal places, without trailing zeros.
+	 * The value is {@code 0.digits * 10^decimalAt}.
+	 */
+	private void setDigits(double number) {
+		javaFormat.setLength(0);
+		javaFormat.append(number);
+		int length = javaFormat.length(), exponent = 0, leadingZerosAfterPoint = 0;
+		boolean nonZeroDigitSeen = false;
+		count = 0;
+		decimalAt = -1;
+		for (int i = 0; i < length; i++) {
+			char c = javaFormat.charAt(i);
+			if (c == '.') decimalAt = count;
+			else if (c == 'E') {
+				boolean negative = javaFormat.charAt(++i) == '-';
+				if (negative) i++;
+				for (; i < length; i++) exponent = exponent * 10 + javaFormat.charAt(i) - '0';
+				if (negative) exponent = -exponent;
+				break;
+			} else {
+				if (!nonZeroDigitSeen) {
+					nonZeroDigitSeen = c != '0';
+					if (!nonZeroDigitSeen && decimalAt != -1) leadingZerosAfterPoint++;
+				}
+				if (nonZeroDigitSeen) digits[count++] = c;
+			}
+		}
+		if (decimalAt == -1) decimalAt = count;
+		if (nonZeroDigitSeen) decimalAt += exponent - leadingZerosAfterPoint;
+
+		if (-decimalAt > MAX_FRACTION_DIGITS) {
+			count = 0;
+			return;
+		} else if (-decimalAt == MAX_FRACTION_DIGITS) {
+			if (shouldRoundUp(0, number)) {
+				count = 1;
+				decimalAt++;
+				digits[0] = '1';
+			} else count = 0;
+			return;
+		}
+		while (count > 1 && digits[count - 1] == '0') count--;
+		int maximumDigits = MAX_FRACTION_DIGITS + decimalAt;
+		if (maximumDigits < 0 || maximumDigits >= count) return;
+		if (shouldRoundUp(maximumDigits, number)) {
+			while (true) {
+				if (--maximumDigits < 0) { // All nines.
+					digits[0] = '1';
+					decimalAt++;
+					maximumDigits = 0;
+					break;
+				}
+				if (++digits[maximumDigits] <= '9') break;
+			}
+			maximumDigits++;
+		}
+		count = maximumDigits;
+		while (count > 1 && digits[count - 1] == '0') count--;
+	}
+
+	/**
+	 * Tells whether dropping the digits from {@code maximumDigits} on should increment the last kept one, rounding half-even.
+	 * A lone 5 at the end may already have been rounded by the shortest representation, so then the digits are compared with the exact value of the number.
+	 */
+	private boolean shouldRoundUp(int maximumDigits, double number) {
+		if (maximumDigits >= count || digits[maximumDigits] < '5') return false;
+		if (digits[maximumDigits] > '5') return true;
+		if (maximumDigits != count - 1) {
+			for (int i = maximumDigits + 1; i < count; i++) if (digits[i] != '0') return true;
+			return false;
+		}
+		int comparison = new BigDecimal(digits, 0, count).scaleByPowerOfTen(decimalAt - count).compareTo(new BigDecimal(number));
+		if (comparison > 0) return false; // The digits were rounded up from below the tie.
+		if (comparison < 0) return true; // The digits were truncated from above the tie.
+		return maximumDigits > 0 && (digits[maximumDigits - 1] - '0') % 2 != 0;
+	}
+}
@@ -0,0 +1,186 @@
+package cf.leduyquang753.calcit;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses decimal numbers in place, without creating a string for each of them.
+ */
+class NumberParser {
+	private static final double[] powersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final long maxExactMantissa = 1L << 53;
+	private static final int maxMantissaDigits = 18; // Always fits in a long.
+
+	/**
+	 * Parses a number literal of an expression from the characters between {@code start} and {@code end}: digits with at most one decimal separator, either {@code .} or {@code ,}, which may come first.
+	 * If {@code thousandDot} is set, the thousand separator characters are skipped.
+	 * The result is rounded exactly as {@link Double#parseDouble(String)} does.
+	 * @throws NumberFormatException if the characters are not a number.
+	 */
+	static double parse(CharSequence text, int start, int end, boolean thousandDot, char thousandSeparator) {
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean hadDigit = false, hadPoint = false;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c >= '0' && c <= '9') {
+				hadDigit = true;
+				if (mantissa == 0 && c == '0') {
+					if (hadPoint) exponent--;
+					continue;
+				}
+				digits++;
+				if (digits <= maxMantissaDigits) mantissa = mantissa * 10 + (c - '0');
+				else if (!hadPoint) exponent++;
+				if (hadPoint && digits <= maxMantissaDigits) exponent--;
+			} else if (thousandDot && c == thousandSeparator) continue;
+			else if ((c == '.' || c == ',') && !hadPoint) hadPoint = true;
+			else throw new NumberFormatException(text.subSequence(start, end).toString());
+		}
+		if (!hadDigit && !hadPoint) throw new NumberFormatException(text.subSequence(start, end).toString());
+		double value = toDouble(mantissa, digits, exponent);
+		if (value == value) return value;
+		StringBuilder builder = new StringBuilder(end - start + 1).append('0');
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (!(thousandDot && c == thousandSeparator)) builder.append(c == ',' ? '.' : c);
+		}
+		return Double.parseDouble(builder.toString());
+	}
+
+	/**
+	 * Parses a number written in the usual machine form, such as {@code -12.5e3}, from the bytes between {@code start} and {@code end}, ignoring surrounding spaces.
+	 * The result is rounded exactly as {@link Double#parseDouble(String)} does.
+	 * @throws NumberFormatException if the bytes are not a number.
+	 */
+	static double parse(ByteBuffer buffer, int start, int end) {
+		while (start < end && buffer.get(start) == ' ') start++;
+		while (end > start && buffer.get(end - 1) == ' ') end--;
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) negative = buffer.get(i++) == '-';
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean hadDigit = false, hadPoint = false;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				hadDigit = true;
+				if (mantissa == 0 && b == '0') {
+					if (hadPoint) exponent--;
+					continue;
+				}
+				digits++;
+				if (digits <= maxMantissaDigits) mantissa = mantissa * 10 + (b - '0');
+				else if (!hadPoint) exponent++;
+				if (hadPoint && digits <= maxMantissaDigits) exponent--;
+			} else if (b == '.' && !hadPoint) hadPoint = true;
+			else break;
+		}
+		if (!hadDigit) throw new NumberFormatException(asString(buffer, start, end));
+		if (i < end) {
+			byte b = buffer.get(i++);
+			if (b != 'e' && b != 'E' || i == end) throw new NumberFormatException(asString(buffer, start, end));
+			boolean negativeExponent = false;
+			if (buffer.get(i) == '-' || buffer.get(i) == '+') negativeExponent = buffer.get(i++) == '-';
+			if (i == end) throw new NumberFormatException(asString(buffer, start, end));
+			int explicitExponent = 0;
+			for (; i < end; i++) {
+				b = buffer.get(i);
+				if (b < '0' || b > '9') throw new NumberFormatException(asString(buffer, start, end));
+				if (explicitExponent < 100000) explicitExponent = explicitExponent * 10 + (b - '0');
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+		double value = toDouble(mantissa, digits, exponent);
+		if (value == value) return negative ? -value : value;
+		return Double.parseDouble(asString(buffer, start, end));
+	}
+
+	/**
+	 * Returns the double nearest to {@code mantissa * 10^exponent}, where the mantissa holds the first of {@code digits} significant digits, or NaN if that cannot be decided quickly.
+	 */
+	private static double toDouble(long mantissa, int digits, int exponent) {
+		if (mantissa == 0) return 0;
+		if (digits <= maxMantissaDigits) {
+			// Both the mantissa and the power of ten are exact doubles here, so one multiplication or division rounds correctly.
+			if (mantissa < maxExactMantissa && exponent >= -22 && exponent <= 22) return exponent < 0 ? mantissa / powersOfTen[-exponent] : mantissa * powersOfTen[exponent];
+			return eiselLemire(mantissa, exponent);
+		}
+		// Digits were dropped: the number lies between the mantissa and the next one, and is known when both round the same.
+		double value = eiselLemire(mantissa, exponent);
+		return value == eiselLemire(mantissa + 1, exponent) ? value : Double.NaN;
+	}
+
+	/**
+	 * Converts with the algorithm of Eisel and Lemire: the mantissa is multiplied by a 128-bit approximation of the power of ten, which gives the correctly rounded result unless the product is too close to halfway between two doubles.
+	 * Returns NaN in that case, and for results that are subnormal or infinite.
+	 */
+	private static double eiselLemire(long mantissa, int exponent) {
+		if (exponent < PowersOfTen.minExponent || exponent > PowersOfTen.maxExponent) return Double.NaN;
+		int leadingZeros = Long.numberOfLeadingZeros(mantissa);
+		mantissa <<= leadingZeros;
+		long binaryExponent = (217706L * exponent >> 16) + 64 + 1023 - leadingZeros; // 217706 / 2^16 is about log2(10).
+		long high = PowersOfTen.high[exponent - PowersOfTen.minExponent], low = PowersOfTen.low[exponent - PowersOfTen.minExponent];
+		long productHigh = unsignedMultiplyHigh(mantissa, high), productLow = mantissa * high;
+		if ((productHigh & 0x1FF) == 0x1FF && Long.compareUnsigned(productLow + mantissa, mantissa) < 0) {
+			// The truncated power may make a difference, so include its lower half.
+			long lowHigh = unsignedMultiplyHigh(mantissa, low), lowLow = mantissa * low;
+			long mergedHigh = productHigh, mergedLow = productLow + lowHigh;
+			if (Long.compareUnsigned(mergedLow, productLow) < 0) mergedHigh++;
+			if ((mergedHigh & 0x1FF) == 0x1FF && mergedLow == -1 && Long.compareUnsigned(lowLow + mantissa, mantissa) < 0) return Double.NaN;
+			productHigh = mergedHigh;
+			productLow = mergedLow;
+		}
+		long topBit = productHigh >>> 63;
+		long result = productHigh >>> (topBit + 9);
+		binaryExponent -= 1 ^ topBit;
+		if (productLow == 0 && (productHigh & 0x1FF) == 0 && (result & 3) == 1) return Double.NaN; // Halfway, or too close to tell.
+		result += result & 1;
+		result >>>= 1;
+		if (result >>> 53 != 0) {
+			result >>>= 1;
+			binaryExponent++;
+		}
+		if (binaryExponent <= 0 || binaryExponent >= 0x7FF) return Double.NaN;
+		return Double.longBitsToDouble(binaryExponent << 52 | result & 0xFFFFFFFFFFFFFL);
+	}
+
+	private static long unsignedMultiplyHigh(long x, long y) {
+		long x1 = x >> 32, x2 = x & 0xFFFFFFFFL, y1 = y >> 32, y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2, t = x1 * y2 + (z2 >>> 32), z1 = t & 0xFFFFFFFFL, z0 = t >> 32;
+		z1 += x2 * y1;
+		long signedHigh = x1 * y1 + z0 + (z1 >> 32);
+		return signedHigh + (x >> 63 & y) + (y >> 63 & x);
+	}
+
+	private static String asString(ByteBuffer buffer, int start, int end) {
+		StringBuilder builder = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) builder.append((char)(buffer.get(i) & 0xFF));
+		return builder.toString();
+	}
+
+	/**
+	 * The powers of ten from 10^-348 to 10^347, each truncated to its 128 most significant bits. Only built when a number falls outside the simple fast path.
+	 */
+	private static class PowersOfTen {
+		static final int minExponent = -348, maxExponent = 347;
+		static final long[] high = new long[maxExponent - minExponent + 1], low = new long[high.length];
+
+		static {
+			for (int exponent = minExponent; exponent <= maxExponent; exponent++) {
+				BigInteger power = BigInteger.TEN.pow(Math.abs(exponent)), bits;
+				if (exponent >= 0) bits = power.bitLength() >= 128 ? power.shiftRight(power.bitLength() - 128) : power.shiftLeft(128 - power.bitLength());
+				else {
+					bits = BigInteger.ONE.shiftLeft(power.bitLength() + 128).divide(power);
+					bits = bits.shiftRight(bits.bitLength() - 128);
+				}
+				high[exponent - minExponent] = bits.shiftRight(64).longValue();
+				low[exponent - minExponent] = bits.longValue();
+			}
+		}
+	}
+}
@@ -18,6 +18,13 @@ public abstract class Operand {
 	}
 
 	public abstract double calculate(double val1, double val2, CalculatorEngine engine) throws ExpressionInvalidException;
+
+	/**
+	 * Calculates within a context. Operands that depend on settings should override this to read them from the context; by default the engine's own settings are used.
+	 */
+	public double calculate(double val1, double val2, CalculationContext context) throws ExpressionInvalidException {
+		return calculate(val1, val2, context.getEngine());
+	}
 	
 	public String[] getCharacters() {
 		return characters;
@@ -80,6 +87,10 @@ public abstract class Operand {
 		public double calculate(double val1, double val2, CalculatorEngine engine) throws ExpressionInvalidException {
 			return Utils.power(val1, val2, engine);
 		}
+		@Override
+		public double calculate(double val1, double val2, CalculationContext context) throws ExpressionInvalidException {
+			return Utils.power(val1, val2, context);
+		}
 	}
 
 	public static class Root extends Operand {
@@ -91,6 +102,11 @@ public abstract class Operand {
 			if (val1 == 0) throw new ExpressionInvalidException("level0Root");
 			return Utils.power(val2, 1 / val1, engine);
 		}
+		@Override
+		public double calculate(double val1, double val2, CalculationContext context) throws ExpressionInvalidException {
+			if (val1 == 0) throw new ExpressionInvalidException("level0Root");
+			return Utils.power(val2, 1 / val1, context);
+		}
 	}
 
 	public static class OpeningBrace extends Operand {
@@ -0,0 +1,153 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites parsed expressions so that they evaluate faster without changing their results.
+ */
+class Optimizer {
+	/**
+	 * Replaces the subexpressions that only involve constants, built-in operands and {@link Function.Purity#PURE} functions with their values.
+	 * A subexpression that fails is left as it is, so that the error is still reported when evaluating.
+	 * The budget of the context is checked before each call folded, as when evaluating; running out of it fails the folding.
+	 */
+	static Node fold(Node root, CalculationContext context) throws ExpressionInvalidException {
+		return new Folder(context).walk(root);
+	}
+
+	private static class Folder extends TreeWalk<Node, ExpressionInvalidException> {
+		private final CalculationContext context;
+
+		Folder(CalculationContext context) {
+			this.context = context;
+		}
+
+		@Override
+		Node leave(Node node) throws ExpressionInvalidException {
+			if (node instanceof Node.Percent) {
+				Node folded = getChild(0);
+				if (folded != ((Node.Percent)node).getOperand()) node = new Node.Percent(folded);
+				return folded instanceof Node.Constant ? evaluate(node, context) : node;
+			} else if (node instanceof Node.Binary) {
+				Node.Binary binary = (Node.Binary)node;
+				Node left = getChild(0), right = getChild(1);
+				if (left != binary.getLeft() || right != binary.getRight()) node = new Node.Binary(binary.getOperand(), left, right);
+				return left instanceof Node.Constant && right instanceof Node.Constant && isBuiltIn(binary.getOperand()) ? evaluate(node, context) : node;
+			} else if (node instanceof Node.Call) {
+				Node.Call call = (Node.Call)node;
+				Node[] arguments = new Node[call.getArgumentCount()];
+				boolean changed = false, constant = true;
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = getChild(i);
+					changed |= arguments[i] != call.getArgument(i);
+					constant &= arguments[i] instanceof Node.Constant;
+				}
+				if (changed) node = new Node.Call(call.getFunction(), arguments);
+				if (!constant || call.getFunction().getPurity() != Function.Purity.PURE) return node;
+				if (context.budget != null) context.budget.check();
+				return evaluate(node, context);
+			}
+			return node;
+		}
+	}
+
+	/**
+	 * Evaluates a node whose children are constants, so that evaluating it does not recurse.
+	 */
+	private static Node evaluate(Node node, CalculationContext context) {
+		try {
+			return new Node.Constant(node.evaluate(context));
+		} catch (ExpressionInvalidException | RuntimeException e) {
+			return node;
+		}
+	}
+
+	/**
+	 * Tells whether the operand is one of the built-in ones, whose results only depend on the operands.
+	 * Exact class checks: a subclass may override the calculation.
+	 */
+	private static boolean isBuiltIn(Operand operand) {
+		Class<?> type = operand.getClass();
+		return
+			type == Operand.Plus.class
+			|| type == Operand.Minus.class
+			|| type == Operand.Multiply.class
+			|| type == Operand.DotlessMultiplication.class
+			|| type == Operand.Divide.class
+			|| type == Operand.Exponentiation.class
+			|| type == Operand.Root.class;
+	}
+
+	/**
+	 * Finds the compound subexpressions that occur more than once and give the same result each time, so that they can be evaluated only once.
+	 * Each of them is mapped to a slot number shared by all of its occurrences.
+	 */
+	static Map<Node, Integer> findCommonSubexpressions(Node root) {
+		Identifier identifier = new Identifier();
+		identifier.walk(root);
+		Map<Node, Integer> slots = new IdentityHashMap<Node, Integer>();
+		Map<Integer, Integer> slotOfId = new HashMap<Integer, Integer>();
+		for (Map.Entry<Node, Integer> entry : identifier.ids.entrySet()) {
+			Node node = entry.getKey();
+			int id = entry.getValue();
+			if (identifier.counts.get(id) < 2 || node instanceof Node.Constant || node instanceof Node.Variable) continue;
+			Integer slot = slotOfId.get(id);
+			if (slot == null) slotOfId.put(id, slot = slotOfId.size());
+			slots.put(node, slot);
+		}
+		return slots;
+	}
+
+	/**
+	 * Gives the same number to the nodes that compute the same thing, by their structure.
+	 */
+	private static class Identifier extends TreeWalk<Integer, RuntimeException> {
+		final Map<Node, Integer> ids = new IdentityHashMap<Node, Integer>();
+		final Map<List<Object>, Integer> idOfSignature = new HashMap<List<Object>, Integer>();
+		final List<Integer> counts = new ArrayList<Integer>();
+
+		/**
+		 * Returns the number of the node, or {@code null} if its result may differ between occurrences.
+		 */
+		@Override
+		Integer leave(Node node) {
+			List<Object> signature;
+			if (node instanceof Node.Constant) signature = Arrays.<Object>asList("constant", Double.doubleToRawLongBits(((Node.Constant)node).getValue()));
+			else if (node instanceof Node.Variable) signature = Arrays.<Object>asList("variable", ((Node.Variable)node).getName());
+			else if (node instanceof Node.Percent) {
+				Integer operand = getChild(0);
+				if (operand == null) return null;
+				signature = Arrays.<Object>asList("percent", operand);
+			} else if (node instanceof Node.Binary) {
+				Node.Binary binary = (Node.Binary)node;
+				Integer left = getChild(0), right = getChild(1);
+				if (left == null || right == null || !isBuiltIn(binary.getOperand())) return null;
+				signature = Arrays.<Object>asList(binary.getOperand(), left, right);
+			} else if (node instanceof Node.Call) {
+				Node.Call call = (Node.Call)node;
+				signature = new ArrayList<Object>();
+				signature.add(call.getFunction());
+				boolean deterministic = call.getFunction().getPurity() != Function.Purity.NONDETERMINISTIC;
+				for (int i = 0; i < call.getArgumentCount(); i++) {
+					Integer argument = getChild(i);
+					deterministic &= argument != null;
+					signature.add(argument);
+				}
+				if (!deterministic) return null;
+			} else return null;
+			Integer id = idOfSignature.get(signature);
+			if (id == null) {
+				idOfSignature.put(signature, id = counts.size());
+				counts.add(0);
+			}
+			counts.set(id, counts.get(id) + 1);
+			ids.put(node, id);
+			return id;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed expression flattened into postfix instructions, evaluated on an {@link EvaluationStack} instead of walking the tree.
+ */
+class Program {
+	private static final int
+		CONSTANT = 0,
+		VARIABLE = 1,
+		PERCENT = 2,
+		PLUS = 3,
+		MINUS = 4,
+		MULTIPLY = 5,
+		DIVIDE = 6,
+		OPERAND = 7,
+		CALL1 = 8,
+		NODE = 9,
+		SUM = 10,
+		STORE = 11,
+		LOAD = 12,
+		CALL2 = 13,
+		CALLN = 14;
+
+	private final int[] code;
+	private final double[] constants;
+	private final Node.Variable[] variables;
+	private final int[] slots; // The slot of each variable.
+	private final Operand[] operands;
+	private final Function[] functions;
+	private final Node[] nodes;
+	private final int maxDepth;
+	private final int localCount; // Values of the common subexpressions, kept below the operand stack.
+	// How many times one execution calls each function and operand, for the metrics.
+	private final Function[] calledFunctions;
+	private final int[] functionCallCounts;
+	private final Operand[] calledOperands;
+	private final int[] operandCallCounts;
+
+	private Program(Builder builder) {
+		code = builder.code.stream().mapToInt(Integer::intValue).toArray();
+		constants = builder.constants.stream().mapToDouble(Double::doubleValue).toArray();
+		variables = builder.variables.toArray(new Node.Variable[builder.variables.size()]);
+		slots = new int[variables.length];
+		for (int i = 0; i < slots.length; i++) slots[i] = variables[i].getSlot();
+		operands = builder.operands.toArray(new Operand[builder.operands.size()]);
+		functions = builder.functions.toArray(new Function[builder.functions.size()]);
+		nodes = builder.nodes.toArray(new Node[builder.nodes.size()]);
+		maxDepth = builder.maxDepth;
+		localCount = builder.stored.length;
+		calledFunctions = builder.functionCalls.keySet().toArray(new Function[builder.functionCalls.size()]);
+		functionCallCounts = new int[calledFunctions.length];
+		for (int i = 0; i < calledFunctions.length; i++) functionCallCounts[i] = builder.functionCalls.get(calledFunctions[i]);
+		calledOperands = builder.operandCalls.keySet().toArray(new Operand[builder.operandCalls.size()]);
+		operandCallCounts = new int[calledOperands.length];
+		for (int i = 0; i < calledOperands.length; i++) operandCallCounts[i] = builder.operandCalls.get(calledOperands[i]);
+	}
+
+	static Program compile(Node root) {
+		return compile(root, true);
+	}
+
+	/**
+	 * Compiles the tree, evaluating its common subexpressions only once if asked to. Finding them takes longer than evaluating the expression a single time.
+	 */
+	static Program compile(Node root, boolean shareSubexpressions) {
+		Builder builder = new Builder(shareSubexpressions ? Optimizer.findCommonSubexpressions(root) : Collections.<Node, Integer>emptyMap());
+		builder.walk(root);
+		return new Program(builder);
+	}
+
+	/**
+	 * Finds the columns the variables of the program read from, or returns {@code null} if no variable has a column.
+	 * The keys must be lowercase without whitespace.
+	 */
+	double[][] bindColumns(Map<String, double[]> columns) {
+		double[][] bound = new double[variables.length][];
+		boolean found = false;
+		for (int i = 0; i < variables.length; i++) found |= (bound[i] = columns.get(variables[i].getName())) != null;
+		return found ? bound : null;
+	}
+
+	/**
+	 * Tells whether every variable the program reads from the context, and not from a column, has a value there, so that reading them cannot fail.
+	 */
+	boolean hasVariables(CalculationContext context, double[][] columns) {
+		for (int i = 0; i < slots.length; i++) if ((columns == null || columns[i] == null) && !context.isVariableAvailable(slots[i])) return false;
+		return true;
+	}
+
+	/**
+	 * Tells the recorder how many times one execution calls each function and operand. The program runs straight through, so this is known when compiling.
+	 * Nodes the program does not compile, such as method handles, are not looked into.
+	 */
+	void recordCalls(MetricsRecorder metrics) {
+		for (int i = 0; i < calledFunctions.length; i++) metrics.recordFunctionCalls(calledFunctions[i], functionCallCounts[i]);
+		for (int i = 0; i < calledOperands.length; i++) metrics.recordOperandCalls(calledOperands[i], operandCallCounts[i]);
+	}
+
+	double execute(CalculationContext context, EvaluationStack stack) throws ExpressionInvalidException {
+		return execute(context, stack, null, 0, hasVariables(context, null));
+	}
+
+	/**
+	 * Executes the program, reading the variables that have a column from the given row instead of the context.
+	 * If {@code variablesChecked} is set, {@link #hasVariables} must have returned true for the context and columns and the variables are read without checking them again.
+	 * Otherwise each read is checked, so that the first error met is the same as when walking the tree.
+	 */
+	double execute(CalculationContext context, EvaluationStack stack, double[][] columns, int row, boolean variablesChecked) throws ExpressionInvalidException {
+		int base = stack.reserve(localCount + maxDepth);
+		EvaluationBudget budget = context.budget; // Checked before each call, as functions may take long.
+		try {
+			double[] values = stack.values;
+			int top = base + localCount;
+			for (int pc = 0; pc < code.length;) switch (code[pc++]) {
+				case CONSTANT:
+					values[top++] = constants[code[pc++]];
+					break;
+				case VARIABLE:
+					int index = code[pc++];
+					if (columns != null && columns[index] != null) values[top++] = columns[index][row];
+					else if (variablesChecked) values[top++] = context.readVariable(slots[index]);
+					else {
+						Node.Variable variable = variables[index];
+						values[top++] = context.getVariableInternal(slots[index], variable.getName(), variable.getPosition());
+					}
+					break;
+				case PERCENT:
+					values[top - 1] /= 100;
+					break;
+				case PLUS:
+					top--;
+					values[top - 1] = values[top - 1] + values[top];
+					break;
+				case MINUS:
+					top--;
+					values[top - 1] = values[top - 1] - values[top];
+					break;
+				case MULTIPLY:
+					top--;
+					values[top - 1] = values[top - 1] * values[top];
+					break;
+				case DIVIDE:
+					top--;
+					if (values[top] == 0) throw new ExpressionInvalidException("divisionByZero");
+					values[top - 1] = values[top - 1] / values[top];
+					break;
+				case OPERAND:
+					top--;
+					values[top - 1] = operands[code[pc++]].calculate(values[top - 1], values[top], context);
+					break;
+				case CALL1:
+					if (budget != null) budget.check();
+					double result = functions[code[pc++]].calculate1(values[top - 1], context);
+					values = stack.values; // The function may have evaluated another expression and grown the stack.
+					values[top - 1] = result;
+					break;
+				case CALL2:
+					if (budget != null) budget.check();
+					top--;
+					result = functions[code[pc++]].calculate2(values[top - 1], values[top], context);
+					values = stack.values;
+					values[top - 1] = result;
+					break;
+				case CALLN:
+					if (budget != null) budget.check();
+					Function function = functions[code[pc++]];
+					int count = code[pc++];
+					top -= count;
+					result = function.calculateN(values, top, count, context);
+					values = stack.values;
+					values[top++] = result;
+					break;
+				case SUM: // Plain braces; summed from 0 like Function.total().
+					int summed = code[pc++];
+					top -= summed;
+					double sum = 0;
+					for (int i = 0; i < summed; i++) sum += values[top + i];
+					values[top++] = sum;
+					break;
+				case NODE:
+					if (budget != null) budget.check();
+					double value = nodes[code[pc++]].evaluate(context);
+					values = stack.values;
+					values[top++] = value;
+					break;
+				case STORE:
+					values[base + code[pc++]] = values[top - 1];
+					break;
+				case LOAD:
+					values[top++] = values[base + code[pc++]];
+					break;
+			}
+			return values[base + localCount];
+		} finally {
+			stack.release(base);
+		}
+	}
+
+	/**
+	 * Emits the nodes as they are left, so that the operands of each are on the stack before it.
+	 */
+	private static class Builder extends TreeWalk<Void, RuntimeException> {
+		List<Integer> code = new ArrayList<Integer>();
+		List<Double> constants = new ArrayList<Double>();
+		List<Node.Variable> variables = new ArrayList<Node.Variable>();
+		List<Operand> operands = new ArrayList<Operand>();
+		List<Function> functions = new ArrayList<Function>();
+		List<Node> nodes = new ArrayList<Node>();
+		Map<Function, Integer> functionCalls = new IdentityHashMap<Function, Integer>();
+		Map<Operand, Integer> operandCalls = new IdentityHashMap<Operand, Integer>();
+		int depth = 0, maxDepth = 0;
+		Map<Node, Integer> shared;
+		boolean[] stored;
+
+		Builder(Map<Node, Integer> shared) {
+			this.shared = shared;
+			stored = new boolean[shared.isEmpty() ? 0 : Collections.max(shared.values()) + 1];
+		}
+
+		/**
+		 * Loads the value of a common subexpression that has already been evaluated instead of walking it again. The program runs straight through, so the first occurrence emitted is the first one evaluated.
+		 */
+		@Override
+		boolean enter(Node node) {
+			Integer slot = shared.get(node);
+			if (slot == null || !stored[slot]) return true;
+			push(LOAD, slot);
+			return false;
+		}
+
+		/**
+		 * Emits a node after its operands, storing its value if it is a common subexpression.
+		 */
+		@Override
+		Void leave(Node node) {
+			emitNode(node);
+			Integer slot = shared.get(node);
+			if (slot != null) {
+				code.add(STORE);
+				code.add(slot);
+				stored[slot] = true;
+			}
+			return null;
+		}
+
+		private void emitNode(Node node) {
+			if (node instanceof Node.Constant) {
+				push(CONSTANT, constants.size());
+				constants.add(((Node.Constant)node).getValue());
+			} else if (node instanceof Node.Variable) {
+				push(VARIABLE, variables.size());
+				variables.add((Node.Variable)node);
+			} else if (node instanceof Node.Percent) code.add(PERCENT);
+			else if (node instanceof Node.Binary) {
+				Node.Binary binary = (Node.Binary)node;
+				depth--;
+				operandCalls.merge(binary.getOperand(), 1, Integer::sum);
+				// Exact class checks: a subclass may override the calculation.
+				Class<?> type = binary.getOperand().getClass();
+				if (type == Operand.Plus.class) code.add(PLUS);
+				else if (type == Operand.Minus.class) code.add(MINUS);
+				else if (type == Operand.Multiply.class || type == Operand.DotlessMultiplication.class) code.add(MULTIPLY);
+				else if (type == Operand.Divide.class) code.add(DIVIDE);
+				else {
+					code.add(OPERAND);
+					code.add(operands.size());
+					operands.add(binary.getOperand());
+				}
+			} else if (node instanceof Node.Call) {
+				Node.Call call = (Node.Call)node;
+				depth -= call.getArgumentCount();
+				functionCalls.merge(call.getFunction(), 1, Integer::sum);
+				if (call.getFunction().getClass() == Function.Sum.class) {
+					push(SUM, call.getArgumentCount());
+					return;
+				}
+				switch (call.getArgumentCount()) {
+					case 1:
+						push(CALL1, functions.size());
+						break;
+					case 2:
+						push(CALL2, functions.size());
+						break;
+					default:
+						push(CALLN, functions.size());
+						code.add(call.getArgumentCount());
+				}
+				functions.add(call.getFunction());
+			} else {
+				push(NODE, nodes.size());
+				nodes.add(node);
+			}
+		}
+
+		private void push(int opcode, int index) {
+			code.add(opcode);
+			code.add(index);
+			if (++depth > maxDepth) maxDepth = depth;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The operands and functions of an engine, laid out for the parser: operands are found by their character in a paged table and functions by walking their name in a trie, so no string is made for a lookup.
+ * A table never changes; the engine builds a new one whenever an operand or a function is registered.
+ */
+final class SymbolTable {
+	private final Operand[][] operandPages = new Operand[256][]; // Indexed by the high byte, then the low byte of the character.
+	private final TrieNode functions = new TrieNode();
+
+	/**
+	 * @param operands The operands by their character. Only keys of one character can be looked up.
+	 * @param functions The functions by their name, lowercase without whitespace.
+	 */
+	SymbolTable(Map<String, Operand> operands, Map<String, Function> functions) {
+		for (Map.Entry<String, Operand> entry : operands.entrySet()) {
+			if (entry.getKey().length() != 1) continue;
+			char c = entry.getKey().charAt(0);
+			Operand[] page = operandPages[c >>> 8];
+			if (page == null) page = operandPages[c >>> 8] = new Operand[256];
+			page[c & 0xFF] = entry.getValue();
+		}
+		for (Map.Entry<String, Function> entry : functions.entrySet()) {
+			String name = entry.getKey();
+			TrieNode node = this.functions;
+			for (int i = 0; i < name.length(); i++) node = node.getOrAddChild(name.charAt(i));
+			node.function = entry.getValue();
+		}
+	}
+
+	/**
+	 * Returns the operand of the character, or {@code null} if there is none.
+	 */
+	Operand getOperand(char c) {
+		Operand[] page = operandPages[c >>> 8];
+		return page == null ? null : page[c & 0xFF];
+	}
+
+	/**
+	 * Returns the function named by the characters from {@code start} to {@code end} of the text, or {@code null} if there is none.
+	 */
+	Function getFunction(CharSequence text, int start, int end) {
+		TrieNode node = functions;
+		for (int i = start; i < end && node != null; i++) node = node.getChild(text.charAt(i));
+		return node == null ? null : node.function;
+	}
+
+	private static class TrieNode {
+		// The children are kept sorted by their character.
+		char[] characters = new char[0];
+		TrieNode[] children = new TrieNode[0];
+		Function function;
+
+		TrieNode getChild(char c) {
+			int index = Arrays.binarySearch(characters, c);
+			return index < 0 ? null : children[index];
+		}
+
+		TrieNode getOrAddChild(char c) {
+			int index = Arrays.binarySearch(characters, c);
+			if (index >= 0) return children[index];
+			index = -index - 1;
+			char[] newCharacters = new char[characters.length + 1];
+			TrieNode[] newChildren = new TrieNode[children.length + 1];
+			System.arraycopy(characters, 0, newCharacters, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(characters, index, newCharacters, index + 1, characters.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+			newCharacters[index] = c;
+			TrieNode child = newChildren[index] = new TrieNode();
+			characters = newCharacters;
+			children = newChildren;
+			return child;
+		}
+	}
+}
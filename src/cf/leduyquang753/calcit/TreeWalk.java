@@ -0,0 +1,96 @@
+package cf.leduyquang753.calcit;
+
+import java.util.Arrays;
+
+/**
+ * Walks a parsed expression bottom-up on a stack of its own instead of the call stack, so that expressions nested as deeply as the parser accepts cannot overflow it.
+ * Each node is entered before its children and left after them, the children being walked from left to right.
+ * Nodes that are not built into the engine are walked as leaves.
+ */
+abstract class TreeWalk<T, E extends Exception> {
+	private Node[] nodes = new Node[16];
+	private int[] nextChildren = new int[16], childCounts = new int[16];
+	private Object[] results = new Object[16];
+	private int resultCount = 0, firstChild = 0;
+
+	/**
+	 * Called before walking the children of the node. Returning {@code false} skips the node and its children, and the node's result is {@code null}.
+	 */
+	boolean enter(Node node) throws E {
+		return true;
+	}
+
+	/**
+	 * Called after walking the children of the node, whose results {@link #getChild(int)} gives. Returns the result of the node.
+	 */
+	abstract T leave(Node node) throws E;
+
+	/**
+	 * Returns the result of a child of the node being left.
+	 */
+	@SuppressWarnings("unchecked")
+	final T getChild(int index) {
+		return (T)results[firstChild + index];
+	}
+
+	/**
+	 * Walks the tree and returns the result of its root. The walk can be run again once it has returned or thrown.
+	 */
+	@SuppressWarnings("unchecked")
+	final T walk(Node root) throws E {
+		resultCount = 0;
+		if (!enter(root)) return null;
+		nodes[0] = root;
+		nextChildren[0] = 0;
+		childCounts[0] = root.getChildCount();
+		int depth = 1;
+		while (depth != 0) {
+			Node node = nodes[depth - 1];
+			int next = nextChildren[depth - 1];
+			if (next < childCounts[depth - 1]) {
+				nextChildren[depth - 1]++;
+				Node child = node.getChild(next);
+				if (!enter(child)) push(null);
+				else {
+					if (depth == nodes.length) {
+						nodes = Arrays.copyOf(nodes, depth * 2);
+						nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+						childCounts = Arrays.copyOf(childCounts, depth * 2);
+					}
+					nodes[depth] = child;
+					nextChildren[depth] = 0;
+					childCounts[depth++] = child.getChildCount();
+				}
+			} else {
+				nodes[--depth] = null;
+				firstChild = resultCount - childCounts[depth];
+				T result = leave(node);
+				Arrays.fill(results, firstChild, resultCount, null);
+				resultCount = firstChild;
+				push(result);
+			}
+		}
+		T result = (T)results[0];
+		results[0] = null;
+		return result;
+	}
+
+	/**
+	 * Returns the number of nodes on the longest path from the root down, the root included.
+	 */
+	static int getDepth(Node root) {
+		return new TreeWalk<Integer, RuntimeException>() {
+			@Override
+			Integer leave(Node node) {
+				int depth = 0;
+				for (int i = 0; i < node.getChildCount(); i++) depth = Math.max(depth, getChild(i));
+				return depth + 1;
+			}
+		}.walk(root);
+	}
+
+	private void push(Object result) {
+		if (resultCount == results.length) results = Arrays.copyOf(results, resultCount * 2);
+		results[resultCount++] = result;
+	}
+}
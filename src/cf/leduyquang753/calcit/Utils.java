@@ -1,8 +1,9 @@
 package cf.leduyquang753.calcit;
 
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Locale;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
 
 public class Utils {
 	private static final double
@@ -12,18 +13,76 @@ public class Utils {
 		gradInDeg = 0.9,
 		gradInRad = Math.PI / 200,
 		radInGrad = 200 / Math.PI;
+	private static final int maxFactorial = 170; // The largest number whose factorial is a finite double.
+	private static final double[] factorials = new double[maxFactorial + 1];
+	/**
+	 * The natural logarithm of the largest double. Results whose logarithm exceeds it overflow.
+	 */
+	static final double logMaxValue = Math.log(Double.MAX_VALUE);
+	
+	static {
+		BigInteger factorial = BigInteger.ONE;
+		factorials[0] = 1;
+		for (int i = 1; i <= maxFactorial; i++) factorials[i] = (factorial = factorial.multiply(BigInteger.valueOf(i))).doubleValue();
+	}
 	
 	/**
 	 * Power function.
 	 * @throws ExpressionInvalidException 
 	 */
 	public static double power(double baseNum, double exponent, CalculatorEngine engine) throws ExpressionInvalidException {
+		return power(baseNum, exponent, engine.decimalDot, engine.thousandDot, engine.mulAsterisk);
+	}
+
+	/**
+	 * Power function, formatting the numbers in the error message with the settings of the context.
+	 */
+	public static double power(double baseNum, double exponent, CalculationContext context) throws ExpressionInvalidException {
+		return power(baseNum, exponent, context.decimalDot, context.thousandDot, context.mulAsterisk);
+	}
+
+	/**
+	 * Tells whether the power function gives a result for these numbers instead of throwing, so that column kernels can mask the failing rows up front.
+	 */
+	static boolean isPowerDefined(double baseNum, double exponent) {
+		if (baseNum == 0) return exponent > 0;
+		if (exponent < 0) return true;
+		double roundedExponent = Math.round(exponent);
+		return Math.abs(roundedExponent - exponent) < 1E-11 || baseNum > 0;
+	}
+
+	private static double power(double baseNum, double exponent, boolean decimalDot, boolean thousandDot, boolean mulAsterisk) throws ExpressionInvalidException {
 		if (baseNum == 0) if (exponent > 0) return 0; else throw new ExpressionInvalidException("divisionByZero");
 		if (exponent < 0) return 1 / Math.pow(baseNum, -exponent);
 		double roundedExponent = Math.round(exponent);
 		if (Math.abs(roundedExponent - exponent) < 1E-11)
 			return baseNum > 0 || mod(roundedExponent, 2) == 0 ? Math.pow(baseNum, roundedExponent) : -Math.pow(-baseNum, roundedExponent);
-		else if (baseNum > 0) return Math.pow(baseNum, exponent); else throw new ExpressionInvalidException("unsupportedExponentiation", new Object[] { formatNumber(baseNum, engine), formatNumber(exponent, engine) });
+		else if (baseNum > 0) return Math.pow(baseNum, exponent); else throw new ExpressionInvalidException("unsupportedExponentiation", new Object[] { formatNumber(baseNum, decimalDot, thousandDot, mulAsterisk), formatNumber(exponent, decimalDot, thousandDot, mulAsterisk) });
+	}
+	
+	/**
+	 * Returns the factorial of a non-negative integer, rounded to the nearest double, or infinity if it is larger than any double.
+	 */
+	public static double factorial(double n) {
+		return n > maxFactorial ? Double.POSITIVE_INFINITY : factorials[(int)n];
+	}
+	
+	/**
+	 * Returns the natural logarithm of the factorial of a non-negative integer, which is the log-gamma of {@code n + 1}.
+	 * Up to 170 it comes from the table of factorials; beyond, from Stirling's series, which is accurate to about the last digit there.
+	 */
+	static double logFactorial(double n) {
+		if (n <= maxFactorial) return Math.log(factorials[(int)n]);
+		double inverse = 1 / n, inverseSquare = inverse * inverse;
+		return n * Math.log(n) - n + 0.5 * Math.log(2 * Math.PI * n) + inverse * (1.0 / 12 - inverseSquare * (1.0 / 360 - inverseSquare / 1260));
+	}
+	
+	/**
+	 * Tells whether the given numbers of the array are neither infinite nor NaN.
+	 */
+	static boolean areFinite(double[] numbers, int offset, int count) {
+		for (int i = offset; i < offset + count; i++) if (Double.isNaN(numbers[i]) || Double.isInfinite(numbers[i])) return false;
+		return true;
 	}
 	
 	public static double degToRad(double degs) {
@@ -66,63 +125,62 @@ public class Utils {
 		return num >= 0 ? Math.floor(num) : Math.ceil(num);
 	}
 	
-	private static final DecimalFormat internalNumberFormat = new DecimalFormat("#,##0.##########", DecimalFormatSymbols.getInstance(Locale.ENGLISH));	
-	
-	private static String getFormattedNumberInternal(double number, CalculatorEngine engine, char mulSign) {
-		String toReturn = internalNumberFormat.format(number).replace(",", " ").replace("E", mulSign + "10^");
-		if (!engine.decimalDot) toReturn = toReturn.replace(".", ",");
-		if (engine.thousandDot) toReturn = toReturn.replace(" ", engine.decimalDot ? "," : ".");
-		return toReturn;
-	}
-	
 	public static String formatNumber(double number, CalculatorEngine engine) {
-		try {
-			char mulSign = engine.mulAsterisk || engine.decimalDot || (!engine.decimalDot && engine.thousandDot) ? '*' : '.';
-			String toReturn;
-			double log = Math.log10(Math.abs(number));
-			if (number != 0 && (log <= -7 || log >= 18))
-			{
-				int exponent = (int)Math.floor(Math.log10(Math.abs(number)) / 3) * 3;
-				double displayedNumber = number * Math.pow(10, -exponent);
-				if (Double.isNaN(displayedNumber)) return null;
-				toReturn = getFormattedNumberInternal(displayedNumber, engine, mulSign);
-				return exponent == 0 ? toReturn : toReturn + mulSign + "10^" + exponent;
-			}
-			String formatted = getFormattedNumberInternal(number, engine, mulSign);
-			toReturn = "";
-			int digitCount = -1;
-			char decimalSeparator = engine.decimalDot ? '.' : ',';
-			for (char c : formatted.toCharArray()) {
-				if (c == decimalSeparator) {
-					toReturn += c;
-					digitCount = 0;
-				}
-				else if (c == mulSign) {
-					toReturn += c;
-					digitCount = -1;
-				} else {
-					if (digitCount == -1) {
-						toReturn += c;
-						continue;
-					}
-					else if (digitCount == 10) continue;
-					else {
-						toReturn += c;
-						digitCount++;
-					}
-				}
-			}
-			return toReturn;
-		} catch (Exception e) {
-			return null;
-		}
+		return formatNumber(number, engine.decimalDot, engine.thousandDot, engine.mulAsterisk);
+	}
+
+	public static String formatNumber(double number, CalculationContext context) {
+		return formatNumber(number, context.decimalDot, context.thousandDot, context.mulAsterisk);
+	}
+
+	private static String formatNumber(double number, boolean decimalDot, boolean thousandDot, boolean mulAsterisk) {
+		NumberFormatter formatter = NumberFormatter.get();
+		StringBuilder buffer = formatter.buffer;
+		buffer.setLength(0);
+		return formatter.format(number, decimalDot, thousandDot, mulAsterisk, buffer) ? buffer.toString() : null;
+	}
+
+	/**
+	 * Appends the number formatted as by {@link #formatNumber(double, CalculationContext)} to the builder.
+	 * @return {@code false} if the number cannot be displayed, in which case nothing is appended.
+	 */
+	public static boolean formatNumber(double number, CalculationContext context, StringBuilder output) {
+		return NumberFormatter.get().format(number, context.decimalDot, context.thousandDot, context.mulAsterisk, output);
+	}
+
+	/**
+	 * Puts the number formatted as by {@link #formatNumber(double, CalculationContext)} into the buffer.
+	 * @return {@code false} if the number cannot be displayed, in which case nothing is put.
+	 * @throws BufferOverflowException If the formatted number does not fit in the remaining space of the buffer, in which case nothing is put.
+	 */
+	public static boolean formatNumber(double number, CalculationContext context, CharBuffer output) {
+		NumberFormatter formatter = NumberFormatter.get();
+		StringBuilder buffer = formatter.buffer;
+		buffer.setLength(0);
+		if (!formatter.format(number, context.decimalDot, context.thousandDot, context.mulAsterisk, buffer)) return false;
+		if (output.remaining() < buffer.length()) throw new BufferOverflowException();
+		for (int i = 0; i < buffer.length(); i++) output.put(buffer.charAt(i));
+		return true;
+	}
+
+	/**
+	 * Appends the number formatted as by {@link #formatNumber(double, CalculationContext)} to the output.
+	 * @return {@code false} if the number cannot be displayed, in which case nothing is appended.
+	 */
+	public static boolean formatNumber(double number, CalculationContext context, Appendable output) throws IOException {
+		NumberFormatter formatter = NumberFormatter.get();
+		StringBuilder buffer = formatter.buffer;
+		buffer.setLength(0);
+		if (!formatter.format(number, context.decimalDot, context.thousandDot, context.mulAsterisk, buffer)) return false;
+		output.append(buffer);
+		return true;
 	}
 	
 	public static int getIndexWithWhitespace(String text, int indexWithoutWhitespace) {
 		int position = -1, oldPosition = -1;
 		for (char c : text.toCharArray()) {
 			position++;
-			if (c != ' ' && ++oldPosition == indexWithoutWhitespace-1) return position+1;
+			if (!NormalizedExpression.isWhitespace(c) && ++oldPosition == indexWithoutWhitespace-1) return position+1;
 		}
 		return text.length();
 	}
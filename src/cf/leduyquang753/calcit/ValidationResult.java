@@ -0,0 +1,62 @@
+package cf.leduyquang753.calcit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The outcome of {@link CalculatorEngine#validate(String, CalculationContext)}: the syntax errors of an expression, in the order they occur, and the variables and functions it uses.
+ * An expression without syntax errors may still fail when calculated, for example on a variable that is not set or a division by zero.
+ */
+public class ValidationResult {
+	final List<ExpressionInvalidException> errors = new ArrayList<ExpressionInvalidException>();
+	final List<String> variablesToAssign = new ArrayList<String>();
+	private final Set<String> variables = new LinkedHashSet<String>();
+	private final Set<Function> functions = new LinkedHashSet<Function>();
+
+	void addError(ExpressionInvalidException error) {
+		errors.add(error);
+	}
+
+	void addVariable(String name) {
+		variables.add(name);
+	}
+
+	void addFunction(Function function) {
+		functions.add(function);
+	}
+
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Returns the errors, each with the key and position that calculating would report if it were the first.
+	 */
+	public List<ExpressionInvalidException> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * Returns the names of the variables on the left of the equal signs that can be assigned.
+	 */
+	public List<String> getVariablesToAssign() {
+		return Collections.unmodifiableList(variablesToAssign);
+	}
+
+	/**
+	 * Returns the names of the variables the expression reads, lowercase and in the order they first appear.
+	 */
+	public Set<String> getVariables() {
+		return Collections.unmodifiableSet(variables);
+	}
+
+	/**
+	 * Returns the functions the expression calls, in the order they first appear. Plain braces call {@link Function.Sum}.
+	 */
+	public Set<Function> getFunctions() {
+		return Collections.unmodifiableSet(functions);
+	}
+}
@@ -0,0 +1,57 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that calculating on a warmed-up engine does not allocate once the expression is cached.
+ * The allocations are counted per thread by the JVM; rounds are repeated so that the compiler has finished with the loop in at least one of them.
+ */
+public class AllocationTest {
+	private static final String expression = "x*x+2*x*y-y/3+(x+1)*(y-2)^2+5%";
+	private static final int warmUpCalls = 200000, calls = 10000, rounds = 10;
+
+	private interface Calculation {
+		double run() throws ExpressionInvalidException;
+	}
+
+	private static long leastAllocatedBytes(Calculation calculation) throws ExpressionInvalidException {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < warmUpCalls; i++) calculation.run();
+		long least = Long.MAX_VALUE;
+		for (int round = 0; round < rounds; round++) {
+			long before = bean.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < calls; i++) calculation.run();
+			least = Math.min(least, bean.getThreadAllocatedBytes(thread) - before);
+		}
+		return least;
+	}
+
+	private static CalculationContext prepareContext(CalculatorEngine engine) throws ExpressionInvalidException {
+		CalculationContext context = new CalculationContext(engine);
+		engine.calculate("x=3", context);
+		engine.calculate("y=4", context);
+		return context;
+	}
+
+	@Test
+	public void calculateDoesNotAllocate() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = prepareContext(engine);
+		assertEquals(0, leastAllocatedBytes(() -> engine.calculate(expression, context)));
+	}
+
+	@Test
+	public void evaluateDoesNotAllocate() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = prepareContext(engine);
+		CompiledExpression compiled = engine.compile(expression, context);
+		assertEquals(0, leastAllocatedBytes(() -> compiled.evaluate(context)));
+	}
+}
@@ -0,0 +1,80 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that evaluating a batch gives for each row what calculating the expression with the values of that row gives.
+ */
+public class BatchEvaluatorTest {
+	private static final String expression = "x/y+sin(x)*k-2^y";
+	private static final int rowCount = 1000;
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+	private Map<String, double[]> columns;
+
+	@BeforeEach
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+		engine.calculate("k=3", context);
+		double[] x = new double[rowCount], y = new double[rowCount];
+		for (int row = 0; row < rowCount; row++) {
+			x[row] = row * 0.75 - 100;
+			y[row] = row % 7 - 3; // Zero every seventh row.
+		}
+		columns = new HashMap<String, double[]>();
+		columns.put(" X", x); // Keys are read like variable names.
+		columns.put("y", y);
+	}
+
+	@Test
+	public void matchesCalculate() throws ExpressionInvalidException {
+		double[] output = new double[rowCount];
+		BitSet errors = new BitSet();
+		int errorCount = new BatchEvaluator(engine.compile(expression, context)).evaluate(columns, output, errors, context);
+		CalculationContext rowContext = new CalculationContext(engine);
+		rowContext.decimalDot = true; // For the values written by Double.toString.
+		engine.calculate("k=3", rowContext);
+		int expectedErrors = 0;
+		for (int row = 0; row < rowCount; row++) {
+			engine.calculate("x=" + columns.get(" X")[row], rowContext);
+			engine.calculate("y=" + columns.get("y")[row], rowContext);
+			CalculationResult expected = engine.tryCalculate(expression, rowContext);
+			if (expected.isValid()) {
+				assertEquals(expected.getValue(), output[row], "row " + row);
+				assertFalse(errors.get(row), "row " + row);
+			} else {
+				expectedErrors++;
+				assertTrue(Double.isNaN(output[row]), "row " + row);
+				assertTrue(errors.get(row), "row " + row);
+			}
+		}
+		assertEquals(expectedErrors, errorCount);
+		assertEquals(expectedErrors, errors.cardinality());
+		assertTrue(errorCount > 0);
+	}
+
+	@Test
+	public void doesNotChangeContext() throws ExpressionInvalidException {
+		engine.calculate("5", context);
+		new BatchEvaluator(engine.compile(expression, context)).evaluate(columns, new double[rowCount], null, context);
+		assertEquals(5, context.getAns());
+	}
+
+	@Test
+	public void shortColumn() throws ExpressionInvalidException {
+		BatchEvaluator batch = new BatchEvaluator(engine.compile(expression, context));
+		assertThrows(IllegalArgumentException.class, () -> batch.evaluate(columns, new double[rowCount + 1], null, context));
+	}
+}
@@ -0,0 +1,79 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link CalculatorEngine#tryCalculate(String, CalculationContext)} returns errors as results instead of throwing.
+ */
+public class CalculationResultTest {
+	private final CalculatorEngine engine = new CalculatorEngine();
+
+	private CalculationResult tryCalculate(String expression) {
+		return engine.tryCalculate(expression, new CalculationContext(engine));
+	}
+
+	@Test
+	public void validExpression() {
+		CalculationResult result = tryCalculate("2*(3+4)");
+		assertTrue(result.isValid());
+		assertEquals(14, result.getValue());
+	}
+
+	@Test
+	public void unclosedAdjacentBraces() {
+		for (String expression : new String[] { "((1", "2*((3", "1-2*sin(cos(3" }) {
+			CalculationResult result = tryCalculate(expression);
+			assertFalse(result.isValid(), expression);
+			assertEquals("braceInvolved", result.getErrorKey(), expression);
+		}
+	}
+
+	@Test
+	public void unclosedBrace() {
+		CalculationResult result = tryCalculate("2*(3");
+		assertTrue(result.isValid());
+		assertEquals(6, result.getValue());
+	}
+
+	@Test
+	public void decimalSeparatorAfterPercent() {
+		CalculationResult result = tryCalculate("2%,5");
+		assertFalse(result.isValid());
+		assertEquals("unexpectedDecimalSeparator", result.getErrorKey());
+	}
+
+	@Test
+	public void errorMetFirst() {
+		CalculationContext context = new CalculationContext(engine);
+		for (int round = 0; round < 2; round++) for (String[] expected : new String[][] { // The second round takes the expressions from the cache.
+			{ "1/0*q", "variableNotSet", "5" },
+			{ "1/0+q", "divisionByZero", "5" },
+			{ "1/0+2%,5", "divisionByZero", "8" },
+			{ "q+2%,5", "variableNotSet", "1" },
+			{ "2*((1/0", "divisionByZero", "7" },
+			{ "1+((q", "variableNotSet", "5" }
+		}) {
+			CalculationResult result = engine.tryCalculate(expected[0], context);
+			assertEquals(expected[1], result.getErrorKey(), expected[0]);
+			assertEquals(Integer.parseInt(expected[2]), result.getPosition(), expected[0]);
+		}
+	}
+
+	@Test
+	public void neverThrows() {
+		String alphabet = "0123456789.,;%+-*/^#()[]{}|!=xqsinlogp ";
+		Random random = new Random(7);
+		CalculationContext context = new CalculationContext(engine);
+		for (int i = 0; i < 50000; i++) {
+			StringBuilder expression = new StringBuilder();
+			for (int j = random.nextInt(12); j >= 0; j--) expression.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			engine.tryCalculate(expression.toString(), context);
+		}
+	}
+}
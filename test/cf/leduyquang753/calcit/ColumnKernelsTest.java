@@ -0,0 +1,62 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the vectorized kernels give the same values and the same failed rows as evaluating row by row.
+ */
+public class ColumnKernelsTest {
+	private static final int rowCount = 2500; // Two full blocks and a partial one.
+
+	private static final String[] expressions = {
+		"x+y-3*x/y", "x^2+y^0,5", "2#x", "y#x", "x%+(y)%", "sin(x)+cos(y)*tan(x)", "floor(x/7)+abs(y)", "(x;y;3)", "sum(x;y;1)",
+		"log(x)+logn(y)", "max(x;y;0)", "p(y;2)", "x/0", "-x*(y-1)", "fact(y)", "x*k-k/y"
+	};
+
+	@Test
+	public void matchesRowByRow() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		Map<String, double[]> columns = new HashMap<String, double[]>();
+		double[] x = new double[rowCount], y = new double[rowCount];
+		for (int row = 0; row < rowCount; row++) {
+			x[row] = (row - 1200) * 0.37;
+			y[row] = row % 11 - 5;
+		}
+		columns.put("x", x);
+		columns.put("y", y);
+		for (AngleUnit angleUnit : new AngleUnit[] { AngleUnit.DEGREE, AngleUnit.RADIAN, AngleUnit.GRADIAN }) {
+			CalculationContext context = new CalculationContext(engine);
+			context.angleUnit = angleUnit;
+			engine.calculate("k=4", context);
+			for (String expression : expressions) {
+				BatchEvaluator batch = new BatchEvaluator(engine.compile(expression, context));
+				double[] scalar = new double[rowCount], vectorized = new double[rowCount];
+				BitSet scalarErrors = new BitSet(), vectorizedErrors = new BitSet();
+				int scalarCount = batch.evaluate(columns, scalar, scalarErrors, context);
+				batch.vectorized = true;
+				int vectorizedCount = batch.evaluate(columns, vectorized, vectorizedErrors, context);
+				assertEquals(scalarCount, vectorizedCount, expression);
+				assertEquals(scalarErrors, vectorizedErrors, expression);
+				for (int row = 0; row < rowCount; row++) assertEquals(scalar[row], vectorized[row], expression + " at row " + row);
+			}
+		}
+	}
+
+	@Test
+	public void unsetVariable() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = new CalculationContext(engine);
+		BatchEvaluator batch = new BatchEvaluator(engine.compile("x+q", context));
+		batch.vectorized = true;
+		double[] output = new double[10];
+		BitSet errors = new BitSet();
+		assertEquals(10, batch.evaluate(new HashMap<String, double[]>(), output, errors, context));
+		assertEquals(10, errors.cardinality());
+	}
+}
@@ -0,0 +1,83 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.math.BigInteger;
+import java.time.Duration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks factorials, permutations and combinations against exact integer arithmetic, and that huge arguments take no longer than small ones.
+ */
+public class CombinatoricsTest {
+	private static final double exactLimit = 9007199254740992d; // 2^53, up to which doubles hold every integer.
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+
+	@BeforeEach
+	public void setUp() {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+	}
+
+	private double call(Function function, double n, double k) throws ExpressionInvalidException {
+		return ((Function.PrimitiveFunction)function).calculateN(new double[] { n, k }, 0, 2, context);
+	}
+
+	/**
+	 * Expects the exact value while the products of the calculation, at most {@code n} times the result, are exact in doubles.
+	 */
+	private static void assertClose(BigInteger expected, int n, double actual, String message) {
+		double value = expected.doubleValue();
+		if (value * Math.max(n, 1) < exactLimit) assertEquals(value, actual, message);
+		else assertEquals(value, actual, value * 1e-13, message);
+	}
+
+	private static BigInteger factorial(int n) {
+		BigInteger result = BigInteger.ONE;
+		for (int i = 2; i <= n; i++) result = result.multiply(BigInteger.valueOf(i));
+		return result;
+	}
+
+	@Test
+	public void smallValues() throws ExpressionInvalidException {
+		assertEquals(20, engine.calculate("p(5;2)", context));
+		assertEquals(10, engine.calculate("c(5;2)", context));
+		assertEquals(120, engine.calculate("fact(5)", context));
+		assertEquals(1, engine.calculate("p(5;0)", context));
+		assertEquals(0, engine.calculate("c(2;5)", context));
+		assertEquals("invalidPermutationNegativeArgs", engine.tryCalculate("p(5;-1)", context).getErrorKey());
+		assertEquals("invalidCombinationNumArgs", engine.tryCalculate("c(5)", context).getErrorKey());
+	}
+
+	@Test
+	public void matchesExactArithmetic() throws ExpressionInvalidException {
+		Function permutation = new Function.Permutation(), combination = new Function.Combination();
+		for (int n = 0; n <= 200; n++) {
+			BigInteger nFactorial = factorial(n);
+			assertClose(nFactorial, 1, Utils.factorial(n), "fact(" + n + ")");
+			for (int k = 0; k <= n; k++) {
+				BigInteger permutations = nFactorial.divide(factorial(n - k)), combinations = permutations.divide(factorial(k));
+				assertClose(permutations, 1, call(permutation, n, k), "p(" + n + ";" + k + ")");
+				assertClose(combinations, n, call(combination, n, k), "c(" + n + ";" + k + ")");
+			}
+		}
+	}
+
+	@Test
+	public void hugeArguments() {
+		Function permutation = new Function.Permutation(), combination = new Function.Combination();
+		assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+			assertEquals(Double.POSITIVE_INFINITY, call(permutation, 1e15, 1e15));
+			assertEquals(Double.POSITIVE_INFINITY, call(combination, 1e300, 5e299));
+			assertEquals(Double.POSITIVE_INFINITY, Utils.factorial(1e300));
+			assertEquals(1e18, call(combination, 1e18, 1));
+			assertEquals(1, call(combination, Double.POSITIVE_INFINITY, 0));
+			assertEquals(Double.POSITIVE_INFINITY, call(permutation, Double.POSITIVE_INFINITY, 3));
+		});
+	}
+}
@@ -0,0 +1,64 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that each row of a file gets the results of the expressions, and that a row that fails leaves its results empty without stopping the file.
+ */
+public class CsvEvaluatorTest {
+	@TempDir
+	Path directory;
+
+	private String evaluate(String input, char separator) throws IOException, ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = new CalculationContext(engine);
+		Map<String, CompiledExpression> expressions = new LinkedHashMap<String, CompiledExpression>();
+		expressions.put("ratio", engine.compile("a/b", context));
+		expressions.put("sum", engine.compile("a+b", context));
+		CsvEvaluator evaluator = new CsvEvaluator(expressions);
+		evaluator.separator = separator;
+		Path in = directory.resolve("in.csv"), out = directory.resolve("out.csv");
+		Files.write(in, input.getBytes(StandardCharsets.UTF_8));
+		long rows = evaluator.evaluate(in, out, context);
+		assertEquals(input.split("\n").length - 1, rows);
+		return new String(Files.readAllBytes(out), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void rowErrors() throws IOException, ExpressionInvalidException {
+		assertEquals(
+			"name,a,b,ratio,sum\n" +
+			"one,6,3,2,9\n" +
+			"zero,6,0,,6\n" + // Only the failing expression is left empty.
+			"text,x,3,,\n" + // A bound column that is not a number fails the whole row.
+			"short,6,,\n" + // So does a missing column.
+			"\"quoted\",\"8\",2,4,10\r\n" +
+			"last,-1.5,0.5,-3,-1\n",
+			evaluate(
+				"name,a,b\n" +
+				"one,6,3\n" +
+				"zero,6,0\n" +
+				"text,x,3\n" +
+				"short,6\n" +
+				"\"quoted\",\"8\",2\r\n" +
+				"last,-1.5,0.5\n",
+				','
+			)
+		);
+	}
+
+	@Test
+	public void tabSeparated() throws IOException, ExpressionInvalidException {
+		assertEquals("a\tb\tratio\tsum\n1\t4\t0,25\t5\n\t4\t\t\n", evaluate("a\tb\n1\t4\n\t4\n", '\t'));
+	}
+}
@@ -0,0 +1,97 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that expressions nested far deeper than the call stack allows are calculated, as the operator-stack evaluator did before expressions were compiled into trees.
+ */
+public class DeepExpressionTest {
+	private static final int length = 10000; // Each expression is over 20 000 characters.
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+
+	@BeforeEach
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+		engine.calculate("x=2", context);
+	}
+
+	static String repeat(String prefix, String middle, String suffix) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < length; i++) builder.append(prefix);
+		builder.append(middle);
+		for (int i = 0; i < length; i++) builder.append(suffix);
+		return builder.toString();
+	}
+
+	static String sum() {
+		return repeat("x+", "1", "");
+	}
+
+	static String powers() {
+		return repeat("2^", "1", "");
+	}
+
+	static String braces() {
+		return repeat("(", "1", ")");
+	}
+
+	@Test
+	public void calculate() throws ExpressionInvalidException {
+		assertEquals(2 * length + 1, engine.calculate(sum(), context));
+		assertEquals(Double.POSITIVE_INFINITY, engine.calculate(powers(), context));
+		assertEquals(1, engine.calculate(braces(), context));
+	}
+
+	@Test
+	public void tryCalculate() {
+		assertEquals(2 * length + 1, engine.tryCalculate(sum(), context).getValue());
+		CalculationResult result = engine.tryCalculate(repeat("x+", "q", ""), context);
+		assertFalse(result.isValid());
+		assertEquals("variableNotSet", result.getErrorKey());
+	}
+
+	@Test
+	public void compile() throws ExpressionInvalidException {
+		CompiledExpression compiled = engine.compile(sum(), context);
+		assertEquals(2 * length + 1, compiled.evaluateValue(context));
+		engine.calculate("x=3", context);
+		assertEquals(3 * length + 1, compiled.evaluateValue(context));
+		assertEquals(length + 1, compiled.analyze().getDepth());
+	}
+
+	@Test
+	public void methodHandles() throws Throwable {
+		CompiledExpression compiled = engine.compile(sum(), context);
+		assertSame(compiled, MethodHandleBackend.compile(compiled)); // Deeper than the handles go, so left to the interpreter.
+		assertEquals(2 * length + 1, (double)MethodHandleBackend.compile(compiled.getRoot()).invokeExact(context));
+		CompiledExpression shallow = engine.compile(sum().substring(2 * (length - MethodHandleBackend.maxDepth + 1)), context), handles = MethodHandleBackend.compile(shallow);
+		assertNotSame(shallow, handles);
+		assertEquals(2 * MethodHandleBackend.maxDepth - 1, handles.evaluateValue(context));
+	}
+
+	@Test
+	public void batch() throws ExpressionInvalidException {
+		double[] column = new double[2000], output = new double[column.length];
+		Arrays.fill(column, 3);
+		for (boolean vectorized : new boolean[] { false, true }) {
+			BatchEvaluator sum = new BatchEvaluator(engine.compile(sum(), context)), braces = new BatchEvaluator(engine.compile(braces(), context));
+			sum.vectorized = braces.vectorized = vectorized;
+			assertEquals(0, sum.evaluate(Collections.singletonMap("x", column), output, null, context));
+			for (double value : output) assertEquals(3 * length + 1, value);
+			assertEquals(0, braces.evaluate(Collections.singletonMap("x", column), output, null, context));
+			for (double value : output) assertEquals(1, value);
+		}
+	}
+}
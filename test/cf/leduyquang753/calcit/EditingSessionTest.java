@@ -0,0 +1,72 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that compiling an expression again after each edit, resuming from the saved parser state, gives what compiling the new text from scratch gives.
+ */
+public class EditingSessionTest {
+	private static final String[] pieces = { "1", "2", "7", ",", ".", "+", "-", "*", "/", "(", ")", "x", "X", "sin(", "^", "%", "!", " ", ";", "max(", "a=", "#", "=" };
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+
+	@BeforeEach
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		engine.expressionCache = null;
+		context = new CalculationContext(engine);
+		engine.calculate("x=3", context);
+	}
+
+	private String describe(String expression, EditingSession session) {
+		try {
+			CompiledExpression compiled = session == null ? engine.compile(expression, context) : session.compile(expression);
+			try {
+				return Double.toString(compiled.evaluateValue(context));
+			} catch (ExpressionInvalidException e) {
+				return "evaluation " + e.getMessage() + "@" + e.getPosition();
+			}
+		} catch (ExpressionInvalidException e) {
+			return e.getMessage() + "@" + e.getPosition();
+		}
+	}
+
+	@Test
+	public void matchesFreshParse() {
+		Random random = new Random(18);
+		EditingSession session = new EditingSession(context);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			int action = random.nextInt(10);
+			String piece = pieces[random.nextInt(pieces.length)];
+			if (action < 6 || text.length() == 0) text.append(piece); // Mostly typing at the end.
+			else if (action < 8) text.insert(random.nextInt(text.length() + 1), piece);
+			else text.delete(random.nextInt(text.length()), text.length() - random.nextInt(2));
+			if (text.length() > 60) text.setLength(0);
+			if (random.nextInt(50) == 0) context.decimalDot = !context.decimalDot;
+			if (random.nextInt(50) == 0) context.enforceMulDiv = !context.enforceMulDiv;
+			String expression = text.toString();
+			assertEquals(describe(expression, null), describe(expression, session), expression);
+		}
+	}
+
+	@Test
+	public void reusesPrefix() throws ExpressionInvalidException {
+		EditingSession session = new EditingSession(context);
+		StringBuilder text = new StringBuilder("y=1");
+		for (int i = 0; i < 200; i++) text.append("+x*2");
+		session.compile(text.toString());
+		text.append("+1");
+		assertEquals(engine.compile(text.toString(), context).evaluateValue(context), session.compile(text.toString()).evaluateValue(context));
+		assertTrue(session.getReusedLength() > 700, Integer.toString(session.getReusedLength()));
+		assertEquals(1202, session.calculate(text.toString()));
+		assertEquals(1202, context.getAns());
+	}
+}
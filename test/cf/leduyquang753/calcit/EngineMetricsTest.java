@@ -0,0 +1,118 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the recorded calls to each function and operand are the calls made by the successful evaluations, and that each parse, evaluation and error is recorded once.
+ */
+public class EngineMetricsTest {
+	private static final String[] expressions = { "twice(x)+x", "twice(twice(x)+1)", "x+x+x", "twice(x)/x", "1/x+twice(x)", "max(twice(x);x+1)", "sum(x;twice(x))+(x+1)" };
+
+	private static class CountingFunction extends Function {
+		long calls = 0;
+
+		CountingFunction() {
+			super(new String[] { "twice" });
+		}
+
+		@Override
+		public double calculate(List<Double> arguments, CalculatorEngine engine) {
+			calls++;
+			return arguments.get(0) * 2;
+		}
+	}
+
+	private static class CountingPlus extends Operand.Plus {
+		long calls = 0;
+
+		@Override
+		public double calculate(double val1, double val2, CalculatorEngine engine) {
+			calls++;
+			return val1 + val2;
+		}
+	}
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+	private EngineMetrics metrics;
+	private CountingFunction twice;
+	private CountingPlus plus;
+
+	@BeforeEach
+	public void setUp() {
+		engine = new CalculatorEngine();
+		engine.expressionCache = null;
+		engine.registerFunction(twice = new CountingFunction());
+		engine.registerOperand(plus = new CountingPlus());
+		context = new CalculationContext(engine);
+		engine.metrics = metrics = new EngineMetrics();
+	}
+
+	@Test
+	public void callCounts() throws ExpressionInvalidException {
+		long expectedTwice = 0, expectedPlus = 0, failures = 0, evaluations = 0;
+		for (int x = -3; x <= 3; x++) {
+			engine.calculate("x=" + x, context);
+			evaluations++;
+			for (String expression : expressions) {
+				CompiledExpression compiled = engine.compile(expression, context);
+				for (int repeat = 0; repeat < 2; repeat++) {
+					long twiceBefore = twice.calls, plusBefore = plus.calls;
+					evaluations++;
+					try {
+						compiled.evaluateValue(context);
+						expectedTwice += twice.calls - twiceBefore;
+						expectedPlus += plus.calls - plusBefore;
+					} catch (ExpressionInvalidException e) {
+						failures++;
+					}
+				}
+			}
+		}
+		assertEquals(expectedTwice, metrics.getFunctionCalls(twice));
+		assertEquals(expectedPlus, metrics.getOperandCalls(plus));
+		assertEquals(failures, metrics.getErrors("divisionByZero"));
+		assertEquals(evaluations, metrics.getEvaluationTimes().getCount());
+		assertEquals(7 + 7 * expressions.length, metrics.getParseTimes().getCount());
+	}
+
+	@Test
+	public void parseErrors() {
+		engine.tryCalculate("1+", context);
+		engine.tryCalculate("2*(", context);
+		engine.tryCalculate("q", context);
+		assertEquals(2, metrics.getErrors("unexpectedEnd"));
+		assertEquals(1, metrics.getErrors("variableNotSet"));
+		assertEquals(3, metrics.getParseTimes().getCount());
+	}
+
+	@Test
+	public void export() throws ExpressionInvalidException {
+		engine.calculate("x=2", context);
+		engine.calculate("twice(x)+twice(x+x)", context);
+		TreeMap<String, Long> counters = new TreeMap<String, Long>();
+		metrics.export(new MetricsExporter() {
+			@Override
+			public void counter(String name, String label, long value) {
+				counters.put(name + " " + label, value);
+			}
+
+			@Override
+			public void histogram(String name, LatencyHistogram histogram) {
+				counters.put(name, histogram.getCount());
+			}
+		});
+		assertEquals(2, counters.get("function.calls twice"));
+		assertEquals(2, counters.get("operand.calls +"));
+		assertEquals(2, counters.get("parse.time"));
+		assertEquals(2, counters.get("evaluation.time"));
+		metrics.reset();
+		assertEquals(0, metrics.getFunctionCalls(twice));
+	}
+}
@@ -0,0 +1,127 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a calculation stops with the error of the limit it exceeds, including when it is cancelled from another thread while running.
+ */
+public class EvaluationBudgetTest {
+	private CalculatorEngine engine;
+	private CalculationContext context;
+	private volatile int slowCalls;
+
+	@BeforeEach
+	public void setUp() {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+		slowCalls = 0;
+		engine.registerFunction(new Function(new String[] { "slow" }) {
+			@Override
+			public double calculate(List<Double> arguments, CalculatorEngine engine) {
+				slowCalls++;
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+				while (System.nanoTime() < end);
+				return arguments.get(0);
+			}
+		});
+	}
+
+	private static String slowSum(int count) {
+		StringBuilder builder = new StringBuilder("slow(0)");
+		for (int i = 1; i < count; i++) builder.append("+slow(").append(i).append(')');
+		return builder.toString();
+	}
+
+	private String error(String expression, EvaluationBudget budget) {
+		try {
+			engine.calculate(expression, context, budget);
+			return null;
+		} catch (ExpressionInvalidException e) {
+			return e.getMessage();
+		}
+	}
+
+	@Test
+	public void cancelFromAnotherThread() throws InterruptedException {
+		EvaluationBudget budget = new EvaluationBudget();
+		Thread canceller = new Thread(() -> {
+			while (slowCalls < 3) Thread.yield();
+			budget.cancel();
+		});
+		canceller.start();
+		assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertEquals("calculationCancelled", error(slowSum(1000), budget))); // Ten seconds if not cancelled.
+		canceller.join();
+		assertTrue(slowCalls < 100, Integer.toString(slowCalls));
+		assertNull(context.budget); // Only kept during the call.
+	}
+
+	@Test
+	public void timeLimit() {
+		EvaluationBudget budget = new EvaluationBudget().setTimeout(50, TimeUnit.MILLISECONDS);
+		assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertEquals("timeLimitExceeded", error(slowSum(1000), budget)));
+		assertTrue(slowCalls < 100, Integer.toString(slowCalls));
+		assertEquals("timeLimitExceeded", error("1+1", budget));
+	}
+
+	@Test
+	public void alreadyCancelled() {
+		EvaluationBudget budget = new EvaluationBudget();
+		budget.cancel();
+		assertEquals("calculationCancelled", error("slow(1)", budget));
+		assertEquals(0, slowCalls);
+		Thread.currentThread().interrupt();
+		try {
+			assertEquals("calculationCancelled", error("1+1", new EvaluationBudget()));
+		} finally {
+			assertTrue(Thread.interrupted()); // Left set.
+		}
+	}
+
+	@Test
+	public void sizeLimits() throws ExpressionInvalidException {
+		EvaluationBudget budget = new EvaluationBudget();
+		budget.maxInputLength = 10;
+		budget.maxDepth = 2;
+		budget.maxOperations = 3;
+		assertEquals(4, engine.calculate("1+1+1+1", context, budget));
+		assertEquals("expressionTooLong", error("1+1+1+1+1+1", budget));
+		assertEquals("tooManyOperations", error("1+1+1+1+1", budget));
+		assertEquals("nestingTooDeep", error("(((1)))", budget));
+		assertEquals(1, engine.calculate("((1))", context, budget));
+		// Also checked on expressions taken from the cache.
+		assertEquals(16, engine.calculate("2^2^2", context));
+		budget.maxOperations = 1;
+		assertEquals("tooManyOperations", error("2^2^2", budget));
+	}
+
+	@Test
+	public void checkedByFunctions() {
+		EvaluationBudget budget = new EvaluationBudget();
+		engine.registerFunction(new Function(new String[] { "cancelling" }) {
+			@Override
+			public double calculate(List<Double> arguments, CalculationContext context) throws ExpressionInvalidException {
+				context.budget.cancel();
+				context.budget.check();
+				return 0;
+			}
+
+			@Override
+			public double calculate(List<Double> arguments, CalculatorEngine engine) {
+				return 0;
+			}
+		});
+		assertEquals("calculationCancelled", error("1+cancelling(2)", budget));
+		assertThrows(ExpressionInvalidException.class, budget::check);
+	}
+}
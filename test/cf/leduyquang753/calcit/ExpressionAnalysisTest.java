@@ -0,0 +1,107 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the cost estimated without evaluating, its bounds on the loops of built-in functions, and that it admits exactly the expressions a budget lets through.
+ */
+public class ExpressionAnalysisTest {
+	private CalculatorEngine engine;
+	private CalculationContext context;
+
+	@BeforeEach
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+		engine.calculate("x=12", context);
+		engine.calculate("y=5", context);
+	}
+
+	private ExpressionAnalysis analyze(String expression) throws ExpressionInvalidException {
+		return engine.compile(expression, context).analyze();
+	}
+
+	@Test
+	public void structure() throws ExpressionInvalidException {
+		ExpressionAnalysis analysis = analyze("X + y*2");
+		assertEquals(7, analysis.getInputLength());
+		assertEquals(2, analysis.getOperationCount());
+		assertEquals(5, analysis.getNodeCount());
+		assertEquals(3, analysis.getDepth());
+		assertEquals(5, analysis.getEstimatedCost());
+		assertEquals(Arrays.asList("x", "y"), Arrays.asList(analysis.getVariables().toArray()));
+		assertTrue(analysis.getLoopingCalls().isEmpty());
+		analysis = analyze("c(10;3)+x"); // The call is folded into its result.
+		assertEquals(3, analysis.getNodeCount());
+		assertTrue(analysis.getLoopingCalls().isEmpty());
+	}
+
+	@Test
+	public void loopBounds() throws ExpressionInvalidException {
+		ExpressionAnalysis analysis = analyze("gcd(x;100)");
+		assertEquals(1, analysis.getLoopingCalls().size());
+		assertEquals(12, analysis.getLoopingCalls().get(0).getMaxSteps()); // ceil(log(100) / log(golden ratio)) + 2
+		assertEquals(3 + 12, analysis.getEstimatedCost());
+		assertEquals(5, analyze("c(x;5)").getLoopingCalls().get(0).getMaxSteps());
+		assertEquals(170, analyze("p(x;y)").getLoopingCalls().get(0).getMaxSteps());
+		assertEquals(1024, analyze("c(x;y)").getLoopingCalls().get(0).getMaxSteps());
+		assertEquals(Long.MAX_VALUE, analyze("p(x;100000000000000000000)+1").getEstimatedCost()); // Not bounded.
+	}
+
+	private static int euclidSteps(long a, long b) {
+		int steps = 0;
+		while (b != 0) {
+			long remainder = a % b;
+			a = b;
+			b = remainder;
+			steps++;
+		}
+		return steps;
+	}
+
+	@Test
+	public void euclidBound() throws ExpressionInvalidException {
+		Random random = new Random(23);
+		long[] fibonacci = new long[80];
+		fibonacci[0] = fibonacci[1] = 1;
+		for (int i = 2; i < fibonacci.length; i++) fibonacci[i] = fibonacci[i - 1] + fibonacci[i - 2];
+		for (int i = 0; i < 2000; i++) {
+			long smaller = i < 70 ? fibonacci[i + 1] : 1 + (random.nextLong() >>> random.nextInt(64)) % 1000000000000L;
+			long larger = i < 70 ? fibonacci[i + 2] : smaller + (random.nextLong() >>> 12);
+			long bound = analyze("gcd(x;" + smaller + ")").getLoopingCalls().get(0).getMaxSteps();
+			assertTrue(euclidSteps(larger, smaller) <= bound, larger + " and " + smaller);
+		}
+	}
+
+	@Test
+	public void admission() throws ExpressionInvalidException {
+		String[] expressions = { "1+2", "((x))", "x+y+x+y", "(((1+2)*3)+4)", "max(1;2;3;4)+(5)", "sin(cos(tan(x)))", "2^2^2^2", "gcd(x;y;7)*c(9;y)" };
+		Random random = new Random(230);
+		int admittedCount = 0;
+		for (int i = 0; i < 500; i++) {
+			String expression = expressions[random.nextInt(expressions.length)];
+			EvaluationBudget budget = new EvaluationBudget();
+			budget.maxInputLength = 3 + random.nextInt(20);
+			budget.maxDepth = random.nextInt(5);
+			budget.maxOperations = random.nextInt(8);
+			String error;
+			try {
+				engine.calculate(expression, context, budget);
+				error = null;
+			} catch (ExpressionInvalidException e) {
+				error = e.getMessage();
+			}
+			boolean admitted = analyze(expression).fitsIn(budget);
+			assertEquals(admitted, error == null, expression + " " + error);
+			if (admitted) admittedCount++;
+		}
+		assertTrue(admittedCount > 0 && admittedCount < 500);
+	}
+}
@@ -0,0 +1,57 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that contexts with different parse settings sharing one cached engine each get the expression parsed with their own settings.
+ */
+public class ExpressionCacheTest {
+	private static final String[] expressions = { "1,5*2", "1.5*2", "1.000,5+1", "2.3.4", "3:2", "2.3", "1,2,3", "1.234.567" };
+
+	private static String describe(CalculationResult result) {
+		return result.isValid() ? Double.toString(result.getValue()) : result.getErrorKey() + "@" + result.getPosition();
+	}
+
+	private static CalculationContext context(CalculatorEngine engine, int settings) {
+		CalculationContext context = new CalculationContext(engine);
+		context.decimalDot = (settings & 1) != 0;
+		context.enforceDecimalSeparator = (settings & 2) != 0;
+		context.thousandDot = (settings & 4) != 0;
+		context.mulAsterisk = (settings & 8) != 0;
+		context.enforceMulDiv = (settings & 16) != 0;
+		return context;
+	}
+
+	@Test
+	public void decimalSeparatorSettings() {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext comma = context(engine, 0), dot = context(engine, 1 | 2);
+		assertEquals(3, engine.tryCalculate("1,5*2", comma).getValue());
+		assertEquals("unknownSymbol@2", describe(engine.tryCalculate("1,5*2", dot))); // Not the expression cached for the comma.
+		assertEquals(3, engine.tryCalculate("1.5*2", dot).getValue());
+		assertEquals(3, engine.tryCalculate("1,5*2", comma).getValue());
+	}
+
+	@Test
+	public void matchesUncachedEngine() {
+		CalculatorEngine cached = new CalculatorEngine(), uncached = new CalculatorEngine();
+		uncached.expressionCache = null;
+		for (int round = 0; round < 2; round++) for (String expression : expressions) for (int settings = 0; settings < 32; settings++) {
+			String expected = describe(uncached.tryCalculate(expression, context(uncached, settings)));
+			assertEquals(expected, describe(cached.tryCalculate(expression, context(cached, settings))), expression + " with settings " + settings);
+		}
+		assertTrue(cached.expressionCache.getHitCount() > 0);
+	}
+
+	@Test
+	public void boundedSize() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		engine.expressionCache = new ExpressionCache(4, 1 << 20);
+		for (int i = 0; i < 10; i++) engine.calculate(i + "+1");
+		assertEquals(4, engine.expressionCache.size());
+		assertEquals(6, engine.expressionCache.getEvictionCount());
+	}
+}
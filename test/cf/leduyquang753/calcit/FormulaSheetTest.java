@@ -0,0 +1,106 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that assigning a variable recalculates the formulas that depend on it after the formulas they read, and that circular references are rejected.
+ */
+public class FormulaSheetTest {
+	private CalculationContext context;
+	private FormulaSheet sheet;
+
+	@BeforeEach
+	public void setUp() {
+		context = new CalculationContext(new CalculatorEngine());
+		sheet = new FormulaSheet(context);
+	}
+
+	@Test
+	public void recalculationOrder() throws ExpressionInvalidException, GetVariableException {
+		sheet.calculate("a=1");
+		assertThrows(ExpressionInvalidException.class, () -> sheet.calculate("c=b*2+a")); // Reads b before it is set.
+		sheet.calculate("b=a+1");
+		assertEquals(Arrays.asList("c"), sheet.getRecalculated());
+		sheet.calculate("d=c+b");
+		sheet.calculate("e=7");
+		assertTrue(sheet.getRecalculated().isEmpty());
+		sheet.calculate("a=5");
+		assertEquals(Arrays.asList("b", "c", "d"), sheet.getRecalculated());
+		assertEquals(6, context.getVariable("b"));
+		assertEquals(17, context.getVariable("c"));
+		assertEquals(23, context.getVariable("d"));
+		assertEquals(7, context.getVariable("e"));
+	}
+
+	@Test
+	public void circularReference() throws ExpressionInvalidException, GetVariableException {
+		sheet.calculate("a=1");
+		sheet.calculate("b=a+1");
+		sheet.calculate("c=b+1");
+		ExpressionInvalidException e = assertThrows(ExpressionInvalidException.class, () -> sheet.calculate("a=c*2"));
+		assertEquals("circularReference", e.getMessage());
+		assertArrayEquals(new Object[] { "a -> c -> b -> a" }, e.getMessageArguments());
+		assertEquals("circularReference", assertThrows(ExpressionInvalidException.class, () -> sheet.calculate("x=x+1")).getMessage());
+		// Nothing changed.
+		assertEquals("a=1", sheet.getFormula("a").getExpression());
+		assertEquals(1, context.getVariable("a"));
+		assertEquals(3, context.getVariable("c"));
+		assertNull(sheet.getFormula("x"));
+		assertTrue(sheet.getDependents("x").isEmpty());
+	}
+
+	@Test
+	public void errors() throws ExpressionInvalidException, GetVariableException {
+		sheet.calculate("a=2");
+		assertThrows(ExpressionInvalidException.class, () -> sheet.calculate("b=1/(a-2)")); // The formula is kept.
+		assertEquals("divisionByZero", sheet.getError("b").getMessage());
+		assertThrows(ExpressionInvalidException.class, () -> sheet.calculate("c=b+1"));
+		assertFalse(context.isVariableAvailable(context.getEngine().findVariableSlot("c")));
+		sheet.calculate("a=3");
+		assertNull(sheet.getError("b"));
+		assertEquals(2, context.getVariable("c"));
+		sheet.remove("b");
+		assertEquals(Arrays.asList("c"), sheet.getRecalculated());
+		assertEquals("variableNotSet", sheet.getError("c").getMessage());
+	}
+
+	@Test
+	public void matchesFullRecalculation() throws ExpressionInvalidException, GetVariableException {
+		Random random = new Random(17);
+		int variableCount = 12;
+		double[] constants = new double[variableCount];
+		int[][] reads = new int[variableCount][];
+		for (int i = 0; i < 300; i++) {
+			// Each variable reads variables of lower index only, so no line is circular.
+			int target = i < variableCount ? i : random.nextInt(variableCount);
+			constants[target] = random.nextInt(10);
+			reads[target] = new int[target == 0 ? 0 : random.nextInt(3)];
+			StringBuilder line = new StringBuilder("v").append(target).append('=').append((int)constants[target]);
+			for (int j = 0; j < reads[target].length; j++) line.append("+v").append(reads[target][j] = random.nextInt(target));
+			sheet.calculate(line.toString());
+			List<String> recalculated = sheet.getRecalculated();
+			double[] expected = new double[variableCount];
+			for (int variable = 0; variable < variableCount && reads[variable] != null; variable++) {
+				expected[variable] = constants[variable];
+				for (int read : reads[variable]) {
+					expected[variable] += expected[read];
+					if (recalculated.contains("v" + variable) && recalculated.contains("v" + read))
+						assertTrue(recalculated.indexOf("v" + read) < recalculated.indexOf("v" + variable), line.toString());
+				}
+				assertEquals(expected[variable], context.getVariable("v" + variable), line + ": v" + variable);
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that errors in expressions with whitespace and uppercase letters are positioned where scanning the original text for the same character puts them.
+ */
+public class NormalizedExpressionTest {
+	private static final String[] expressions = {
+		"1+q", "sin(30)+unknown(2)", "2*(3+", "x=y=", "((1)))", "2..3", "max(1;;2)", "5!=", "abcdef", "3+*4", "12,5%,3", "1=2"
+	};
+
+	@Test
+	public void positions() {
+		Random random = new Random(16);
+		for (int i = 0; i < 5000; i++) {
+			String compact = Character.toString((char)('a' + random.nextInt(26))) + random.nextInt(1000) + expressions[random.nextInt(expressions.length)];
+			StringBuilder builder = new StringBuilder();
+			for (int j = 0; j < compact.length(); j++) {
+				while (random.nextInt(3) == 0) builder.append(" \t\n".charAt(random.nextInt(3)));
+				char c = compact.charAt(j);
+				builder.append(random.nextBoolean() ? Character.toUpperCase(c) : c);
+			}
+			String original = builder.toString();
+			NormalizedExpression normalized = NormalizedExpression.of(original);
+			assertEquals(compact, normalized.getText());
+			for (int position = -1; position <= compact.length() + 1; position++)
+				assertEquals(Utils.getIndexWithWhitespace(original, position), normalized.toOriginalPosition(position), original + " at " + position);
+		}
+	}
+
+	@Test
+	public void calculationErrors() {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = new CalculationContext(engine);
+		for (String expression : expressions) {
+			String spaced = " " + expression.toUpperCase().replace("(", "\t( ").replace("+", " +\n") + " ";
+			CalculationResult compact = engine.tryCalculate(expression, context), result = engine.tryCalculate(spaced, context);
+			assertEquals(compact.getErrorKey(), result.getErrorKey(), spaced);
+			if ("unexpectedEnd".equals(compact.getErrorKey())) assertEquals(spaced.length(), result.getPosition(), spaced); // At the end of the text.
+			else if (compact.getErrorKey() != null) assertEquals(Utils.getIndexWithWhitespace(spaced, compact.getPosition()), result.getPosition(), spaced);
+		}
+		// So are the errors met when evaluating.
+		assertEquals(7, engine.tryCalculate(" 1 / 0 ", context).getPosition());
+	}
+
+	@Test
+	public void lengthChangingLowercase() {
+		NormalizedExpression normalized = NormalizedExpression.of("\u0130 X"); // The dotted capital I lowercases into two characters.
+		assertEquals("i\u0307x", normalized.getText());
+		assertEquals(1, normalized.toOriginalPosition(1));
+		assertEquals(1, normalized.toOriginalPosition(2));
+		assertEquals(3, normalized.toOriginalPosition(3));
+		assertEquals(3, normalized.toOriginalPosition(4));
+	}
+
+	@Test
+	public void alreadyNormalized() {
+		String text = "sin(30)+2";
+		assertSame(text, NormalizedExpression.of(text).getText());
+		assertEquals(5, NormalizedExpression.of(text).toOriginalPosition(5));
+	}
+}
@@ -0,0 +1,75 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that numbers are formatted as they were with the shared {@code DecimalFormat}, under every combination of the separator settings.
+ */
+public class NumberFormatterTest {
+	private static final DecimalFormat decimalFormat = new DecimalFormat("#,##0.##########", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+	private static final CalculationContext context = new CalculationContext(new CalculatorEngine());
+
+	/**
+	 * The formatting from before {@link NumberFormatter}.
+	 */
+	private static String expected(double number, boolean decimalDot, boolean thousandDot, boolean mulAsterisk) {
+		char mulSign = mulAsterisk || decimalDot || thousandDot ? '*' : '.';
+		double log = Math.log10(Math.abs(number));
+		if (number != 0 && (log <= -7 || log >= 18)) {
+			int exponent = (int)Math.floor(log / 3) * 3;
+			double displayedNumber = number * Math.pow(10, -exponent);
+			if (Double.isNaN(displayedNumber)) return null;
+			String formatted = plain(displayedNumber, decimalDot, thousandDot);
+			return exponent == 0 ? formatted : formatted + mulSign + "10^" + exponent;
+		}
+		return plain(number, decimalDot, thousandDot);
+	}
+
+	private static String plain(double number, boolean decimalDot, boolean thousandDot) {
+		String formatted = decimalFormat.format(number).replace(",", " ");
+		if (!decimalDot) formatted = formatted.replace(".", ",");
+		if (thousandDot) formatted = formatted.replace(" ", decimalDot ? "," : ".");
+		return formatted;
+	}
+
+	private static void check(double number) {
+		for (int settings = 0; settings < 8; settings++) {
+			context.decimalDot = (settings & 1) != 0;
+			context.thousandDot = (settings & 2) != 0;
+			context.mulAsterisk = (settings & 4) != 0;
+			String expected = expected(number, context.decimalDot, context.thousandDot, context.mulAsterisk);
+			assertEquals(expected, Utils.formatNumber(number, context), number + " with settings " + settings);
+			StringBuilder builder = new StringBuilder("x");
+			assertEquals(expected != null, Utils.formatNumber(number, context, builder));
+			assertEquals(expected == null ? "x" : "x" + expected, builder.toString());
+		}
+	}
+
+	@Test
+	public void specialValues() {
+		double[] numbers = {
+			0, -0d, 1, -1, 0.5, 1e-7, 1e-6, 9.99999999995e-7, 0.00000000005, 0.00000000015, 0.00000000025, 0.000000000049999, 1e18, 999999999999999999d, 1e17,
+			123456789.123456789, 0.1 + 0.2, 2.675, 1.00000000005, 0.99999999995, 999.99999999995, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_VALUE, Double.MIN_NORMAL,
+			Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+		};
+		for (double number : numbers) check(number);
+	}
+
+	@Test
+	public void randomValues() {
+		Random random = new Random(14);
+		for (int i = 0; i < 2000; i++) {
+			check(Double.longBitsToDouble(random.nextLong()));
+			check((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 12));
+			check((random.nextInt(2000000001) - 1000000000) / 1e10 + 5e-11); // Ties at the last decimal place.
+			check(random.nextInt(1000000) / Math.pow(10, random.nextInt(12)));
+		}
+	}
+}
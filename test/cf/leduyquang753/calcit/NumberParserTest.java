@@ -0,0 +1,118 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the number literal parser against {@link Double#parseDouble(String)}, which the tokenizer called before.
+ */
+public class NumberParserTest {
+	private static final int count = 200000;
+
+	private final Random random = new Random(42);
+
+	/**
+	 * Returns digits with at most one decimal separator, spread over the ranges where the fast paths give up: long mantissas, tiny and huge magnitudes and halfway cases.
+	 */
+	private String randomLiteral() {
+		StringBuilder builder = new StringBuilder();
+		int digits = 1 + random.nextInt(random.nextInt(4) == 0 ? 40 : 20);
+		int point = random.nextInt(4) == 0 ? -1 : random.nextInt(digits + 1);
+		switch (random.nextInt(6)) {
+			case 0: // Small: zeros after the point.
+				builder.append("0.");
+				for (int i = random.nextInt(330); i > 0; i--) builder.append('0');
+				point = -1;
+				break;
+			case 1: // Large: zeros before the point.
+				for (int i = 0; i < digits; i++) builder.append((char)('0' + random.nextInt(10)));
+				for (int i = random.nextInt(320); i > 0; i--) builder.append('0');
+				digits = 0;
+				break;
+			case 2: // Halfway between two doubles, written out in full.
+				long bits = Double.doubleToLongBits(1 + random.nextDouble()) | 1;
+				builder.append(new BigDecimal(Double.longBitsToDouble(bits)).add(new BigDecimal(Math.ulp(Double.longBitsToDouble(bits)) / 2)).toPlainString());
+				return builder.toString();
+		}
+		for (int i = 0; i < digits; i++) {
+			if (i == point) builder.append('.');
+			builder.append((char)('0' + random.nextInt(10)));
+		}
+		if (point == digits) builder.append('.');
+		return builder.toString();
+	}
+
+	private static double parse(String text, boolean thousandDot, char thousandSeparator) {
+		return NumberParser.parse(text, 0, text.length(), thousandDot, thousandSeparator);
+	}
+
+	@Test
+	public void matchesParseDouble() {
+		for (int i = 0; i < count; i++) {
+			String literal = randomLiteral();
+			double expected = Double.parseDouble(literal);
+			assertEquals(expected, parse(literal, false, '.'), literal);
+			String comma = literal.replace('.', ',');
+			assertEquals(expected, parse(comma, false, '.'), comma);
+		}
+	}
+
+	@Test
+	public void skipsThousandSeparators() {
+		for (int i = 0; i < count / 10; i++) {
+			String literal = randomLiteral();
+			StringBuilder grouped = new StringBuilder();
+			for (int j = 0; j < literal.length(); j++) {
+				char c = literal.charAt(j);
+				grouped.append(c == '.' ? ',' : c);
+				if (random.nextInt(3) == 0) grouped.append('.');
+			}
+			assertEquals(Double.parseDouble(literal), parse(grouped.toString(), true, '.'), grouped.toString());
+		}
+	}
+
+	@Test
+	public void edgeCases() {
+		for (String literal : new String[] {
+			"0", "0.", ".5", "00000.000", "9007199254740993", "9007199254740992.5", "123456789012345678901234567890",
+			"0.1", "0.3", "2.2250738585072011e-308", "4.9e-324", "2.4703282292062327e-324", "1.7976931348623157e308", "1.7976931348623159e308"
+		}) {
+			String plain = new BigDecimal(literal).toPlainString();
+			if (literal.endsWith(".")) plain += '.';
+			assertEquals(Double.parseDouble(literal), parse(plain, false, '.'), literal);
+		}
+		assertThrows(NumberFormatException.class, () -> parse("1.2.3", false, '.'));
+		assertThrows(NumberFormatException.class, () -> parse("", false, '.'));
+		assertThrows(NumberFormatException.class, () -> parse("2%", false, '.'));
+	}
+
+	@Test
+	public void parsesBytes() {
+		for (int i = 0; i < count / 10; i++) {
+			String text = (random.nextBoolean() ? "-" : "") + randomLiteral();
+			if (random.nextBoolean()) text += "e" + (random.nextInt(40) - 20);
+			text = (random.nextBoolean() ? " " : "") + text + (random.nextBoolean() ? " " : "");
+			ByteBuffer buffer = ByteBuffer.wrap(("," + text + ",").getBytes(StandardCharsets.US_ASCII));
+			assertEquals(Double.parseDouble(text), NumberParser.parse(buffer, 1, buffer.capacity() - 1), text);
+		}
+	}
+
+	@Test
+	public void decimalSeparatorAfterPercent() {
+		CalculatorEngine engine = new CalculatorEngine();
+		for (String expression : new String[] { "2%,5", "1+2%,5", "sin(2%,5)" }) {
+			ExpressionInvalidException e = assertThrows(ExpressionInvalidException.class, () -> engine.calculate(expression), expression);
+			assertEquals("unexpectedDecimalSeparator", e.getMessage(), expression);
+			assertEquals(expression.indexOf("%,") + 2, e.getPosition(), expression);
+		}
+		ExpressionInvalidException e = assertThrows(ExpressionInvalidException.class, () -> engine.calculate("1/0+2%,5"));
+		assertEquals("divisionByZero", e.getMessage()); // Still met first from left to right.
+	}
+}
@@ -0,0 +1,79 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that folding constants and sharing common subexpressions do not change the results of expressions, errors included.
+ */
+public class OptimizerTest {
+	// The variables stand for the constants they are replaced with, which keeps the optimizer from folding them.
+	private static final String[] expressions = {
+		"q*k+floor(z*7)", "q^k-k/q", "(q+k)%*z", "fact(k+q)/q", "gcd(q*6;k*4)+p(k+2;q)", "c(q;k)", "k/(q-q)+1", "log(q;k)",
+		"max(q;k;z)-min(q;z)", "abs(z-k)", "if(q;k;z)", "q#k", "(z-q)^z", "avg(q;k;z)*z%", "fact(z)", "0*(k/(q-q))"
+	};
+
+	private CalculatorEngine engine;
+	private CalculationContext context;
+
+	@BeforeEach
+	public void setUp() throws ExpressionInvalidException {
+		engine = new CalculatorEngine();
+		context = new CalculationContext(engine);
+		engine.calculate("q=2", context);
+		engine.calculate("k=3", context);
+		engine.calculate("z=0,5", context);
+	}
+
+	private static String describe(CalculationResult result) {
+		return result.isValid() ? Double.toString(result.getValue()) : result.getErrorKey();
+	}
+
+	@Test
+	public void foldingKeepsResults() throws ExpressionInvalidException {
+		for (String expression : expressions) {
+			String constant = expression.replace("q", "2").replace("k", "3").replace("z", "0,5");
+			assertTrue(engine.compile(constant, context).getRoot() instanceof Node.Constant == engine.tryCalculate(constant, context).isValid(), constant);
+			assertEquals(describe(engine.tryCalculate(expression, context)), describe(engine.tryCalculate(constant, context)), constant);
+		}
+	}
+
+	@Test
+	public void whatIsNotFolded() throws ExpressionInvalidException {
+		assertTrue(engine.compile("2*3+floor(7/2)", context).getRoot() instanceof Node.Constant);
+		assertFalse(engine.compile("1/0+2", context).getRoot() instanceof Node.Constant); // Left to fail when evaluating.
+		assertEquals("divisionByZero", engine.tryCalculate("1/0+2", context).getErrorKey());
+		assertFalse(engine.compile("sin(30)", context).getRoot() instanceof Node.Constant); // Depends on the angle unit.
+		assertFalse(engine.compile("randomInt(1;6)", context).getRoot() instanceof Node.Constant);
+	}
+
+	@Test
+	public void commonSubexpressions() throws ExpressionInvalidException {
+		Node root = engine.compile("sin(q)*sin(q)+(q+1)/(q+1)-k", context).getRoot();
+		Map<Node, Integer> slots = Optimizer.findCommonSubexpressions(root);
+		assertEquals(6, slots.size()); // Braces are calls too.
+		assertEquals(3, new HashSet<Integer>(slots.values()).size());
+		assertTrue(Optimizer.findCommonSubexpressions(engine.compile("randomInt(1;6)-randomInt(1;6)", context).getRoot()).isEmpty());
+	}
+
+	@Test
+	public void sharingKeepsResults() throws ExpressionInvalidException {
+		Node root = engine.compile("sin(q)*sin(q)+(q+k)/(q+k)-cos(q+k)^(q+k)+fact(k)*fact(k)", context).getRoot();
+		Program shared = Program.compile(root, true), unshared = Program.compile(root, false);
+		EvaluationStack stack = new EvaluationStack();
+		for (int i = 0; i < 100; i++) {
+			engine.calculate("q=" + (i - 50) + ",5", context);
+			engine.calculate("k=" + i % 7, context);
+			double expected = root.evaluate(context);
+			assertEquals(expected, shared.execute(context, stack));
+			assertEquals(expected, unshared.execute(context, stack));
+		}
+	}
+}
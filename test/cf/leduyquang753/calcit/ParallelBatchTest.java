@@ -0,0 +1,54 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a batch split into chunks on an executor gives the same values and failed rows as evaluating it sequentially.
+ */
+public class ParallelBatchTest {
+	private static final int rowCount = 100003; // Several chunks, the last one shorter.
+
+	private ForkJoinPool pool;
+
+	@BeforeEach
+	public void setUp() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void matchesSequential() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = new CalculationContext(engine);
+		double[] x = new double[rowCount];
+		for (int row = 0; row < rowCount; row++) x[row] = row % 1000 - 500; // Zero every thousandth row.
+		Map<String, double[]> columns = Collections.singletonMap("x", x);
+		for (boolean vectorized : new boolean[] { false, true }) {
+			BatchEvaluator batch = new BatchEvaluator(engine.compile("1/x+sin(x)^2", context));
+			batch.vectorized = vectorized;
+			double[] sequential = new double[rowCount], parallel = new double[rowCount];
+			BitSet sequentialErrors = new BitSet(), parallelErrors = new BitSet();
+			int sequentialCount = batch.evaluate(columns, sequential, sequentialErrors, context);
+			batch.executor = pool;
+			int parallelCount = batch.evaluate(columns, parallel, parallelErrors, context);
+			assertEquals(rowCount / 1000, sequentialCount);
+			assertEquals(sequentialCount, parallelCount);
+			assertEquals(sequentialErrors, parallelErrors);
+			assertArrayEquals(sequential, parallel);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that looking up operands by their character and functions by walking the trie finds what looking up the maps of the engine finds.
+ */
+public class SymbolTableTest {
+	private static final String alphabet = "abc_\u00e9\u4e00"; // Few characters, so that names share prefixes.
+
+	private static Function function(String name, double result) {
+		return new Function(new String[] { name }, Function.Purity.PURE) {
+			@Override
+			public double calculate(List<Double> arguments, CalculatorEngine engine) {
+				return result * arguments.get(0);
+			}
+		};
+	}
+
+	private static String randomName(Random random, int maxLength) {
+		StringBuilder builder = new StringBuilder();
+		for (int length = random.nextInt(maxLength + 1); length > 0; length--) builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		return builder.toString();
+	}
+
+	@Test
+	public void functionsMatchMap() {
+		Random random = new Random(13);
+		Map<String, Function> functions = new HashMap<String, Function>();
+		for (int i = 0; i < 300; i++) {
+			String name = randomName(random, 5);
+			functions.put(name, function(name, i));
+		}
+		SymbolTable table = new SymbolTable(new HashMap<String, Operand>(), functions);
+		for (int i = 0; i < 20000; i++) {
+			String prefix = randomName(random, 3), name = randomName(random, 6), text = prefix + name + randomName(random, 3);
+			assertSame(functions.get(name), table.getFunction(text, prefix.length(), prefix.length() + name.length()), name);
+		}
+		for (Map.Entry<String, Function> entry : functions.entrySet()) assertSame(entry.getValue(), table.getFunction(entry.getKey(), 0, entry.getKey().length()));
+	}
+
+	@Test
+	public void operandsMatchMap() {
+		Map<String, Operand> operands = new HashMap<String, Operand>();
+		operands.put("+", new Operand.Plus());
+		operands.put("\u00d7", new Operand.Multiply());
+		operands.put("\u4e00", new Operand.Minus());
+		operands.put("ab", new Operand.Divide()); // Cannot be looked up by a character.
+		SymbolTable table = new SymbolTable(operands, new HashMap<String, Function>());
+		for (char c = 0; c < Character.MAX_VALUE; c++) assertSame(operands.get(String.valueOf(c)), table.getOperand(c));
+		assertNull(table.getOperand(Character.MAX_VALUE));
+	}
+
+	@Test
+	public void registeredFunctions() throws ExpressionInvalidException {
+		CalculatorEngine engine = new CalculatorEngine();
+		CalculationContext context = new CalculationContext(engine);
+		assertEquals("unknownFunction", engine.tryCalculate("twice(3)", context).getErrorKey());
+		engine.registerFunction(function("Twice", 2));
+		assertEquals(6, engine.calculate("twice(3)", context));
+		assertEquals(6, engine.calculate("TWICE(3)", context));
+		assertEquals("unknownFunction", engine.tryCalculate("twic(3)", context).getErrorKey());
+		assertEquals("unknownFunction", engine.tryCalculate("twicee(3)", context).getErrorKey());
+		engine.registerFunction(function("twice", 3)); // Replaces the earlier one.
+		assertEquals(9, engine.calculate("twice(3)", context));
+	}
+}
@@ -0,0 +1,59 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that {@link CalculatorEngine#validate(String, CalculationContext)} finds the syntax errors compiling finds, number literals included.
+ */
+public class ValidationTest {
+	private final CalculatorEngine engine = new CalculatorEngine();
+
+	private static String describe(ExpressionInvalidException e) {
+		return e == null ? "valid" : e.getMessage() + "@" + e.getPosition();
+	}
+
+	@Test
+	public void decimalSeparatorAfterPercent() {
+		ValidationResult result = engine.validate("2%,5");
+		assertFalse(result.isValid());
+		assertEquals("unexpectedDecimalSeparator@3", describe(result.getErrors().get(0)));
+	}
+
+	@Test
+	public void literalAroundSkippedCharacter() {
+		ValidationResult result = engine.validate("1$2,5+3");
+		assertEquals(1, result.getErrors().size());
+		assertEquals("unknownSymbol@2", describe(result.getErrors().get(0)));
+		assertTrue(engine.validate("1,5+2").isValid());
+	}
+
+	@Test
+	public void sameFirstErrorAsCompiling() {
+		String alphabet = "0123456789.,;%+-*/^#()[]{}|!=xqsinlogp ";
+		Random random = new Random(11);
+		for (int settings = 0; settings < 4; settings++) {
+			CalculationContext context = new CalculationContext(engine);
+			context.decimalDot = (settings & 1) != 0;
+			context.thousandDot = (settings & 2) != 0;
+			for (int i = 0; i < 20000; i++) {
+				StringBuilder builder = new StringBuilder();
+				for (int j = random.nextInt(12); j >= 0; j--) builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				String expression = builder.toString();
+				ExpressionInvalidException compileError = null;
+				try {
+					engine.compile(expression, context);
+				} catch (ExpressionInvalidException e) {
+					compileError = e;
+				}
+				ValidationResult result = engine.validate(expression, context);
+				assertEquals(describe(compileError), describe(result.isValid() ? null : result.getErrors().get(0)), expression);
+			}
+		}
+	}
+}
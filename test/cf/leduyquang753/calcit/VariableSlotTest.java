@@ -0,0 +1,29 @@
+package cf.leduyquang753.calcit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the engine stops giving slots to new variable names at {@link CalculatorEngine#maxVariables}, while the names that have one keep working.
+ */
+public class VariableSlotTest {
+	@Test
+	public void newNamesFailOnceTheTableIsFull() throws ExpressionInvalidException, GetVariableException {
+		CalculatorEngine engine = new CalculatorEngine();
+		engine.maxVariables = 2;
+		CalculationContext context = new CalculationContext(engine);
+		assertEquals(3, engine.calculate("a = 3", context));
+		assertEquals(4, engine.calculate("b = a + 1", context));
+		ExpressionInvalidException read = assertThrows(ExpressionInvalidException.class, () -> engine.calculate("a + c", context));
+		assertEquals("tooManyVariables", read.getMessage());
+		assertEquals(5, read.getPosition());
+		ExpressionInvalidException assigned = assertThrows(ExpressionInvalidException.class, () -> engine.calculate("a = cd = 5", context));
+		assertEquals("tooManyVariables", assigned.getMessage());
+		assertEquals(6, assigned.getPosition());
+		assertEquals(3, context.getVariable("a"));
+		assertEquals(12, engine.calculate("a.b", context));
+		assertEquals(1, engine.calculate("ans:ans", context));
+	}
+}